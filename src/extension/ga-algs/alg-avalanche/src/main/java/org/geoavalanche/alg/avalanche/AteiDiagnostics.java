@@ -0,0 +1,178 @@
+package org.geoavalanche.alg.avalanche;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Summary of an execution of the ATEI algorithm
+ *
+ * Holds the number of cells of each class of every input, the number of
+ * nodata cells, the histogram of the index and the range of the weighted
+ * terms. The bands of rows fill their own instance, merged at the end of the
+ * execution.
+ *
+ */
+public class AteiDiagnostics
+{
+    public static final int     SLOPE       = 0;
+    public static final int     ASPECT      = 1;
+    public static final int     CURVATURE   = 2;
+    public static final int     LANDCLASS   = 3;
+
+    /** Number of inputs */
+    public static final int     INPUTS      = 4;
+
+    /** Classes of the reclassified inputs, from 0 (no risk) to 3 (high risk) */
+    public static final int     CLASSES     = 4;
+
+    /** The index is a multiple of 0.05 between 0 and 3 */
+    public static final double  BIN_WIDTH   = 0.05;
+    public static final int     BINS        = 61;
+
+    private static final String[] NAMES = { "slope", "aspect", "curvature", "landclass" };
+
+    private final long[][]  m_ClassCounts   = new long[INPUTS][CLASSES];
+    private final long[]    m_Histogram     = new long[BINS];
+    private final double[]  m_TermMin       = new double[INPUTS];
+    private final double[]  m_TermMax       = new double[INPUTS];
+    private long            m_lCells;
+    private long            m_lNoData;
+
+    public AteiDiagnostics() {
+        Arrays.fill(m_TermMin, Double.POSITIVE_INFINITY);
+        Arrays.fill(m_TermMax, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Counts a nodata cell
+     */
+    public void addNoData() {
+        m_lCells++;
+        m_lNoData++;
+    }
+
+    /**
+     * Counts the class and the weighted term of an input of a cell
+     *
+     * @param input one of SLOPE, ASPECT, CURVATURE or LANDCLASS
+     * @param c the class of the input
+     * @param term the weighted term of the input
+     */
+    public void addInput(int input, double c, double term) {
+
+        int i = (int) c;
+        if (i >= 0 && i < CLASSES) {
+            m_ClassCounts[input][i]++;
+        }
+        if (term < m_TermMin[input]) {
+            m_TermMin[input] = term;
+        }
+        if (term > m_TermMax[input]) {
+            m_TermMax[input] = term;
+        }
+
+    }
+
+    /**
+     * Counts a cell with an index, once its inputs are counted
+     *
+     * @param atei the index
+     */
+    public void addIndex(double atei) {
+
+        m_lCells++;
+        int bin = (int) Math.round(atei / BIN_WIDTH);
+        m_Histogram[Math.max(0, Math.min(BINS - 1, bin))]++;
+
+    }
+
+    /**
+     * Adds the counts of another instance to this one
+     */
+    public synchronized void merge(AteiDiagnostics other) {
+
+        m_lCells += other.m_lCells;
+        m_lNoData += other.m_lNoData;
+        for (int i = 0; i < NAMES.length; i++) {
+            for (int c = 0; c < CLASSES; c++) {
+                m_ClassCounts[i][c] += other.m_ClassCounts[i][c];
+            }
+            m_TermMin[i] = Math.min(m_TermMin[i], other.m_TermMin[i]);
+            m_TermMax[i] = Math.max(m_TermMax[i], other.m_TermMax[i]);
+        }
+        for (int b = 0; b < BINS; b++) {
+            m_Histogram[b] += other.m_Histogram[b];
+        }
+
+    }
+
+    /**
+     * @param input one of SLOPE, ASPECT, CURVATURE or LANDCLASS
+     * @param c the class, from 0 to 3
+     * @return the number of cells of the class
+     */
+    public synchronized long getClassCount(int input, int c) {
+        return m_ClassCounts[input][c];
+    }
+
+    /**
+     * @return the number of cells, nodata included
+     */
+    public synchronized long getCellCount() {
+        return m_lCells;
+    }
+
+    public synchronized long getNoDataCount() {
+        return m_lNoData;
+    }
+
+    /**
+     * @return the number of cells by index, bin i holding the index i * BIN_WIDTH
+     */
+    public synchronized long[] getHistogram() {
+        return m_Histogram.clone();
+    }
+
+    /**
+     * @param input one of SLOPE, ASPECT, CURVATURE or LANDCLASS
+     * @return the smallest weighted term of the input, +Infinity without data
+     */
+    public synchronized double getTermMin(int input) {
+        return m_TermMin[input];
+    }
+
+    /**
+     * @param input one of SLOPE, ASPECT, CURVATURE or LANDCLASS
+     * @return the largest weighted term of the input, -Infinity without data
+     */
+    public synchronized double getTermMax(int input) {
+        return m_TermMax[input];
+    }
+
+    @Override
+    public synchronized String toString() {
+
+        StringBuilder sb = new StringBuilder("cells=").append(m_lCells).append(" nodata=").append(m_lNoData);
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append(' ').append(NAMES[i]).append("{classes=").append(Arrays.toString(m_ClassCounts[i]));
+            if (m_TermMin[i] <= m_TermMax[i]) {
+                sb.append(" term=[").append(m_TermMin[i]).append(',').append(m_TermMax[i]).append(']');
+            }
+            sb.append('}');
+        }
+        sb.append(" histogram={");
+        boolean first = true;
+        for (int b = 0; b < BINS; b++) {
+            if (m_Histogram[b] > 0) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                sb.append(String.format(Locale.ROOT, "%.2f", b * BIN_WIDTH)).append('=').append(m_Histogram[b]);
+                first = false;
+            }
+        }
+        return sb.append('}').toString();
+
+    }
+
+}
@@ -2,19 +2,38 @@ package org.geoavalanche.alg.avalanche;
 
 import es.unex.sextante.core.AnalysisExtent;
 import es.unex.sextante.core.GeoAlgorithm;
-import es.unex.sextante.core.ParametersSet;
 import es.unex.sextante.core.Sextante;
 import es.unex.sextante.dataObjects.IRasterLayer;
 import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
 import es.unex.sextante.exceptions.RepeatedParameterNameException;
-import es.unex.sextante.gridCategorical.reclassify.ReclassifyAlgorithm;
-import es.unex.sextante.parameters.FixedTableModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
  * Avalanche Terrain Exposure based on a reclassification of slope, aspect, curvature
  * and land use
  *
+ * The rows of the index are computed in bands of a few rows. Given an executor,
+ * the bands run on its threads; the cells do not depend on each other, so the
+ * result is the same as when they run one after the other on the calling
+ * thread, which keeps reporting the progress and watching for cancellation.
+ * The bands share the input and output layers: FloatRasterLayers are read and
+ * written through their arrays, each band in its own rows, while the other
+ * layers, such as GTRasterLayers, are not known to be thread safe and are read
+ * or written by one band at a time.
+ *
+ * The inputs of a row are reclassified first, then combined into the index
+ * by a WeightedSumKernel.
+ *
+ * Every execution fills an AteiDiagnostics, logged once at the end. The
+ * values of single cells are only logged when asked for with a sampling
+ * interval.
+ *
  */
 public class AvalancheTerrainExposureAlgorithm extends GeoAlgorithm
 {
@@ -29,14 +48,152 @@ public class AvalancheTerrainExposureAlgorithm extends GeoAlgorithm
     public static final String  CURVATURE   = "CURVATURE";
     public static final String  LANDCLASS   = "LANDCLASS";
     public static final String  ATEI        = "ATEI";
+    public static final String  DEM         = "DEM";
+    
+    private static final int    ROWS_PER_BAND = 16;
+
+    /** The index is a multiple of 0.05, stored as code in quantized mode */
+    public static final double  QUANTIZED_SCALE  = 0.05;
+    public static final double  QUANTIZED_OFFSET = 0.0;
     
     private static final Logger LOG = Logger.getLogger(AvalancheTerrainExposureAlgorithm.class.getName());
     
+    /*
+     * Reclassification rules of the inputs, as {min, max, new value} with
+     * min < value <= max, the first matching row wins
+     */
+    
+    //SLOPE CLASSES {0,25,1},{25,45,3},{45,60,1},{60,90,0}
+    private static final ReclassificationTable SLOPE_CLASSES = ReclassificationTable.compile(new double[][] {
+        {0.0, 25.0, 1.0},
+        {25.0, 45.0, 3.0},
+        {45.0, 60.0, 1.0},
+        {60.0, 90.0, 0.0},
+        //nodata
+        {-99999.0, 0.0, 0.0},
+        {90.0, 9999.0, 0.0}
+    });
+    
+    //ASPECT CLASSES {0.0,45,3},{45.0,135.0,2},{135.0,315.0,1},{315.0,360.0,3}
+    private static final ReclassificationTable ASPECT_CLASSES = ReclassificationTable.compile(new double[][] {
+        //NORTH
+        {0.0, 45.0, 3.0},
+        //EAST
+        {45.0, 135.0, 2.0},
+        //SOUTH - WEST
+        {135.0, 315.0, 1.0},
+        //NORTH
+        {315.0, 360.0, 3.0},
+        //nodata
+        {-99999.0, 0.0, 0.0},
+        {360.0, 99999.0, 0.0}
+    });
+    
+    //CURVATURE CLASSES {0.0,1.0,3},{-1.0,0.0,1}
+    private static final ReclassificationTable CURVATURE_CLASSES = ReclassificationTable.compile(new double[][] {
+        //CONCAVE
+        {0.0, 1.0, 3.0},
+        //CONVEX
+        {-1.0, 0.0, 1.0},
+        //nodata
+        {-9999.0, -1.0, 0.0},
+        {1.0, 9999.0, 0.0}
+    });
+    
+    //LAND CLASSES FROM COPERNICUS, see clc_legend_ATEI
+    private static final ReclassificationTable LANDCLASS_CLASSES = ReclassificationTable.compileCodes(new double[][] {
+        //Continuous urban fabric/Discontinuous urban fabric/Industrial or commercial units
+        {0.0, 3.0, 0.0},
+        //Road and rail networks and associated land
+        {3.0, 4.0, 1.0},
+        //Port areas/Airports/Mineral extraction sites/Dump sites/Construction sites/Green urban areas
+        //Sport and leisure facilities/Non-irrigated arable land/Permanently irrigated land/Rice fields/
+        //Vineyards/Fruit trees and berry plantations/Olive groves/
+        {4.0, 17.0, 0.0},
+        //Pastures
+        {17.0, 18.0, 2.0},
+        //Annual crops associated with permanent crops/Complex cultivation patterns/
+        {18.0, 20.0, 0.0},
+        //Land principally occupied by agriculture with significant areas of natural vegetation/
+        //Agro-forestry areas/Broad-leaved forest/Coniferous forest/Mixed forest
+        {20.0, 25.0, 1.0},
+        //Natural grasslands
+        {25.0, 26.0, 3.0},
+        //Moors and heathland
+        {26.0, 27.0, 2.0},
+        //Sclerophyllous vegetation
+        {27.0, 28.0, 3.0},
+        //Transitional woodland-shrub
+        {28.0, 29.0, 2.0},
+        //Beaches - dunes - sands
+        {29.0, 30.0, 0.0},
+        //Bare rocks
+        {30.0, 31.0, 2.0},
+        //Sparsely vegetated areas
+        {31.0, 32.0, 3.0},
+        //Burnt areas
+        {32.0, 33.0, 0.0},
+        //Glaciers and perpetual snow
+        {33.0, 34.0, 3.0},
+        //Inland marshes/Peat bogs/
+        {34.0, 36.0, 1.0},
+        //Salt marshes/Salines/Intertidal flats/Water courses/Water bodies/Coastal lagoons
+        //Estuaries/Sea and ocean/NODATA/UNCLASSIFIED LAND SURFACE/UNCLASSIFIED WATER BODIES
+        //UNCLASSIFIED
+        {36.0, 255.0, 0.0},
+        //nodata
+        {-99999.0, 0.0, 0.0},
+        {255.0, 99999.0, 0.0}
+    });
+    
     private IRasterLayer        m_Slope                 = null;
     private IRasterLayer        m_Aspect                = null;
     private IRasterLayer        m_Curvature             = null;
     private IRasterLayer        m_LandClassification    = null;
     private IRasterLayer        m_AvalancheTerrainExposureIndex;
+    private ExecutorService     m_Executor              = null;
+    private int                 m_iDebugSampling        = 0;
+    private boolean             m_bQuantized            = false;
+    private WeightedSumKernel   m_Kernel                = new WeightedSumKernel(SLOPE_COEFF, ASPECT_COEFF, CURVAT_COEFF, LCLASS_COEFF);
+    private AteiDiagnostics     m_Diagnostics           = new AteiDiagnostics();
+
+    /**
+     * Sets the executor running the bands of rows in parallel
+     *
+     * @param executor the executor, null to compute the rows on the calling thread
+     */
+    public void setExecutor(ExecutorService executor) {
+        m_Executor = executor;
+    }
+
+    /**
+     * Logs the inputs and the index of one cell every so many cells
+     *
+     * @param cells the sampling interval in cells, 0 to log no cell
+     */
+    public void setDebugSampling(int cells) {
+        m_iDebugSampling = Math.max(0, cells);
+    }
+
+    /**
+     * Creates the index as an 8-bit raster, holding the code of the index
+     * with the scale and offset QUANTIZED_SCALE and QUANTIZED_OFFSET
+     *
+     * The output factory has to create ByteRasterLayers for the byte data
+     * type, the index is created as float otherwise.
+     *
+     * @param quantized true to create the index as an 8-bit raster
+     */
+    public void setQuantized(boolean quantized) {
+        m_bQuantized = quantized;
+    }
+
+    /**
+     * @return the diagnostics of the last execution
+     */
+    public AteiDiagnostics getDiagnostics() {
+        return m_Diagnostics;
+    }
 
     @Override
     public void defineCharacteristics() {
@@ -46,10 +203,12 @@ public class AvalancheTerrainExposureAlgorithm extends GeoAlgorithm
         setUserCanDefineAnalysisExtent(true);
         
         try {
-            m_Parameters.addInputRasterLayer(SLOPE, Sextante.getText("Slope"), true);
-            m_Parameters.addInputRasterLayer(ASPECT, Sextante.getText("Aspect"), true);
-            m_Parameters.addInputRasterLayer(CURVATURE, Sextante.getText("Curvature"), true);
+            // slope, aspect and curvature are not needed when the DEM is given
+            m_Parameters.addInputRasterLayer(SLOPE, Sextante.getText("Slope"), false);
+            m_Parameters.addInputRasterLayer(ASPECT, Sextante.getText("Aspect"), false);
+            m_Parameters.addInputRasterLayer(CURVATURE, Sextante.getText("Curvature"), false);
             m_Parameters.addInputRasterLayer(LANDCLASS, Sextante.getText("Land_Classification"), true);
+            m_Parameters.addInputRasterLayer(DEM, Sextante.getText("Elevation"), false);
             addOutputRasterLayer(ATEI, Sextante.getText("Avalanche_Terrain_Exposure_Index__ATEI"));
         } catch (final RepeatedParameterNameException e) {
             Sextante.addErrorToLog(e);
@@ -60,22 +219,20 @@ public class AvalancheTerrainExposureAlgorithm extends GeoAlgorithm
     @Override
     public boolean processAlgorithm() throws GeoAlgorithmExecutionException {
         
-        int x, y;
         int iNX, iNY;
         
-        //Applied initial reclassifications for ATEI algorithm
-        IRasterLayer c_Slope = getATEIReclassification(m_Parameters.getParameterValueAsRasterLayer(SLOPE), m_Parameters.getParameterValueAsRasterLayer(SLOPE).getLayerGridExtent(), SLOPE);
-        IRasterLayer c_Aspect = getATEIReclassification(m_Parameters.getParameterValueAsRasterLayer(ASPECT), m_Parameters.getParameterValueAsRasterLayer(ASPECT).getLayerGridExtent(), ASPECT);
-        IRasterLayer c_Curvature = getATEIReclassification(m_Parameters.getParameterValueAsRasterLayer(CURVATURE), m_Parameters.getParameterValueAsRasterLayer(CURVATURE).getLayerGridExtent(), CURVATURE);
-        IRasterLayer c_LandClassification = getATEIReclassification(m_Parameters.getParameterValueAsRasterLayer(LANDCLASS), m_Parameters.getParameterValueAsRasterLayer(LANDCLASS).getLayerGridExtent(), LANDCLASS);
+        final IRasterLayer dem = m_Parameters.getParameterValueAsRasterLayer(DEM);
+        if (dem != null) {
+            return processFromDEM(dem);
+        }
         
-        m_Slope = c_Slope;
-        m_Aspect = c_Aspect;
-        m_Curvature = c_Curvature;
-        m_LandClassification = c_LandClassification;
+        //the inputs are reclassified cell by cell with the compiled tables
+        m_Slope = m_Parameters.getParameterValueAsRasterLayer(SLOPE);
+        m_Aspect = m_Parameters.getParameterValueAsRasterLayer(ASPECT);
+        m_Curvature = m_Parameters.getParameterValueAsRasterLayer(CURVATURE);
+        m_LandClassification = m_Parameters.getParameterValueAsRasterLayer(LANDCLASS);
         
-        m_AvalancheTerrainExposureIndex = getNewRasterLayer(ATEI, Sextante.getText("Avalanche_Terrain_Exposure_Index__ATEI"),
-               IRasterLayer.RASTER_DATA_TYPE_FLOAT);
+        m_AvalancheTerrainExposureIndex = getNewIndexLayer();
         
         final AnalysisExtent extent = m_AvalancheTerrainExposureIndex.getWindowGridExtent();
         m_Slope.setWindowExtent(extent);
@@ -86,270 +243,293 @@ public class AvalancheTerrainExposureAlgorithm extends GeoAlgorithm
         iNX = m_Slope.getNX();
         iNY = m_Slope.getNY();
         
-        for (y = 0; (y < iNY) && setProgress(y, iNY); y++) {
-         for (x = 0; x < iNX; x++) {
-            calculateIndices(x, y);
-         }
-      }
-
-      return !m_Task.isCanceled();
-   }
-
-    private void calculateIndices(int x, int y) {
-        
-        /*
-         * 0 - NO RISK
-         * 1 - LOW RISK
-         * 2 - MODERATE RISK
-         * 3 - HIGH RISK
-        */
-        
-        double dSlope     = m_Slope.getCellValueAsDouble(x, y);
-        double dAspect    = m_Aspect.getCellValueAsDouble(x, y);
-        double dCurvature = m_Curvature.getCellValueAsDouble(x, y);
         // Assuming base value 0 for land classification to do not break algorithm
-        double dLandClass = 0;
-        
         if (m_LandClassification == null) {
             LOG.severe("Land Use classification layer is null");
-        } else
-            dLandClass = m_LandClassification.getCellValueAsDouble(x, y);
-        double dATEI      = 0;
-        
-        // TODO fill nodata with reasonable value
-        if (m_Slope.isNoDataValue(dSlope) || m_Aspect.isNoDataValue(dAspect) || 
-                m_Curvature.isNoDataValue(dCurvature) || m_LandClassification.isNoDataValue(dLandClass)) {
-            m_AvalancheTerrainExposureIndex.setNoData(x, y);
-         }
-         else {
+        }
+        
+        return processRows(iNY, (from, to, diagnostics) -> {
+            // the inputs are read a row at a time, straight from the arrays of FloatRasterLayers
+            final float[] slopeRow     = new float[iNX];
+            final float[] aspectRow    = new float[iNX];
+            final float[] curvatureRow = new float[iNX];
+            final float[] lclassRow    = new float[iNX];
+            final float[][] classes    = new float[AteiDiagnostics.INPUTS][iNX];
+            final float[] index        = new float[iNX];
             
-            dATEI = ((dSlope * SLOPE_COEFF) + (dAspect * ASPECT_COEFF) + (dCurvature * CURVAT_COEFF) + (dLandClass * LCLASS_COEFF));
-            LOG.info("dSlope * SLOPE_COEFF="+(dSlope * SLOPE_COEFF)+"dAspect * ASPECT_COEFF="+(dAspect * ASPECT_COEFF)+"dCurvature * CURVAT_COEFF="+(dCurvature * CURVAT_COEFF)+
-                    "dLandClass * LCLASS_COEFF="+(dLandClass * LCLASS_COEFF));
-            m_AvalancheTerrainExposureIndex.setCellValue(x, y, dATEI);
-            LOG.info("The value of cell x,y="+x+","+y+" is "+dATEI);
-         }
+            for (int y = from; y < to; y++) {
+                getRow(m_Slope, y, slopeRow);
+                getRow(m_Aspect, y, aspectRow);
+                getRow(m_Curvature, y, curvatureRow);
+                if (m_LandClassification != null) {
+                    getRow(m_LandClassification, y, lclassRow);
+                }
+                for (int x = 0; x < iNX; x++) {
+                    // TODO fill nodata with reasonable value
+                    if (m_Slope.isNoDataValue(slopeRow[x]) || m_Aspect.isNoDataValue(aspectRow[x]) || 
+                            m_Curvature.isNoDataValue(curvatureRow[x]) || m_LandClassification.isNoDataValue(lclassRow[x])) {
+                        classes[AteiDiagnostics.SLOPE][x] = Float.NaN;
+                    } else {
+                        classify(classes, x, slopeRow[x], aspectRow[x], curvatureRow[x], lclassRow[x]);
+                    }
+                }
+                setRow(y, classes, index, diagnostics);
+            }
+        });
+    }
+
+    /**
+     * Creates the output layer, as codes of 8 bits in quantized mode
+     */
+    private IRasterLayer getNewIndexLayer() throws GeoAlgorithmExecutionException {
+
+        final String name = Sextante.getText("Avalanche_Terrain_Exposure_Index__ATEI");
+        if (m_bQuantized) {
+            IRasterLayer layer = getNewRasterLayer(ATEI, name, IRasterLayer.RASTER_DATA_TYPE_BYTE);
+            if (layer instanceof ByteRasterLayer) {
+                ((ByteRasterLayer) layer).setTransform(QUANTIZED_SCALE, QUANTIZED_OFFSET);
+                return layer;
+            }
+            // a plain byte layer would truncate the index
+            LOG.warning("the output factory creates no ByteRasterLayer, the index is not quantized");
+        }
+        return getNewRasterLayer(ATEI, name, IRasterLayer.RASTER_DATA_TYPE_FLOAT);
+
+    }
+
+    /**
+     * Computes the rows from the first one included to the last one excluded
+     */
+    private interface RowBand {
+        void process(int from, int to, AteiDiagnostics diagnostics);
+    }
+    
+    /**
+     * Computes all the rows band by band, on the threads of the executor if any
+     *
+     * @param iNY the number of rows
+     * @param band computes a band of rows
+     * @return false if the execution was canceled
+     * @throws GeoAlgorithmExecutionException if a band failed
+     */
+    private boolean processRows(int iNY, RowBand band) throws GeoAlgorithmExecutionException {
+        
+        m_Diagnostics = new AteiDiagnostics();
+        boolean done = processBands(iNY, (from, to, diagnostics) -> {
+            // every band counts its own cells
+            AteiDiagnostics bandDiagnostics = new AteiDiagnostics();
+            band.process(from, to, bandDiagnostics);
+            diagnostics.merge(bandDiagnostics);
+        });
+        LOG.info(getName()+" "+m_Diagnostics);
+        return done;
         
     }
     
-    private IRasterLayer getATEIReclassification(IRasterLayer input, AnalysisExtent gridExt, String type) throws GeoAlgorithmExecutionException {
-        
-        FixedTableModel lut = null;
-        final String    SLOPE                       = "SLOPE";
-        final String    ASPECT                      = "ASPECT";
-        final String    CURVATURE                   = "CURVATURE";
-        final String    LANDCLASS                   = "LANDCLASS";
-        final int       METHOD_LOWER_THAN           = ReclassifyAlgorithm.METHOD_LOWER_THAN;
-        final int       METHOD_LOWER_THAN_OR_EQUAL  = ReclassifyAlgorithm.METHOD_LOWER_THAN_OR_EQUAL;
-        
-        
-        String[] cols = {"Min_value","Max_value","New_value"};
-        
-        //SLOPE CLASSES {0,25,1},{25,45,3},{45,60,1},{60,90,0}
-        FixedTableModel slopeTable = new FixedTableModel(cols, 6, true);
-        //first row
-        slopeTable.setValueAt(0.0, 0, 0);
-        slopeTable.setValueAt(25.0, 0, 1);
-        slopeTable.setValueAt(1.0, 0, 2);
-        //second row
-        slopeTable.setValueAt(25.0, 1, 0);
-        slopeTable.setValueAt(45.0, 1, 1);
-        slopeTable.setValueAt(3.0, 1, 2);
-        //third row
-        slopeTable.setValueAt(45.0, 2, 0);
-        slopeTable.setValueAt(60.0, 2, 1);
-        slopeTable.setValueAt(1.0, 2, 2);
-        //fourth row
-        slopeTable.setValueAt(60.0, 3, 0);
-        slopeTable.setValueAt(90.0, 3, 1);
-        slopeTable.setValueAt(0.0, 3, 2);
-        //nodata
-        slopeTable.setValueAt(-99999.0, 4, 0);
-        slopeTable.setValueAt(0.0, 4, 1);
-        slopeTable.setValueAt(0.0, 4, 2);
-        //more nodata
-        slopeTable.setValueAt(90.0, 5, 0);
-        slopeTable.setValueAt(9999.0, 5, 1);
-        slopeTable.setValueAt(0.0, 5, 2);
-        LOG.info("slopeTable is "+slopeTable.toString());
-        
-        //ASPECT CLASSES {0.0,45,3},{45.0,135.0,2},{135.0,315.0,1},{315.0,360.0,3}
-        FixedTableModel aspectTable = new FixedTableModel(cols, 6, true);
-        //NORTH
-        aspectTable.setValueAt(0.0, 0, 0);
-        aspectTable.setValueAt(45.0, 0, 1);
-        aspectTable.setValueAt(3.0, 0, 2);
-        //EAST
-        aspectTable.setValueAt(45.0, 1, 0);
-        aspectTable.setValueAt(135.0, 1, 1);
-        aspectTable.setValueAt(2.0, 1, 2);
-        //SOUTH - WEST
-        aspectTable.setValueAt(135.0, 2, 0);
-        aspectTable.setValueAt(315.0, 2, 1);
-        aspectTable.setValueAt(1.0, 2, 2);
-        //NORTH
-        aspectTable.setValueAt(315.0, 3, 0);
-        aspectTable.setValueAt(360.0, 3, 1);
-        aspectTable.setValueAt(3.0, 3, 2);
-        //nodata
-        aspectTable.setValueAt(-99999.0, 4, 0);
-        aspectTable.setValueAt(0.0, 4, 1);
-        aspectTable.setValueAt(0.0, 4, 2);
-        //more nodata
-        aspectTable.setValueAt(360.0, 5, 0);
-        aspectTable.setValueAt(99999.0, 5, 1);
-        aspectTable.setValueAt(0.0, 5, 2);
-        LOG.info("aspectTable is "+aspectTable.toString());
-        
-        //CURVATURE CLASSES {0.0,1.0,3},{-1.0,0.0,1}
-        FixedTableModel curvTable = new FixedTableModel(cols, 4, true);
-        //CONCAVE
-        curvTable.setValueAt(0.0, 1, 0);
-        curvTable.setValueAt(1.0, 1, 1);
-        curvTable.setValueAt(3.0, 1, 2);
-        //CONVEX
-        curvTable.setValueAt(-1.0, 2, 0);
-        curvTable.setValueAt(0.0, 2, 1);
-        curvTable.setValueAt(1.0, 2, 2);
-        //nodata
-        curvTable.setValueAt(-9999.0, 3, 0);
-        curvTable.setValueAt(-1.0, 3, 1);
-        curvTable.setValueAt(0.0, 3, 2);
-        //more nodata
-        curvTable.setValueAt(1.0, 4, 0);
-        curvTable.setValueAt(9999.0, 4, 1);
-        curvTable.setValueAt(0.0, 4, 2);
-        
-        LOG.info("curvTable is "+curvTable.toString());
-        
-        //LAND CLASSES FROM COPERNICUS {,,},{,,}, see clc_legend_ATEI
-        FixedTableModel lclassTable = new FixedTableModel(cols, 18, true);
-        //Continuous urban fabric/Discontinuous urban fabric/Industrial or commercial units
-        lclassTable.setValueAt(0.0, 1, 0);
-        lclassTable.setValueAt(3.0, 1, 1);
-        lclassTable.setValueAt(0.0, 1, 2);
-        //Road and rail networks and associated land
-        lclassTable.setValueAt(3.0, 2, 0);
-        lclassTable.setValueAt(4.0, 2, 1);
-        lclassTable.setValueAt(1.0, 2, 2);
-        //Port areas/Airports/Mineral extraction sites/Dump sites/Construction sites/Green urban areas
-        //Sport and leisure facilities/Non-irrigated arable land/Permanently irrigated land/Rice fields/
-        //Vineyards/Fruit trees and berry plantations/Olive groves/
-        lclassTable.setValueAt(4.0, 3, 0);
-        lclassTable.setValueAt(17.0, 3, 1);
-        lclassTable.setValueAt(0.0, 3, 2);
-        //Pastures
-        lclassTable.setValueAt(17.0, 4, 0);
-        lclassTable.setValueAt(18.0, 4, 1);
-        lclassTable.setValueAt(2.0, 4, 2);
-        //Annual crops associated with permanent crops/Complex cultivation patterns/
-        lclassTable.setValueAt(18.0, 5, 0);
-        lclassTable.setValueAt(20.0, 5, 1);
-        lclassTable.setValueAt(0.0, 5, 2);
-        //Land principally occupied by agriculture with significant areas of natural vegetation/
-        //Agro-forestry areas/Broad-leaved forest/Coniferous forest/Mixed forest
-        lclassTable.setValueAt(20.0, 6, 0);
-        lclassTable.setValueAt(25.0, 6, 1);
-        lclassTable.setValueAt(1.0, 6, 2);
-        //Natural grasslands
-        lclassTable.setValueAt(25.0, 7, 0);
-        lclassTable.setValueAt(26.0, 7, 1);
-        lclassTable.setValueAt(3.0, 7, 2);
-        //Moors and heathland
-        lclassTable.setValueAt(26.0, 8, 0);
-        lclassTable.setValueAt(27.0, 8, 1);
-        lclassTable.setValueAt(2.0, 8, 2);
-        //Sclerophyllous vegetation
-        lclassTable.setValueAt(27.0, 9, 0);
-        lclassTable.setValueAt(28.0, 9, 1);
-        lclassTable.setValueAt(3.0, 9, 2);
-        //Transitional woodland-shrub
-        lclassTable.setValueAt(28.0, 10, 0);
-        lclassTable.setValueAt(29.0, 10, 1);
-        lclassTable.setValueAt(2.0, 10, 2);
-        //Beaches - dunes - sands
-        lclassTable.setValueAt(29.0, 10, 0);
-        lclassTable.setValueAt(30.0, 10, 1);
-        lclassTable.setValueAt(0.0, 10, 2);
-        //Bare rocks
-        lclassTable.setValueAt(30.0, 11, 0);
-        lclassTable.setValueAt(31.0, 11, 1);
-        lclassTable.setValueAt(2.0, 11, 2);
-        //Sparsely vegetated areas
-        lclassTable.setValueAt(31.0, 12, 0);
-        lclassTable.setValueAt(32.0, 12, 1);
-        lclassTable.setValueAt(3.0, 12, 2);
-        //Burnt areas
-        lclassTable.setValueAt(32.0, 13, 0);
-        lclassTable.setValueAt(33.0, 13, 1);
-        lclassTable.setValueAt(0.0, 13, 2);
-        //Glaciers and perpetual snow
-        lclassTable.setValueAt(33.0, 14, 0);
-        lclassTable.setValueAt(34.0, 14, 1);
-        lclassTable.setValueAt(3.0, 14, 2);
-        //Inland marshes/Peat bogs/
-        lclassTable.setValueAt(34.0, 15, 0);
-        lclassTable.setValueAt(36.0, 15, 1);
-        lclassTable.setValueAt(1.0, 15, 2);
-        //Salt marshes/Salines/Intertidal flats/Water courses/Water bodies/Coastal lagoons
-        //Estuaries/Sea and ocean/NODATA/UNCLASSIFIED LAND SURFACE/UNCLASSIFIED WATER BODIES
-        //UNCLASSIFIED
-        lclassTable.setValueAt(36.0, 16, 0);
-        lclassTable.setValueAt(255.0, 16, 1);
-        lclassTable.setValueAt(0.0, 16, 2);
-        //nodata
-        curvTable.setValueAt(-99999.0, 17, 0);
-        curvTable.setValueAt(0.0, 17, 1);
-        curvTable.setValueAt(0.0, 17, 2);
-        //more nodata
-        curvTable.setValueAt(255.0, 18, 0);
-        curvTable.setValueAt(99999.0, 18, 1);
-        curvTable.setValueAt(0.0, 18, 2);
-        LOG.info("lclassTable is "+lclassTable.toString());
-        
-        switch (type) {
-            case SLOPE:
-                lut = slopeTable;
-                LOG.info("The table model selected is related to "+type);
-                break;
-            case ASPECT:
-                lut = aspectTable;
-                LOG.info("The table model selected is related to "+type);
-                break;
-            case CURVATURE:
-                lut = curvTable;
-                LOG.info("The table model selected is related to "+type);
-                break;
-            case LANDCLASS:
-                lut = lclassTable;
-                LOG.info("The table model selected is related to "+type);
-                break;
-            default:
-                LOG.info("The table model selected is related to "+type);
-                break;
+    /**
+     * Runs the bands, on the calling thread or on the executor
+     */
+    private boolean processBands(int iNY, RowBand band) throws GeoAlgorithmExecutionException {
+        
+        final AteiDiagnostics diagnostics = m_Diagnostics;
+        if (m_Executor == null || iNY <= ROWS_PER_BAND) {
+            for (int y = 0; (y < iNY) && setProgress(y, iNY); y += ROWS_PER_BAND) {
+                band.process(y, Math.min(iNY, y + ROWS_PER_BAND), diagnostics);
+            }
+            return !m_Task.isCanceled();
         }
         
-        input.setWindowExtent(gridExt);
+        final AtomicBoolean canceled = new AtomicBoolean();
+        final List<Future<?>> bands = new ArrayList<Future<?>>();
+        for (int y = 0; y < iNY; y += ROWS_PER_BAND) {
+            final int from = y;
+            final int to = Math.min(iNY, y + ROWS_PER_BAND);
+            bands.add(m_Executor.submit(() -> {
+                if (!canceled.get()) {
+                    band.process(from, to, diagnostics);
+                }
+            }));
+        }
         
-        ReclassifyAlgorithm reclassAlg = new ReclassifyAlgorithm();
-        reclassAlg.setAnalysisExtent(gridExt);
-        ParametersSet params = reclassAlg.getParameters();
-        params.getParameter(ReclassifyAlgorithm.INPUT).setParameterValue(input);
-        params.getParameter(ReclassifyAlgorithm.LUT).setParameterValue(lut);
-        params.getParameter(ReclassifyAlgorithm.METHOD).setParameterValue(METHOD_LOWER_THAN_OR_EQUAL);
+        // only this thread reports the progress, in the order of the bands
+        try {
+            int done = 0;
+            for (Future<?> f : bands) {
+                f.get();
+                done = Math.min(iNY, done + ROWS_PER_BAND);
+                if (!setProgress(done, iNY)) {
+                    canceled.set(true);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeoAlgorithmExecutionException("interrupted while computing the rows of "+getName());
+        } catch (ExecutionException e) {
+            throw new GeoAlgorithmExecutionException("failed to compute the rows of "+getName()+": "+e.getCause());
+        } finally {
+            canceled.set(true);
+            for (Future<?> f : bands) {
+                f.cancel(false);
+            }
+        }
         
-        reclassAlg.execute(m_Task, m_OutputFactory);
-        final IRasterLayer result = (IRasterLayer) reclassAlg.getOutputObjects().getOutput(ReclassifyAlgorithm.RECLASS).getOutputObject();
-        result.open();
+        return !m_Task.isCanceled();
         
-        if (m_Task.isCanceled()) {
-            
-            LOG.info("The execution of the following algorithm has been cancelled ---> "+reclassAlg.getName());
-            return null;
+    }
+
+    /**
+     * Reclassifies the inputs of a cell, NaN for an input matching no class
+     *
+     *  0 - NO RISK
+     *  1 - LOW RISK
+     *  2 - MODERATE RISK
+     *  3 - HIGH RISK
+     */
+    private static void classify(float[][] classes, int x, double dSlope, double dAspect, double dCurvature, double dLandClass) {
+        
+        classes[AteiDiagnostics.SLOPE][x]     = (float) SLOPE_CLASSES.lookup(dSlope);
+        classes[AteiDiagnostics.ASPECT][x]    = (float) ASPECT_CLASSES.lookup(dAspect);
+        classes[AteiDiagnostics.CURVATURE][x] = (float) CURVATURE_CLASSES.lookup(dCurvature);
+        classes[AteiDiagnostics.LANDCLASS][x] = (float) LANDCLASS_CLASSES.lookup(dLandClass);
+        
+    }
+    
+    /**
+     * Combines the classes of a row into the index and writes it, nodata where
+     * any class is NaN
+     */
+    private void setRow(int y, float[][] classes, float[] index, AteiDiagnostics diagnostics) {
+        
+        final int iNX = index.length;
+        final float noData = (float) m_AvalancheTerrainExposureIndex.getNoDataValue();
+        m_Kernel.combine(classes[AteiDiagnostics.SLOPE], classes[AteiDiagnostics.ASPECT],
+                classes[AteiDiagnostics.CURVATURE], classes[AteiDiagnostics.LANDCLASS], index, iNX);
+        
+        for (int x = 0; x < iNX; x++) {
+            if (Float.isNaN(index[x])) {
+                index[x] = noData;
+                diagnostics.addNoData();
+                continue;
+            }
+            final double dSlopeTerm     = classes[AteiDiagnostics.SLOPE][x] * SLOPE_COEFF;
+            final double dAspectTerm    = classes[AteiDiagnostics.ASPECT][x] * ASPECT_COEFF;
+            final double dCurvatureTerm = classes[AteiDiagnostics.CURVATURE][x] * CURVAT_COEFF;
+            final double dLandClassTerm = classes[AteiDiagnostics.LANDCLASS][x] * LCLASS_COEFF;
+            diagnostics.addInput(AteiDiagnostics.SLOPE, classes[AteiDiagnostics.SLOPE][x], dSlopeTerm);
+            diagnostics.addInput(AteiDiagnostics.ASPECT, classes[AteiDiagnostics.ASPECT][x], dAspectTerm);
+            diagnostics.addInput(AteiDiagnostics.CURVATURE, classes[AteiDiagnostics.CURVATURE][x], dCurvatureTerm);
+            diagnostics.addInput(AteiDiagnostics.LANDCLASS, classes[AteiDiagnostics.LANDCLASS][x], dLandClassTerm);
+            diagnostics.addIndex(index[x]);
             
+            if (m_iDebugSampling > 0 && ((long) y * iNX + x) % m_iDebugSampling == 0) {
+                LOG.info("dSlope * SLOPE_COEFF="+dSlopeTerm+" dAspect * ASPECT_COEFF="+dAspectTerm+" dCurvature * CURVAT_COEFF="+dCurvatureTerm+
+                        " dLandClass * LCLASS_COEFF="+dLandClassTerm+", the value of cell x,y="+x+","+y+" is "+index[x]);
+            }
+        }
+        
+        if (m_AvalancheTerrainExposureIndex instanceof FloatRasterLayer) {
+            ((FloatRasterLayer) m_AvalancheTerrainExposureIndex).setRow(y, index);
+        } else {
+            synchronized (m_AvalancheTerrainExposureIndex) {
+                for (int x = 0; x < iNX; x++) {
+                    m_AvalancheTerrainExposureIndex.setCellValue(x, y, index[x]);
+                }
+            }
+        }
+        
+    }
+    
+    /**
+     * Reads a row of an input through its window, by one band at a time
+     * unless it is a FloatRasterLayer
+     */
+    private static void getRow(IRasterLayer layer, int y, float[] row) {
+        
+        if (layer instanceof FloatRasterLayer) {
+            FloatRasterLayer.getRow(layer, y, row);
+            return;
+        }
+        synchronized (layer) {
+            FloatRasterLayer.getRow(layer, y, row);
+        }
+        
+    }
+    
+    /**
+     * Reads a row of the DEM through its window with one more cell on both
+     * sides, by one band at a time unless it is a FloatRasterLayer
+     *
+     * @param row the cells from column -1 to column row.length - 2
+     */
+    private static void getRow(IRasterLayer layer, int y, double[] row) {
+        
+        if (layer instanceof FloatRasterLayer) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = layer.getCellValueAsDouble(x - 1, y);
+            }
+            return;
+        }
+        synchronized (layer) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = layer.getCellValueAsDouble(x - 1, y);
+            }
         }
         
-        return result;
+    }
+    
+    /**
+     * Computes the index straight from the DEM. Slope, aspect and class of curvature
+     * of each cell come from the same 3x3 window and are reclassified on the fly, so
+     * that the three derived layers are never materialized. They match the outputs
+     * of the Sextante algorithms, the index is the same either way
+     */
+    private boolean processFromDEM(IRasterLayer dem) throws GeoAlgorithmExecutionException {
+        
+        int iNX, iNY;
+        
+        m_LandClassification = m_Parameters.getParameterValueAsRasterLayer(LANDCLASS);
+        
+        m_AvalancheTerrainExposureIndex = getNewIndexLayer();
+        
+        final AnalysisExtent extent = m_AvalancheTerrainExposureIndex.getWindowGridExtent();
+        dem.setWindowExtent(extent);
+        m_LandClassification.setWindowExtent(extent);
+        
+        iNX = extent.getNX();
+        iNY = extent.getNY();
+        
+        return processRows(iNY, (from, to, diagnostics) -> {
+            final TerrainDerivatives derivatives = new TerrainDerivatives(extent.getCellSize());
+            final float[][] classes = new float[AteiDiagnostics.INPUTS][iNX];
+            final float[] index     = new float[iNX];
+            final float[] lclassRow = new float[iNX];
+            // the rows of the DEM above, of and below the current one
+            final double[][] rows = new double[3][iNX + 2];
+            getRow(dem, from - 1, rows[0]);
+            getRow(dem, from, rows[1]);
+            
+            for (int y = from; y < to; y++) {
+                getRow(dem, y + 1, rows[2]);
+                getRow(m_LandClassification, y, lclassRow);
+                for (int x = 0; x < iNX; x++) {
+                    
+                    double dLandClass = lclassRow[x];
+                    if (!derivatives.compute(rows, x, dem) || m_LandClassification.isNoDataValue(dLandClass)) {
+                        classes[AteiDiagnostics.SLOPE][x] = Float.NaN;
+                        continue;
+                    }
+                    
+                    // rounded as the float layers of the Sextante algorithms store them
+                    classify(classes, x, (float) derivatives.getSlope(), (float) derivatives.getAspect(),
+                            derivatives.getCurvatureClass(), dLandClass);
+                }
+                setRow(y, classes, index, diagnostics);
+                final double[] above = rows[0];
+                rows[0] = rows[1];
+                rows[1] = rows[2];
+                rows[2] = above;
+            }
+        });
         
     }
     
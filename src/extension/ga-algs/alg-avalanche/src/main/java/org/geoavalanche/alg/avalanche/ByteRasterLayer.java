@@ -0,0 +1,213 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.core.AnalysisExtent;
+import es.unex.sextante.outputs.IOutputChannel;
+import java.awt.Color;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import org.geotools.coverage.Category;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.util.NumberRange;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Single band FloatRasterLayer keeping its cells as 8-bit codes
+ *
+ * A value is stored as the code round((value - offset) / scale), from 0 to
+ * 254, and nodata as the code 255. The cells are read and written as values,
+ * so the layer is used as any other one by the algorithms, with a quarter of
+ * the memory of a float layer.
+ *
+ * The base data object is a GridCoverage2D of type byte sharing the codes,
+ * whose sample dimension holds the scale and the offset to get the values
+ * back, so that WCS and GeoTIFF clients are sent one byte per cell.
+ *
+ */
+public class ByteRasterLayer extends FloatRasterLayer
+{
+    /** The code of the nodata cells */
+    public static final int     NO_DATA_CODE = 255;
+
+    private byte[]              m_Codes;
+    private double              m_dScale = 1.0;
+    private double              m_dOffset = 0.0;
+    private GridCoverage2D      m_Coverage;
+
+    /**
+     * Creates a new layer with all the cells set to nodata
+     *
+     * @param name the name of the layer
+     * @param extent the extent of the layer
+     * @param channel the output channel, may be null
+     * @param crs the CoordinateReferenceSystem of the layer, may be null
+     */
+    public void create(String name, AnalysisExtent extent, IOutputChannel channel, Object crs) {
+
+        init(name, extent, channel, crs);
+        m_Codes = new byte[extent.getNX() * extent.getNY()];
+        Arrays.fill(m_Codes, (byte) NO_DATA_CODE);
+        m_Coverage = null;
+        setWindowExtent(extent);
+
+    }
+
+    /**
+     * Sets how the values are encoded, before any cell is written
+     *
+     * @param scale the step between two codes
+     * @param offset the value of the code 0
+     */
+    public void setTransform(double scale, double offset) {
+        m_dScale = scale;
+        m_dOffset = offset;
+        m_Coverage = null;
+    }
+
+    public double getScale() {
+        return m_dScale;
+    }
+
+    public double getOffset() {
+        return m_dOffset;
+    }
+
+    /**
+     * @return the codes of the cells, row by row, NO_DATA_CODE for nodata
+     */
+    public byte[] getCodes() {
+        return m_Codes;
+    }
+
+    /**
+     * @param code a code from 0 to 254
+     * @return the value of the code
+     */
+    public double decode(int code) {
+        return m_dOffset + m_dScale * code;
+    }
+
+    private byte encode(double value) {
+
+        if (Double.isNaN(value) || isNoDataValue(value)) {
+            return (byte) NO_DATA_CODE;
+        }
+        long code = Math.round((value - m_dOffset) / m_dScale);
+        return (byte) Math.max(0, Math.min(NO_DATA_CODE - 1, code));
+
+    }
+
+    private float value(byte code) {
+        int c = code & 0xFF;
+        return c == NO_DATA_CODE ? (float) getNoDataValue() : (float) decode(c);
+    }
+
+    @Override
+    protected void copyRow(int y, float[] row) {
+        final int start = y * getLayerGridExtent().getNX();
+        for (int x = 0; x < row.length; x++) {
+            row[x] = value(m_Codes[start + x]);
+        }
+    }
+
+    @Override
+    public void setRow(int y, float[] row) {
+        final int start = y * getLayerGridExtent().getNX();
+        for (int x = 0; x < row.length; x++) {
+            m_Codes[start + x] = encode(row[x]);
+        }
+    }
+
+    /**
+     * @return a copy of the values of the cells
+     */
+    @Override
+    protected float[][] getBands() {
+        float[] data = new float[m_Codes.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = value(m_Codes[i]);
+        }
+        return new float[][] { data };
+    }
+
+    @Override
+    public int getBandsCount() {
+        return 1;
+    }
+
+    @Override
+    public double getCellValueInLayerCoords(int x, int y, int band) {
+
+        final int nx = getLayerGridExtent().getNX();
+        if (x < 0 || y < 0 || x >= nx || y >= getLayerGridExtent().getNY()) {
+            return getNoDataValue();
+        }
+        return value(m_Codes[y * nx + x]);
+
+    }
+
+    @Override
+    public void setCellValue(int x, int y, int band, double value) {
+
+        final int nx = getLayerGridExtent().getNX();
+        if (x < 0 || y < 0 || x >= nx || y >= getLayerGridExtent().getNY()) {
+            return;
+        }
+        m_Codes[y * nx + x] = encode(value);
+
+    }
+
+    @Override
+    public int getDataType() {
+        return RASTER_DATA_TYPE_BYTE;
+    }
+
+    /**
+     * @return a GridCoverage2D of type byte sharing the codes of the layer
+     */
+    @Override
+    public Object getBaseDataObject() {
+        if (m_Coverage == null) {
+            m_Coverage = toCoverage();
+        }
+        return m_Coverage;
+    }
+
+    @Override
+    public void free() {
+        m_Coverage = null;
+    }
+
+    private GridCoverage2D toCoverage() {
+
+        final AnalysisExtent extent = getLayerGridExtent();
+        final int nx = extent.getNX();
+        final int ny = extent.getNY();
+        WritableRaster raster = Raster.createBandedRaster(new DataBufferByte(m_Codes, nx * ny), nx, ny, nx,
+                new int[] { 0 }, new int[] { 0 }, null);
+        ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        BufferedImage image = new BufferedImage(colorModel, raster, false, null);
+
+        Category noData = new Category("No data", new Color(0, 0, 0, 0), NO_DATA_CODE);
+        Category values = new Category(getName(), new Color[] { Color.BLACK, Color.WHITE },
+                NumberRange.create(0, true, NO_DATA_CODE, false), m_dScale, m_dOffset);
+        GridSampleDimension band = new GridSampleDimension(getName(), new Category[] { values, noData }, null);
+
+        Object crs = getCRS();
+        Envelope2D envelope = new Envelope2D(crs instanceof CoordinateReferenceSystem ? (CoordinateReferenceSystem) crs : null,
+                extent.getXMin(), extent.getYMin(), extent.getXMax() - extent.getXMin(), extent.getYMax() - extent.getYMin());
+        return new GridCoverageFactory().create(getName(), image, envelope, new GridSampleDimension[] { band }, null, null);
+
+    }
+
+}
@@ -0,0 +1,269 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.core.AnalysisExtent;
+import es.unex.sextante.dataObjects.AbstractRasterLayer;
+import es.unex.sextante.dataObjects.IRasterLayer;
+import es.unex.sextante.outputs.IOutputChannel;
+import java.awt.Color;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import org.geotools.coverage.Category;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.util.NumberRange;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Raster layer keeping its cells in a float array, one per band, row by row
+ *
+ * Reading a cell of a layer whose window is its own extent is an array access,
+ * and whole rows can be copied with getRow(). The base data object is a
+ * GridCoverage2D sharing the array, as for the layers of the GTOutputFactory.
+ * Every data type is stored as float.
+ *
+ */
+public class FloatRasterLayer extends AbstractRasterLayer
+{
+    private static final double DEFAULT_NO_DATA = -99999.0;
+
+    private String          m_sName;
+    private AnalysisExtent  m_LayerExtent;
+    private Object          m_CRS;
+    private IOutputChannel  m_Channel;
+    private float[][]       m_Data;
+    private double          m_dNoDataValue = DEFAULT_NO_DATA;
+    private boolean         m_bWindowIsLayer;
+    private GridCoverage2D  m_Coverage;
+
+    /**
+     * Creates a new layer with all the cells set to nodata
+     *
+     * @param name the name of the layer
+     * @param extent the extent of the layer
+     * @param bands the number of bands
+     * @param channel the output channel, may be null
+     * @param crs the CoordinateReferenceSystem of the layer, may be null
+     */
+    public void create(String name, AnalysisExtent extent, int bands, IOutputChannel channel, Object crs) {
+
+        init(name, extent, channel, crs);
+        m_Data = new float[Math.max(1, bands)][extent.getNX() * extent.getNY()];
+        for (float[] band : m_Data) {
+            Arrays.fill(band, (float) m_dNoDataValue);
+        }
+        setWindowExtent(extent);
+
+    }
+
+    /**
+     * Sets everything but the storage of the cells
+     */
+    protected void init(String name, AnalysisExtent extent, IOutputChannel channel, Object crs) {
+
+        m_sName = name;
+        m_LayerExtent = extent;
+        m_CRS = crs;
+        m_Channel = channel;
+        m_Coverage = null;
+
+    }
+
+    /**
+     * Copies a row of a layer, in the coordinates of its window
+     *
+     * Layers of this class read through the window are copied straight from
+     * their array, other ones cell by cell.
+     *
+     * @param layer the layer
+     * @param y the row
+     * @param row the values of the row, as long as the window
+     */
+    public static void getRow(IRasterLayer layer, int y, float[] row) {
+
+        if (layer instanceof FloatRasterLayer && ((FloatRasterLayer) layer).m_bWindowIsLayer) {
+            ((FloatRasterLayer) layer).copyRow(y, row);
+            return;
+        }
+        for (int x = 0; x < row.length; x++) {
+            row[x] = (float) layer.getCellValueAsDouble(x, y);
+        }
+
+    }
+
+    /**
+     * Copies a row of the first band, in layer coordinates
+     */
+    protected void copyRow(int y, float[] row) {
+        System.arraycopy(m_Data[0], y * m_LayerExtent.getNX(), row, 0, row.length);
+    }
+
+    /**
+     * Sets a row of the first band, in layer coordinates
+     */
+    public void setRow(int y, float[] row) {
+        System.arraycopy(row, 0, m_Data[0], y * m_LayerExtent.getNX(), row.length);
+    }
+
+    /**
+     * @return the cells of the first band, row by row
+     */
+    public float[] getData() {
+        return getBands()[0];
+    }
+
+    /**
+     * @return the cells of every band, row by row
+     */
+    protected float[][] getBands() {
+        return m_Data;
+    }
+
+    @Override
+    public void setWindowExtent(AnalysisExtent extent) {
+
+        super.setWindowExtent(extent);
+        m_bWindowIsLayer = extent.getNX() == m_LayerExtent.getNX() && extent.getNY() == m_LayerExtent.getNY()
+                && extent.getXMin() == m_LayerExtent.getXMin() && extent.getYMax() == m_LayerExtent.getYMax()
+                && extent.getCellSize() == m_LayerExtent.getCellSize();
+
+    }
+
+    public int getBandsCount() {
+        return m_Data.length;
+    }
+
+    public double getCellValueInLayerCoords(int x, int y, int band) {
+
+        if (x < 0 || y < 0 || x >= m_LayerExtent.getNX() || y >= m_LayerExtent.getNY()) {
+            return m_dNoDataValue;
+        }
+        return m_Data[band][y * m_LayerExtent.getNX() + x];
+
+    }
+
+    public void setCellValue(int x, int y, int band, double value) {
+
+        if (x < 0 || y < 0 || x >= m_LayerExtent.getNX() || y >= m_LayerExtent.getNY()) {
+            return;
+        }
+        m_Data[band][y * m_LayerExtent.getNX() + x] = (float) value;
+
+    }
+
+    public int getDataType() {
+        return IRasterLayer.RASTER_DATA_TYPE_FLOAT;
+    }
+
+    public double getLayerCellSize() {
+        return m_LayerExtent.getCellSize();
+    }
+
+    public AnalysisExtent getLayerGridExtent() {
+        return m_LayerExtent;
+    }
+
+    public double getNoDataValue() {
+        return m_dNoDataValue;
+    }
+
+    public void setNoDataValue(double noDataValue) {
+        m_dNoDataValue = noDataValue;
+        //the sample dimensions of the coverage hold the nodata value
+        m_Coverage = null;
+    }
+
+    public Object getCRS() {
+        return m_CRS;
+    }
+
+    public Rectangle2D getFullExtent() {
+        return new Rectangle2D.Double(m_LayerExtent.getXMin(), m_LayerExtent.getYMin(),
+                m_LayerExtent.getXMax() - m_LayerExtent.getXMin(), m_LayerExtent.getYMax() - m_LayerExtent.getYMin());
+    }
+
+    public void open() {
+    }
+
+    public void close() {
+    }
+
+    public void postProcess() throws Exception {
+        //the coverage is built when asked for, intermediate layers never need it
+    }
+
+    public String getFilename() {
+        return null;
+    }
+
+    public String getName() {
+        return m_sName;
+    }
+
+    public void setName(String name) {
+        m_sName = name;
+    }
+
+    /**
+     * @return a GridCoverage2D sharing the cells of the layer, whose sample
+     * dimensions hold the nodata value
+     */
+    public Object getBaseDataObject() {
+        if (m_Coverage == null) {
+            m_Coverage = toCoverage();
+        }
+        return m_Coverage;
+    }
+
+    public void free() {
+        m_Coverage = null;
+    }
+
+    public IOutputChannel getOutputChannel() {
+        return m_Channel;
+    }
+
+    private GridCoverage2D toCoverage() {
+
+        final int nx = m_LayerExtent.getNX();
+        final int ny = m_LayerExtent.getNY();
+        final float[][] data = getBands();
+        final int[] banks = new int[data.length];
+        final int[] offsets = new int[data.length];
+        for (int i = 0; i < banks.length; i++) {
+            banks[i] = i;
+        }
+        WritableRaster raster = Raster.createBandedRaster(new DataBufferFloat(data, nx * ny), nx, ny, nx, banks, offsets, null);
+        Envelope2D envelope = new Envelope2D(m_CRS instanceof CoordinateReferenceSystem ? (CoordinateReferenceSystem) m_CRS : null,
+                m_LayerExtent.getXMin(), m_LayerExtent.getYMin(),
+                m_LayerExtent.getXMax() - m_LayerExtent.getXMin(), m_LayerExtent.getYMax() - m_LayerExtent.getYMin());
+        final GridSampleDimension[] bands = new GridSampleDimension[data.length];
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = noDataBand(bands.length == 1 ? m_sName : m_sName + "_" + i, m_dNoDataValue);
+        }
+        return new GridCoverageFactory().create(m_sName, raster, envelope, bands, null, null);
+
+    }
+
+    /**
+     * Returns the sample dimension of float values with a nodata value, as
+     * the GeoTools readers build it: the values are geophysics ones and the
+     * nodata category maps the value to itself
+     *
+     * @param name the name of the band
+     * @param noData the nodata value
+     * @return the sample dimension
+     */
+    public static GridSampleDimension noDataBand(String name, double noData) {
+
+        final NumberRange<Double> range = NumberRange.create(noData, noData);
+        final Category category = new Category("No data", new Color[] { new Color(0, 0, 0, 0) }, range, range);
+        return new GridSampleDimension(name, new Category[] { category }, null);
+
+    }
+
+}
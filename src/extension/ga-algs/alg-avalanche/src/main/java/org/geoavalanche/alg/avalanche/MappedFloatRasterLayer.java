@@ -0,0 +1,151 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.core.AnalysisExtent;
+import es.unex.sextante.outputs.IOutputChannel;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+
+/**
+ * FloatRasterLayer keeping its cells in a memory-mapped scratch file
+ *
+ * The cells are out of the Java heap, so a large layer is bound by the disk
+ * and the page cache instead of -Xmx, and the garbage collector does not scan
+ * it. The file is deleted as soon as it is mapped; its space is given back
+ * once the layer is garbage collected. The file is mapped in
+ * segments of whole rows, as a single mapping can not exceed 2GB.
+ *
+ * The base data object is a GridCoverage2D holding a copy of the cells on the
+ * heap, only the final result of a process should need it.
+ *
+ */
+public class MappedFloatRasterLayer extends FloatRasterLayer
+{
+    private static final Logger LOG = Logger.getLogger(MappedFloatRasterLayer.class.getName());
+
+    private static final long   MAX_SEGMENT_BYTES = 256L * 1024 * 1024;
+
+    private FloatBuffer[][]     m_Segments;
+    private int                 m_iNX;
+    private int                 m_iRowsPerSegment;
+
+    /**
+     * Creates a new layer with all the cells set to nodata
+     *
+     * @param name the name of the layer
+     * @param extent the extent of the layer
+     * @param bands the number of bands
+     * @param channel the output channel, may be null
+     * @param crs the CoordinateReferenceSystem of the layer, may be null
+     * @param directory the scratch directory
+     * @throws IOException if the scratch file can not be created or mapped
+     */
+    public void create(String name, AnalysisExtent extent, int bands, IOutputChannel channel, Object crs, Path directory)
+            throws IOException {
+
+        init(name, extent, channel, crs);
+
+        m_iNX = extent.getNX();
+        final int ny = extent.getNY();
+        m_iRowsPerSegment = (int) Math.max(1, Math.min(ny, MAX_SEGMENT_BYTES / (4L * m_iNX)));
+        final int segments = (ny + m_iRowsPerSegment - 1) / m_iRowsPerSegment;
+        final long bandBytes = 4L * m_iNX * ny;
+        final float noData = (float) getNoDataValue();
+
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "raster", ".raw");
+        m_Segments = new FloatBuffer[Math.max(1, bands)][segments];
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(bandBytes * m_Segments.length);
+            FileChannel channelFile = raf.getChannel();
+            for (int b = 0; b < m_Segments.length; b++) {
+                for (int s = 0; s < segments; s++) {
+                    int rows = Math.min(m_iRowsPerSegment, ny - s * m_iRowsPerSegment);
+                    long position = b * bandBytes + 4L * m_iNX * s * m_iRowsPerSegment;
+                    FloatBuffer segment = channelFile.map(FileChannel.MapMode.READ_WRITE, position, 4L * m_iNX * rows)
+                            .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                    for (int i = 0; i < segment.capacity(); i++) {
+                        segment.put(i, noData);
+                    }
+                    m_Segments[b][s] = segment;
+                }
+            }
+        } finally {
+            try {
+                //the mappings stay valid without the file
+                Files.delete(file);
+            } catch (IOException e) {
+                LOG.warning("scratch file "+file+" will be deleted on exit: "+e);
+                file.toFile().deleteOnExit();
+            }
+        }
+        setWindowExtent(extent);
+
+    }
+
+    @Override
+    protected void copyRow(int y, float[] row) {
+        FloatBuffer segment = m_Segments[0][y / m_iRowsPerSegment].duplicate();
+        segment.position((y % m_iRowsPerSegment) * m_iNX);
+        segment.get(row, 0, row.length);
+    }
+
+    @Override
+    public void setRow(int y, float[] row) {
+        FloatBuffer segment = m_Segments[0][y / m_iRowsPerSegment].duplicate();
+        segment.position((y % m_iRowsPerSegment) * m_iNX);
+        segment.put(row, 0, row.length);
+    }
+
+    /**
+     * @return a copy of the cells of every band on the heap
+     */
+    @Override
+    protected float[][] getBands() {
+
+        final int ny = getLayerGridExtent().getNY();
+        float[][] data = new float[m_Segments.length][m_iNX * ny];
+        for (int b = 0; b < data.length; b++) {
+            int offset = 0;
+            for (FloatBuffer segment : m_Segments[b]) {
+                FloatBuffer copy = segment.duplicate();
+                copy.position(0);
+                copy.get(data[b], offset, copy.capacity());
+                offset += copy.capacity();
+            }
+        }
+        return data;
+
+    }
+
+    @Override
+    public int getBandsCount() {
+        return m_Segments.length;
+    }
+
+    @Override
+    public double getCellValueInLayerCoords(int x, int y, int band) {
+
+        if (x < 0 || y < 0 || x >= m_iNX || y >= getLayerGridExtent().getNY()) {
+            return getNoDataValue();
+        }
+        return m_Segments[band][y / m_iRowsPerSegment].get((y % m_iRowsPerSegment) * m_iNX + x);
+
+    }
+
+    @Override
+    public void setCellValue(int x, int y, int band, double value) {
+
+        if (x < 0 || y < 0 || x >= m_iNX || y >= getLayerGridExtent().getNY()) {
+            return;
+        }
+        m_Segments[band][y / m_iRowsPerSegment].put((y % m_iRowsPerSegment) * m_iNX + x, (float) value);
+
+    }
+
+}
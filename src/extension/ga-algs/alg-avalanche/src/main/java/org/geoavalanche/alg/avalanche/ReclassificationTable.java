@@ -0,0 +1,130 @@
+package org.geoavalanche.alg.avalanche;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Immutable reclassification rules compiled for lookups cell by cell
+ *
+ * The rules are rows of min, max and new value, and a value is given the new
+ * value of the first row with min &lt; value &lt;= max, as ReclassifyAlgorithm does
+ * with METHOD_LOWER_THAN_OR_EQUAL. They are compiled into disjoint intervals
+ * sorted by their upper bound, searched by bisection. Tables of integer codes,
+ * as the land cover classes, can also be compiled into a direct index of the
+ * codes from 0 to 255.
+ *
+ */
+public final class ReclassificationTable
+{
+    private static final int    DIRECT_SIZE = 256;
+
+    private final double[]      m_Lower;
+    private final double[]      m_Upper;
+    private final double[]      m_Values;
+    private final double[]      m_Direct;
+
+    private ReclassificationTable(double[] lower, double[] upper, double[] values, boolean direct) {
+
+        m_Lower = lower;
+        m_Upper = upper;
+        m_Values = values;
+        if (direct) {
+            m_Direct = new double[DIRECT_SIZE];
+            for (int i = 0; i < DIRECT_SIZE; i++) {
+                m_Direct[i] = search(i);
+            }
+        } else {
+            m_Direct = null;
+        }
+
+    }
+
+    /**
+     * Compiles reclassification rules
+     *
+     * @param rules the rows of the table, as {min, max, new value}
+     * @return the compiled table
+     */
+    public static ReclassificationTable compile(double[][] rules) {
+        return compile(rules, false);
+    }
+
+    /**
+     * Compiles reclassification rules of integer codes, with a direct index of
+     * the codes from 0 to 255
+     *
+     * @param rules the rows of the table, as {min, max, new value}
+     * @return the compiled table
+     */
+    public static ReclassificationTable compileCodes(double[][] rules) {
+        return compile(rules, true);
+    }
+
+    private static ReclassificationTable compile(double[][] rules, boolean direct) {
+
+        // the bounds of the rows split the line in elementary intervals
+        TreeSet<Double> bounds = new TreeSet<Double>();
+        for (double[] rule : rules) {
+            bounds.add(rule[0]);
+            bounds.add(rule[1]);
+        }
+        Double[] sorted = bounds.toArray(new Double[bounds.size()]);
+
+        double[] lower = new double[sorted.length];
+        double[] upper = new double[sorted.length];
+        double[] values = new double[sorted.length];
+        int count = 0;
+        for (int i = 0; i + 1 < sorted.length; i++) {
+            // each one takes the value of the first row covering it
+            for (double[] rule : rules) {
+                if (rule[0] <= sorted[i] && sorted[i + 1] <= rule[1]) {
+                    lower[count] = sorted[i];
+                    upper[count] = sorted[i + 1];
+                    values[count] = rule[2];
+                    count++;
+                    break;
+                }
+            }
+        }
+        return new ReclassificationTable(Arrays.copyOf(lower, count), Arrays.copyOf(upper, count),
+                Arrays.copyOf(values, count), direct);
+
+    }
+
+    /**
+     * @param value the value to reclassify
+     * @return the new value, or NaN if no rule matches
+     */
+    public double lookup(double value) {
+
+        if (m_Direct != null) {
+            int code = (int) value;
+            if (code == value && code >= 0 && code < DIRECT_SIZE) {
+                return m_Direct[code];
+            }
+        }
+        return search(value);
+
+    }
+
+    private double search(double value) {
+
+        // first interval whose upper bound is not below the value
+        int low = 0;
+        int high = m_Upper.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (m_Upper[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (low < m_Upper.length && value > m_Lower[low]) {
+            return m_Values[low];
+        }
+        return Double.NaN;
+
+    }
+
+}
@@ -0,0 +1,216 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.dataObjects.IRasterLayer;
+import java.util.function.DoublePredicate;
+
+/**
+ * Slope, aspect and curvature of a cell computed in a single pass from its
+ * 3x3 window, fitting the second degree polynom of Zevenbergen &amp; Thorne (1987)
+ *
+ * The values are those of the Sextante slope, aspect and curvatures algorithms
+ * run with the Zevenbergen &amp; Thorne method, in degrees, and with the class
+ * of curvature output, so that the ATEI classes apply to both.
+ *
+ * The window is read row by row from north to south:
+ * <pre>
+ *  z0 z1 z2
+ *  z3 z4 z5
+ *  z6 z7 z8
+ * </pre>
+ *
+ */
+public class TerrainDerivatives
+{
+    private static final double TO_DEGREES   = 180.0 / Math.PI;
+
+    /** Aspect given to flat cells, as done by the Sextante aspect algorithm */
+    public static final double  FLAT_ASPECT  = -1.0;
+
+    /** Plan and profile curvatures within the threshold are planar */
+    public static final double  CURVATURE_THRESHOLD = 0.00001;
+
+    // neighbours of the window clockwise from north, the opposite of i is (i + 4) % 8
+    private static final int[]  OFFSET_X     = { 0, 1, 1, 1, 0, -1, -1, -1 };
+    private static final int[]  OFFSET_Y     = { -1, -1, 0, 1, 1, 1, 0, -1 };
+    private static final int[]  WINDOW_INDEX = { 1, 2, 5, 8, 7, 6, 3, 0 };
+
+    private final double    m_dDist;
+    private final double    m_dDist2;
+    private final double[]  m_Window = new double[9];
+    private final double[][] m_Rows  = new double[3][3];
+
+    private double          m_dSlope;
+    private double          m_dAspect;
+    private double          m_dCurvature;
+    private double          m_dPlanCurvature;
+    private double          m_dProfileCurvature;
+
+    public TerrainDerivatives(double cellSize) {
+        m_dDist = cellSize;
+        m_dDist2 = cellSize * cellSize;
+    }
+
+    /**
+     * Reads the 3x3 window around a cell of the DEM and computes its derivatives
+     *
+     * @param dem the DEM
+     * @param x the column of the cell
+     * @param y the row of the cell
+     * @return false if the cell is nodata
+     */
+    public boolean compute(IRasterLayer dem, int x, int y) {
+
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                m_Rows[dy + 1][dx + 1] = dem.getCellValueAsDouble(x + dx, y + dy);
+            }
+        }
+        return compute(m_Rows, 0, dem);
+
+    }
+
+    /**
+     * Computes the derivatives of a cell from the rows of the DEM around it.
+     * As the Sextante algorithms do, a nodata neighbour is replaced by the
+     * mirror of the opposite one, or by the central cell if both are nodata
+     *
+     * @param rows the rows above, of and below the cell, whose first value is
+     * the one of the column before the first
+     * @param x the column of the cell
+     * @param dem the DEM, which tells the nodata values
+     * @return false if the cell is nodata
+     */
+    public boolean compute(double[][] rows, int x, IRasterLayer dem) {
+
+        return compute(rows, x, dem::isNoDataValue);
+
+    }
+
+    /**
+     * Computes the derivatives of a cell from the rows of the DEM around it,
+     * mirroring the nodata neighbours as the Sextante algorithms do
+     *
+     * @param rows the rows above, of and below the cell, whose first value is
+     * the one of the column before the first
+     * @param x the column of the cell
+     * @param noData tells the nodata values of the DEM
+     * @return false if the cell is nodata
+     */
+    public boolean compute(double[][] rows, int x, DoublePredicate noData) {
+
+        final int column = x + 1;
+        final double z = rows[1][column];
+        if (noData.test(z)) {
+            return false;
+        }
+        // elevations relative to the central cell
+        m_Window[4] = 0.0;
+        for (int i = 0; i < 8; i++) {
+            double z2 = rows[1 + OFFSET_Y[i]][column + OFFSET_X[i]];
+            if (!noData.test(z2)) {
+                m_Window[WINDOW_INDEX[i]] = z2 - z;
+                continue;
+            }
+            final int j = (i + 4) % 8;
+            z2 = rows[1 + OFFSET_Y[j]][column + OFFSET_X[j]];
+            m_Window[WINDOW_INDEX[i]] = noData.test(z2) ? 0.0 : z - z2;
+        }
+        compute(m_Window);
+        return true;
+
+    }
+
+    /**
+     * Computes the derivatives of the central cell of a 3x3 window
+     *
+     * @param z the nine elevations of the window, without nodata
+     */
+    public void compute(double[] z) {
+
+        // second derivatives along north-south and west-east, mixed one
+        final double D = ((z[1] + z[7]) / 2.0 - z[4]) / m_dDist2;
+        final double E = ((z[3] + z[5]) / 2.0 - z[4]) / m_dDist2;
+        final double F = (z[6] - z[0] - z[8] + z[2]) / (4.0 * m_dDist2);
+        // first derivatives towards north and towards east
+        final double G = (z[1] - z[7]) / (2.0 * m_dDist);
+        final double H = (z[5] - z[3]) / (2.0 * m_dDist);
+
+        m_dSlope = Math.atan(Math.sqrt(G * G + H * H)) * TO_DEGREES;
+
+        // direction of the steepest descent, clockwise from north in ]0, 360]
+        if (G != 0.0) {
+            m_dAspect = (Math.PI + Math.atan2(H, G)) * TO_DEGREES;
+        } else if (H > 0.0) {
+            m_dAspect = 270.0;
+        } else if (H < 0.0) {
+            m_dAspect = 90.0;
+        } else {
+            m_dAspect = FLAT_ASPECT;
+        }
+
+        // positive where the cell lies below its neighbours (concave)
+        m_dCurvature = 2.0 * (D + E);
+
+        final double k1 = F * G * H;
+        final double k2 = G * G + H * H;
+        if (k2 != 0.0) {
+            m_dProfileCurvature = -2.0 * (D * G * G + E * H * H + k1) / k2;
+            m_dPlanCurvature = -2.0 * (D * H * H + E * G * G - k1) / k2;
+        } else {
+            m_dProfileCurvature = 0.0;
+            m_dPlanCurvature = 0.0;
+        }
+
+    }
+
+    /**
+     * @return the slope in degrees
+     */
+    public double getSlope() {
+        return m_dSlope;
+    }
+
+    /**
+     * @return the aspect in degrees clockwise from north, 360 facing north, or FLAT_ASPECT
+     */
+    public double getAspect() {
+        return m_dAspect;
+    }
+
+    /**
+     * @return the general curvature, positive on concave cells
+     */
+    public double getCurvature() {
+        return m_dCurvature;
+    }
+
+    /**
+     * @return the plan curvature, negative on concave cells
+     */
+    public double getPlanCurvature() {
+        return m_dPlanCurvature;
+    }
+
+    /**
+     * @return the profile curvature, negative on concave cells
+     */
+    public double getProfileCurvature() {
+        return m_dProfileCurvature;
+    }
+
+    /**
+     * Classifies the cell by the sign of its plan and profile curvatures, as
+     * the class output of the Sextante curvatures algorithm:
+     * 3 * (0 concave, 1 planar, 2 convex plan) + (0 concave, 1 planar, 2 convex profile)
+     *
+     * @return the class of curvature, from 0 to 8
+     */
+    public int getCurvatureClass() {
+        return 3 * curvatureSign(m_dPlanCurvature) + curvatureSign(m_dProfileCurvature);
+    }
+
+    private static int curvatureSign(double curvature) {
+        return curvature < -CURVATURE_THRESHOLD ? 0 : curvature <= CURVATURE_THRESHOLD ? 1 : 2;
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.geoavalanche.alg.avalanche;
+
+/**
+ * Weighted sum of four rows of classes, the final combine step of the ATEI
+ *
+ * A cell whose classes include a NaN, nodata or matching no class, gets NaN:
+ * NaN propagates through the sum, so the loop needs no test. The sum is
+ * accumulated in double, in the order of the terms, as the index was computed
+ * cell by cell, and rounded to float once.
+ *
+ */
+public final class WeightedSumKernel
+{
+    private final double m_dA;
+    private final double m_dB;
+    private final double m_dC;
+    private final double m_dD;
+
+    /**
+     * @param a the weight of the first row
+     * @param b the weight of the second row
+     * @param c the weight of the third row
+     * @param d the weight of the fourth row
+     */
+    public WeightedSumKernel(double a, double b, double c, double d) {
+        m_dA = a;
+        m_dB = b;
+        m_dC = c;
+        m_dD = d;
+    }
+
+    /**
+     * Computes out[i] = a[i] * A + b[i] * B + c[i] * C + d[i] * D for the first n cells
+     *
+     * @param a the first row
+     * @param b the second row
+     * @param c the third row
+     * @param d the fourth row
+     * @param out the sums, NaN where a class is NaN
+     * @param n the number of cells
+     */
+    public void combine(float[] a, float[] b, float[] c, float[] d, float[] out, int n) {
+        final double wa = m_dA;
+        final double wb = m_dB;
+        final double wc = m_dC;
+        final double wd = m_dD;
+        for (int i = 0; i < n; i++) {
+            out[i] = (float) (a[i] * wa + b[i] * wb + c[i] * wc + d[i] * wd);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.geoavalanche.alg.avalanche;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for AteiDiagnostics.
+ */
+public class AteiDiagnosticsTest extends TestCase
+{
+    public AteiDiagnosticsTest(String testName) {
+        super(testName);
+    }
+
+    private static void addCell(AteiDiagnostics diagnostics, double slope, double landclass, double atei) {
+        diagnostics.addInput(AteiDiagnostics.SLOPE, slope, slope * 0.4);
+        diagnostics.addInput(AteiDiagnostics.LANDCLASS, landclass, landclass * 0.25);
+        diagnostics.addIndex(atei);
+    }
+
+    public void testCountsAndRanges() {
+        AteiDiagnostics diagnostics = new AteiDiagnostics();
+        addCell(diagnostics, 3, 1, 1.45);
+        addCell(diagnostics, 1, 1, 0.65);
+        diagnostics.addNoData();
+
+        assertEquals(3, diagnostics.getCellCount());
+        assertEquals(1, diagnostics.getNoDataCount());
+        assertEquals(1, diagnostics.getClassCount(AteiDiagnostics.SLOPE, 3));
+        assertEquals(2, diagnostics.getClassCount(AteiDiagnostics.LANDCLASS, 1));
+        assertEquals(0.4, diagnostics.getTermMin(AteiDiagnostics.SLOPE), 1e-9);
+        assertEquals(1.2, diagnostics.getTermMax(AteiDiagnostics.SLOPE), 1e-9);
+        assertEquals(1, diagnostics.getHistogram()[29]);
+        assertEquals(1, diagnostics.getHistogram()[13]);
+    }
+
+    public void testMergeOfBands() {
+        AteiDiagnostics first = new AteiDiagnostics();
+        addCell(first, 0, 2, 0.5);
+        AteiDiagnostics second = new AteiDiagnostics();
+        addCell(second, 3, 0, 1.2);
+        second.addNoData();
+
+        AteiDiagnostics run = new AteiDiagnostics();
+        run.merge(first);
+        run.merge(second);
+        assertEquals(3, run.getCellCount());
+        assertEquals(1, run.getNoDataCount());
+        assertEquals(0.0, run.getTermMin(AteiDiagnostics.SLOPE), 1e-9);
+        assertEquals(1.2, run.getTermMax(AteiDiagnostics.SLOPE), 1e-9);
+        assertEquals(1, run.getHistogram()[10]);
+        assertEquals(1, run.getHistogram()[24]);
+    }
+}
@@ -0,0 +1,55 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.core.AnalysisExtent;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ByteRasterLayer.
+ */
+public class ByteRasterLayerTest extends TestCase
+{
+    public ByteRasterLayerTest(String testName) {
+        super(testName);
+    }
+
+    private static ByteRasterLayer newLayer() {
+        AnalysisExtent extent = new AnalysisExtent();
+        extent.setCellSize(1.0);
+        extent.setXRange(0, 5, true);
+        extent.setYRange(0, 4, true);
+
+        ByteRasterLayer layer = new ByteRasterLayer();
+        layer.create("test", extent, null, null);
+        layer.setTransform(0.05, 0.0);
+        return layer;
+    }
+
+    public void testValuesAreEncoded() {
+        ByteRasterLayer layer = newLayer();
+        assertTrue(layer.isNoDataValue(layer.getCellValueAsDouble(4, 3)));
+        assertEquals(ByteRasterLayer.NO_DATA_CODE, layer.getCodes()[19] & 0xFF);
+
+        layer.setCellValue(4, 3, 2.35);
+        assertEquals(47, layer.getCodes()[19] & 0xFF);
+        assertEquals(2.35, layer.getCellValueAsDouble(4, 3), 1e-6);
+
+        // out of range values are clamped, nodata keeps its code
+        layer.setCellValue(0, 0, 20.0);
+        assertEquals(254, layer.getCodes()[0] & 0xFF);
+        layer.setCellValue(1, 0, -1.0);
+        assertEquals(0, layer.getCodes()[1] & 0xFF);
+        layer.setNoData(2, 0);
+        assertEquals(ByteRasterLayer.NO_DATA_CODE, layer.getCodes()[2] & 0xFF);
+    }
+
+    public void testRows() {
+        ByteRasterLayer layer = newLayer();
+        layer.setRow(1, new float[] {0f, 0.4f, 1.15f, 3f, (float) layer.getNoDataValue()});
+        float[] row = new float[5];
+        FloatRasterLayer.getRow(layer, 1, row);
+        assertEquals(1.15f, row[2], 1e-6f);
+        assertEquals(3f, row[3], 1e-6f);
+        assertTrue(layer.isNoDataValue(row[4]));
+        assertEquals(0.4f, layer.getData()[6], 1e-6f);
+    }
+}
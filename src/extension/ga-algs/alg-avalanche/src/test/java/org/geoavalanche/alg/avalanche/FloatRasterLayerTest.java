@@ -0,0 +1,83 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.core.AnalysisExtent;
+import java.awt.image.Raster;
+import junit.framework.TestCase;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.ViewType;
+
+/**
+ * Unit test for FloatRasterLayer.
+ */
+public class FloatRasterLayerTest extends TestCase
+{
+    public FloatRasterLayerTest(String testName) {
+        super(testName);
+    }
+
+    private static AnalysisExtent extent(double xMin, double xMax, double yMin, double yMax) {
+        AnalysisExtent extent = new AnalysisExtent();
+        extent.setCellSize(1.0);
+        extent.setXRange(xMin, xMax, true);
+        extent.setYRange(yMin, yMax, true);
+        return extent;
+    }
+
+    public void testNewLayerIsNoData() {
+        FloatRasterLayer layer = new FloatRasterLayer();
+        layer.create("test", extent(0, 4, 0, 3), 1, null, null);
+        assertTrue(layer.isNoDataValue(layer.getCellValueAsDouble(2, 1)));
+    }
+
+    public void testRowsAndCoverageShareTheCells() {
+        FloatRasterLayer layer = new FloatRasterLayer();
+        layer.create("test", extent(0, 4, 0, 3), 1, null, null);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                layer.setCellValue(x, y, 10 * y + x);
+            }
+        }
+
+        float[] row = new float[4];
+        FloatRasterLayer.getRow(layer, 2, row);
+        assertEquals(20f, row[0], 0f);
+        assertEquals(23f, row[3], 0f);
+
+        Raster raster = ((GridCoverage2D) layer.getBaseDataObject()).getRenderedImage().getData();
+        assertEquals(12f, raster.getSampleFloat(2, 1, 0), 0f);
+    }
+
+    public void testRowThroughAnotherWindow() {
+        FloatRasterLayer layer = new FloatRasterLayer();
+        layer.create("test", extent(0, 4, 0, 3), 1, null, null);
+        layer.setCellValue(1, 1, 7.0);
+
+        // window shifted one cell east: column 0 of the window is column 1 of the layer
+        layer.setWindowExtent(extent(1, 5, 0, 3));
+        float[] row = new float[4];
+        FloatRasterLayer.getRow(layer, 1, row);
+        assertEquals(7f, row[0], 0f);
+        assertTrue(layer.isNoDataValue(row[3]));
+    }
+
+    public void testCoverageHoldsTheNoDataValue() {
+        FloatRasterLayer layer = new FloatRasterLayer();
+        layer.create("test", extent(0, 4, 0, 3), 1, null, null);
+        layer.setCellValue(1, 1, 7.0);
+
+        GridCoverage2D coverage = (GridCoverage2D) layer.getBaseDataObject();
+        GridSampleDimension band = coverage.getSampleDimension(0);
+        assertEquals(1, band.getNoDataValues().length);
+        assertEquals(layer.getNoDataValue(), band.getNoDataValues()[0], 0.0);
+
+        // the values are geophysics ones, nodata included
+        Raster raster = coverage.view(ViewType.GEOPHYSICS).getRenderedImage().getData();
+        assertEquals(7f, raster.getSampleFloat(1, 1, 0), 0f);
+        assertEquals((float) layer.getNoDataValue(), raster.getSampleFloat(0, 0, 0), 0f);
+
+        layer.setNoDataValue(-1.0);
+        band = ((GridCoverage2D) layer.getBaseDataObject()).getSampleDimension(0);
+        assertEquals(-1.0, band.getNoDataValues()[0], 0.0);
+    }
+}
@@ -0,0 +1,42 @@
+package org.geoavalanche.alg.avalanche;
+
+import es.unex.sextante.core.AnalysisExtent;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for MappedFloatRasterLayer.
+ */
+public class MappedFloatRasterLayerTest extends TestCase
+{
+    public MappedFloatRasterLayerTest(String testName) {
+        super(testName);
+    }
+
+    public void testCellsAndRows() throws Exception {
+        Path dir = Files.createTempDirectory("mapped");
+        AnalysisExtent extent = new AnalysisExtent();
+        extent.setCellSize(1.0);
+        extent.setXRange(0, 5, true);
+        extent.setYRange(0, 4, true);
+
+        MappedFloatRasterLayer layer = new MappedFloatRasterLayer();
+        layer.create("test", extent, 1, null, null, dir);
+        // the scratch file is gone once mapped
+        assertEquals(0, dir.toFile().list().length);
+
+        assertTrue(layer.isNoDataValue(layer.getCellValueAsDouble(4, 3)));
+        layer.setCellValue(4, 3, 2.5);
+        assertEquals(2.5, layer.getCellValueAsDouble(4, 3), 0.0);
+
+        layer.setRow(1, new float[] {1, 2, 3, 4, 5});
+        float[] row = new float[5];
+        FloatRasterLayer.getRow(layer, 1, row);
+        assertEquals(3f, row[2], 0f);
+        assertEquals(5f, layer.getData()[9], 0f);
+
+        new File(dir.toString()).delete();
+    }
+}
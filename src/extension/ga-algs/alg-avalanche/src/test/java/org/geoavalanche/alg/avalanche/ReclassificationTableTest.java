@@ -0,0 +1,55 @@
+package org.geoavalanche.alg.avalanche;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ReclassificationTable.
+ */
+public class ReclassificationTableTest extends TestCase
+{
+    private static final double[][] RULES = {
+        {0.0, 25.0, 1.0},
+        {25.0, 45.0, 3.0},
+        {60.0, 90.0, 0.0},
+        // overlaps the first rows, which win
+        {-10.0, 30.0, 7.0}
+    };
+
+    public ReclassificationTableTest(String testName) {
+        super(testName);
+    }
+
+    public void testBoundsAreLowerThanOrEqual() {
+        ReclassificationTable table = ReclassificationTable.compile(RULES);
+        assertEquals(1.0, table.lookup(25.0), 0.0);
+        assertEquals(3.0, table.lookup(25.000001), 0.0);
+        assertEquals(3.0, table.lookup(45.0), 0.0);
+        assertEquals(0.0, table.lookup(90.0), 0.0);
+    }
+
+    public void testFirstMatchingRowWins() {
+        ReclassificationTable table = ReclassificationTable.compile(RULES);
+        assertEquals(1.0, table.lookup(10.0), 0.0);
+        assertEquals(7.0, table.lookup(0.0), 0.0);
+        assertEquals(7.0, table.lookup(-5.0), 0.0);
+    }
+
+    public void testNoMatchIsNaN() {
+        ReclassificationTable table = ReclassificationTable.compile(RULES);
+        assertTrue(Double.isNaN(table.lookup(50.0)));
+        assertTrue(Double.isNaN(table.lookup(-10.0)));
+        assertTrue(Double.isNaN(table.lookup(100.0)));
+        assertTrue(Double.isNaN(table.lookup(Double.NaN)));
+    }
+
+    public void testCodesMatchTheIntervals() {
+        ReclassificationTable intervals = ReclassificationTable.compile(RULES);
+        ReclassificationTable codes = ReclassificationTable.compileCodes(RULES);
+        for (int code = -20; code < 300; code++) {
+            double expected = intervals.lookup(code);
+            double actual = codes.lookup(code);
+            assertTrue("code " + code, Double.isNaN(expected) ? Double.isNaN(actual) : expected == actual);
+        }
+        assertEquals(3.0, codes.lookup(30.5), 0.0);
+    }
+}
@@ -0,0 +1,70 @@
+package org.geoavalanche.alg.avalanche;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for TerrainDerivatives.
+ */
+public class TerrainDerivativesTest extends TestCase
+{
+    private static final double EPS = 1e-9;
+
+    public TerrainDerivativesTest(String testName) {
+        super(testName);
+    }
+
+    public void testFlatWindow() {
+        TerrainDerivatives td = new TerrainDerivatives(10.0);
+        td.compute(new double[] {5, 5, 5, 5, 5, 5, 5, 5, 5});
+        assertEquals(0.0, td.getSlope(), EPS);
+        assertEquals(TerrainDerivatives.FLAT_ASPECT, td.getAspect(), EPS);
+        assertEquals(0.0, td.getCurvature(), EPS);
+        assertEquals(4, td.getCurvatureClass());
+    }
+
+    public void testPlaneFacingEast() {
+        // elevation drops by one cell size per cell towards east: 45 degrees
+        TerrainDerivatives td = new TerrainDerivatives(10.0);
+        td.compute(new double[] {20, 10, 0, 20, 10, 0, 20, 10, 0});
+        assertEquals(45.0, td.getSlope(), EPS);
+        assertEquals(90.0, td.getAspect(), EPS);
+        assertEquals(0.0, td.getCurvature(), EPS);
+        // planar in plan and in profile
+        assertEquals(4, td.getCurvatureClass());
+    }
+
+    public void testPlaneFacingNorth() {
+        TerrainDerivatives td = new TerrainDerivatives(10.0);
+        td.compute(new double[] {0, 0, 0, 10, 10, 10, 20, 20, 20});
+        // as the Sextante aspect algorithm, north is 360 and not 0
+        assertEquals(360.0, td.getAspect(), EPS);
+    }
+
+    public void testPlaneFacingNorthEast() {
+        TerrainDerivatives td = new TerrainDerivatives(10.0);
+        td.compute(new double[] {10, 0, -10, 20, 10, 0, 30, 20, 10});
+        assertEquals(45.0, td.getAspect(), EPS);
+    }
+
+    public void testConcaveWindowIsPositive() {
+        TerrainDerivatives td = new TerrainDerivatives(1.0);
+        td.compute(new double[] {1, 1, 1, 1, 0, 1, 1, 1, 1});
+        assertTrue(td.getCurvature() > 0.0);
+    }
+
+    public void testHollowIsConcaveInPlanAndProfile() {
+        // a valley draining towards east, whose floor flattens downstream
+        TerrainDerivatives td = new TerrainDerivatives(1.0);
+        td.compute(new double[] {12, 8, 4, 10, 5, 2, 12, 8, 4});
+        assertTrue(td.getPlanCurvature() < 0.0);
+        assertTrue(td.getProfileCurvature() < 0.0);
+        assertEquals(0, td.getCurvatureClass());
+    }
+
+    public void testRidgeIsConvexInPlan() {
+        TerrainDerivatives td = new TerrainDerivatives(1.0);
+        td.compute(new double[] {8, 10, 8, 7, 9, 7, 6, 8, 6});
+        assertTrue(td.getPlanCurvature() > 0.0);
+        assertEquals(7, td.getCurvatureClass());
+    }
+}
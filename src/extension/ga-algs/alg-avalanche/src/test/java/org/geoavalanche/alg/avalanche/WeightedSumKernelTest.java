@@ -0,0 +1,41 @@
+package org.geoavalanche.alg.avalanche;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for WeightedSumKernel.
+ */
+public class WeightedSumKernelTest extends TestCase
+{
+    public WeightedSumKernelTest(String testName) {
+        super(testName);
+    }
+
+    public void testNaNIsNoData() {
+        WeightedSumKernel kernel = new WeightedSumKernel(0.4, 0.15, 0.2, 0.25);
+        float[] out = new float[2];
+        kernel.combine(new float[] {3, 3}, new float[] {1, Float.NaN}, new float[] {3, 3}, new float[] {2, 2}, out, 2);
+        assertEquals(2.35f, out[0], 1e-6f);
+        assertTrue(Float.isNaN(out[1]));
+    }
+
+    public void testSameAsCellByCell() {
+        WeightedSumKernel kernel = new WeightedSumKernel(0.4, 0.15, 0.2, 0.25);
+        Random random = new Random(42);
+        int n = 1037;
+        float[][] rows = new float[4][n];
+        for (float[] row : rows) {
+            for (int i = 0; i < n; i++) {
+                row[i] = random.nextInt(4);
+            }
+        }
+        float[] actual = new float[n];
+        kernel.combine(rows[0], rows[1], rows[2], rows[3], actual, n);
+        for (int i = 0; i < n; i++) {
+            // the index as computed cell by cell, then stored in a float raster
+            double dATEI = rows[0][i] * 0.4 + rows[1][i] * 0.15 + rows[2][i] * 0.2 + rows[3][i] * 0.25;
+            assertEquals(Float.floatToIntBits((float) dATEI), Float.floatToIntBits(actual[i]));
+        }
+    }
+}
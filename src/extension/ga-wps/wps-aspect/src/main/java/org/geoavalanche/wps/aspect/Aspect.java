@@ -5,19 +5,21 @@ import com.vividsolutions.jts.geom.GeometryCollection;
 import es.unex.sextante.core.OutputFactory;
 import es.unex.sextante.core.OutputObjectsSet;
 import es.unex.sextante.core.ParametersSet;
-import es.unex.sextante.core.Sextante;
 import es.unex.sextante.dataObjects.IRasterLayer;
 import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
-import org.geoserver.wps.sextante.GTOutputFactory;
+import org.geoavalanche.wps.commons.AlgorithmPool;
+import org.geoavalanche.wps.commons.Coverages;
+import org.geoavalanche.wps.commons.DerivedLayerCache;
+import org.geoavalanche.wps.commons.FloatOutputFactory;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geoavalanche.wps.commons.ScratchWorkspace;
+import org.geoavalanche.wps.commons.Settings;
+import org.geoavalanche.wps.commons.TiledProcessor;
 import org.geoserver.wps.sextante.GTRasterLayer;
 import es.unex.sextante.morphometry.aspect.AspectAlgorithm;
 import es.unex.sextante.outputs.FileOutputChannel;
 import es.unex.sextante.outputs.Output;
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.logging.Logger;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
@@ -56,14 +58,27 @@ public class Aspect extends StaticMethodsProcessFactory<Aspect> {
      * This tells the algorithm how to create new data objects (layers
      * and tables)
      * The GTOutputFactory creates objects based on geotools
-     * data objects (DataStore and GridCoverage)
+     * data objects (DataStore and GridCoverage), the FloatOutputFactory
+     * keeps the cells of the rasters in a float array
      */
-    private static OutputFactory outputFactory = new GTOutputFactory();
+    private static OutputFactory outputFactory = new FloatOutputFactory();
+    
+    /*
+     * Instances of the geoalgorithms are reused from one execution to the next
+     */
+    private static final AlgorithmPool<AspectAlgorithm> ASPECTS = new AlgorithmPool<AspectAlgorithm>(AspectAlgorithm::new);
+    
+    /*
+     * When enabled the cropped DEM is wrapped as it is, without being
+     * written to and read back from a GeoTIFF in the temp directory
+     */
+    private static boolean inMemoryCrop = Settings.getBoolean("geoavalanche.inMemoryCrop", true);
     private static int method = AspectAlgorithm.METHOD_ZEVENBERGEN;
     private static int unit = AspectAlgorithm.UNITS_DEGREES;
     
     public Aspect() {
         super(Text.text("GeoAvalanche"), GEOAVALANCHE_NAMESPACE, Aspect.class);
+        SextanteBootstrap.initialize();
     }
     
     @DescribeProcess(title = "Aspect", description = "Calculate aspects in a shape")
@@ -92,6 +107,15 @@ public class Aspect extends StaticMethodsProcessFactory<Aspect> {
             roi = (GeometryCollection) geomShape;
         }
         
+        if (DerivedLayerCache.isEnabled()) {
+            //reuse the aspects of the tiles computed for previous requests
+            SextanteBootstrap.initialize();
+            GridCoverage2D ret = DerivedLayerCache.getDefault().derive(dem, bounds, roi, DerivedLayerCache.product("aspect", method, unit),
+                    (tile, coverage) -> getAspect(tile,method,unit));
+            LOG.info("ret="+ret);
+            return ret;
+        }
+        
         // perform the crops
         final ParameterValueGroup param = PROCESSOR.getOperation("CoverageCrop").getParameters();
         param.parameter("Source").setValue(dem);
@@ -103,84 +127,40 @@ public class Aspect extends StaticMethodsProcessFactory<Aspect> {
         GridCoverage2D cropped = (GridCoverage2D) PROCESSOR.doOperation(param);
         LOG.info("cropped Coverage="+cropped);
         
-        //Write coverage to file /tmp/Aspect/xxx.tiff
-        //final File writedir = new File(new StringBuilder("/tmp").append(File.separatorChar).append(Curvature.class.getSimpleName()).toString());
-        Path writedir = Paths.get(new StringBuilder("/tmp").append(File.separatorChar).append(Aspect.class.getSimpleName()).toString());
-        LOG.info("write directory="+writedir.toString());
-        //Care to create directory
-        //LOG.info("writedir is a Directory? "+writedir.isDirectory());
-        //LOG.info("writedir exists? "+writedir.isDirectory());
-        //if (!writedir.exists()) {
-        if (!Files.exists(writedir)) {
-        
-            //writedir.mkdirs();
-            try {
-                Files.createDirectories(writedir);
-            } catch (IOException e) {
-                //fail to create directory
-                e.printStackTrace();
+        //the files written for this execution are deleted when it is over
+        try (ScratchWorkspace scratch = ScratchWorkspace.open(Aspect.class.getSimpleName())) {
+            GridCoverage2D lCov;
+            if (inMemoryCrop) {
+                //hand the cropped pixels straight to the algorithm
+                lCov = Coverages.inMemory(cropped);
+            } else {
+                //round-trip through a GeoTIFF of the scratch workspace of this execution
+                lCov = getDiskCoverage(cropped, scratch);
             }
-            
-        }
-        //final GeoTiffFormat format = new GeoTiffFormat();
-        
-        //final GeoTiffWriteParams wp = new GeoTiffWriteParams();
-        //wp.setCompressionMode(GeoTiffWriteParams.MODE_EXPLICIT);
-        //wp.setCompressionType("LZW");
-        //wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
-        //wp.setTiling(512, 512);
+            LOG.info("lcov="+lCov);
         
-        //final ParameterValueGroup writerParams = format.getWriteParameters();
-        //writerParams.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
-        //            .setValue(wp);
+            /*
+             * Initialize the library, only the first call
+             * loads the algorithms and resource strings
+             */
+            SextanteBootstrap.initialize();
 
-        //String cropFileName = new StringBuilder(writedir.getAbsolutePath()).append(File.separatorChar).append(cropped.getName().toString()).append(".tiff").toString();
-        String cropFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(cropped.getName().toString()).append(".tiff").toString();
-        LOG.info("crop filename="+cropFileName);
-        final File writeFile = new File(cropFileName);
-        LOG.info("write file="+writeFile.toString());
-        //final GridCoverageWriter writer = format.getWriter(writeFile, new Hints(Hints.CRS, cropped.getCoordinateReferenceSystem()));
-        
-        //GeoTiffWriter writer = new GeoTiffWriter(cropped, new Hints(Hints.CRS, cropped.getCoordinateReferenceSystem()));
-//        try {
-//            writer.write(cropped, (GeneralParameterValue[]) writerParams.values().toArray(new GeneralParameterValue[1]));
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        } finally {
-//            try {
-//                writer.dispose();
-//            } catch (Throwable e) {
-//               e.printStackTrace(); 
-//            }
-//        }
-        
-        writeToGeotiff(cropped, cropFileName);        
-        /** Add a static coverage */
-        
-        //static file
-        //GridCoverage2D lCov = getLocalCoverage("result.tiff");
-        
-        //
-        GridCoverage2D lCov = getLocalCoverage(writeFile.getName());
-        LOG.info("lcov="+lCov);
-        
-        /*
-         * Initialize the library.
-         * This will load all the algorithms and resource strings.
-         * Since no language code is passed, default language(en)
-         * will be used
-         */
-        Sextante.initialize();
-
-        GTRasterLayer raster = new GTRasterLayer();
-        //raster.create(cropCov);
-        raster.create(lCov);
-        LOG.info("raster = "+raster);        
-        IRasterLayer aspect = getAspect(raster,method,unit);   
-        GridCoverage2D ret = (GridCoverage2D)aspect.getBaseDataObject();
-        LOG.info("ret="+ret);            
+            GridCoverage2D ret;
+            if (TiledProcessor.isEnabled()) {
+                //split the DEM in tiles with a one cell halo and process them in parallel
+                ret = TiledProcessor.process(lCov, (tile, coverage) -> getAspect(tile,method,unit));
+            } else {
+                GTRasterLayer raster = new GTRasterLayer();
+                //raster.create(cropCov);
+                raster.create(lCov);
+                LOG.info("raster = "+raster);        
+                IRasterLayer aspect = getAspect(raster,method,unit);   
+                ret = (GridCoverage2D)aspect.getBaseDataObject();
+            }
+            LOG.info("ret="+ret);            
 
-        return ret;
+            return ret;
+        }
     }
 
     
@@ -195,9 +175,9 @@ public class Aspect extends StaticMethodsProcessFactory<Aspect> {
             throws GeoAlgorithmExecutionException {
 
         /*
-         * Instantiate the AspectAlgorithm class
+         * Take an instance of the AspectAlgorithm class from the pool
          */
-        AspectAlgorithm alg = new AspectAlgorithm();
+        AspectAlgorithm alg = ASPECTS.borrow();
 
         /*
          * The first thing we have to do is to set up the input parameters
@@ -245,14 +225,23 @@ public class Aspect extends StaticMethodsProcessFactory<Aspect> {
          * Now the result can be taken from the output container
          */
         IRasterLayer aspect = (IRasterLayer) out.getOutputObject();
+        ASPECTS.release(alg);
 
         return aspect;
 
     }  
     
-    static GridCoverage2D getLocalCoverage(String filename) throws Exception {
+    static GridCoverage2D getDiskCoverage(GridCoverage2D cropped, ScratchWorkspace scratch) throws Exception {
+        
+        final File writeFile = scratch.newFile(cropped.getName().toString(), ".tiff");
+        LOG.info("write file="+writeFile.toString());
+        
+        writeToGeotiff(cropped, writeFile.getAbsolutePath());
+        return getLocalCoverage(writeFile);
+    }
+    
+    static GridCoverage2D getLocalCoverage(File file) throws Exception {
 
-        File file = new File("/tmp"+File.separatorChar+Aspect.class.getSimpleName()+File.separatorChar+filename);
         LOG.info("geotiff file to read "+file.toString());
         AbstractGridFormat format = GridFormatFinder.findFormat(file);
         GridCoverage2DReader reader = format.getReader(file);
@@ -6,22 +6,28 @@ import es.unex.sextante.core.AnalysisExtent;
 import es.unex.sextante.core.OutputFactory;
 import es.unex.sextante.core.OutputObjectsSet;
 import es.unex.sextante.core.ParametersSet;
-import es.unex.sextante.core.Sextante;
 import es.unex.sextante.dataObjects.IRasterLayer;
 import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
 import es.unex.sextante.morphometry.aspect.AspectAlgorithm;
 import es.unex.sextante.morphometry.curvatures.CurvaturesAlgorithm;
 import es.unex.sextante.morphometry.slope.SlopeAlgorithm;
 import org.geoavalanche.alg.avalanche.AvalancheTerrainExposureAlgorithm;
+import org.geoavalanche.alg.avalanche.ByteRasterLayer;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
 import es.unex.sextante.outputs.Output;
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
-import org.geoserver.wps.sextante.GTOutputFactory;
+import org.geoavalanche.wps.commons.AlgorithmPool;
+import org.geoavalanche.wps.commons.AlignedCoverageCache;
+import org.geoavalanche.wps.commons.Coverages;
+import org.geoavalanche.wps.commons.DerivedLayerCache;
+import org.geoavalanche.wps.commons.FloatOutputFactory;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geoavalanche.wps.commons.RowExecutor;
+import org.geoavalanche.wps.commons.ScratchWorkspace;
+import org.geoavalanche.wps.commons.Settings;
+import org.geoavalanche.wps.commons.TiledProcessor;
 import org.geoserver.wps.sextante.GTRasterLayer;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
@@ -58,9 +64,37 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
      * This tells the algorithm how to create new data objects (layers
      * and tables)
      * The GTOutputFactory creates objects based on geotools
-     * data objects (DataStore and GridCoverage)
+     * data objects (DataStore and GridCoverage), the FloatOutputFactory
+     * keeps the cells of the rasters in a float array
      */
-    private static OutputFactory outputFactory = new GTOutputFactory();
+    private static OutputFactory outputFactory = new FloatOutputFactory();
+    /*
+     * The ATEI algorithm alone may ask for a quantized index, the only
+     * byte rasters created as ByteRasterLayers
+     */
+    private static OutputFactory indexFactory = new FloatOutputFactory(true);
+    
+    /*
+     * Instances of the geoalgorithms are reused from one execution to the next,
+     * the ATEI ones compute their rows on the shared RowExecutor and log the
+     * values of one cell every geoavalanche.atei.debugSampling cells (none by default).
+     * With geoavalanche.atei.quantized the index is an 8-bit raster, whose
+     * sample dimension holds the scale and offset of the values
+     */
+    private static final boolean QUANTIZED = Settings.getBoolean("geoavalanche.atei.quantized", false);
+    private static final Consumer<AvalancheTerrainExposureAlgorithm> ATEI_CONFIGURATION = alg -> {
+        alg.setExecutor(RowExecutor.get());
+        alg.setDebugSampling(Settings.getInt("geoavalanche.atei.debugSampling", 0));
+        alg.setQuantized(QUANTIZED);
+    };
+    private static final AlgorithmPool<SlopeAlgorithm> SLOPES = new AlgorithmPool<SlopeAlgorithm>(SlopeAlgorithm::new);
+    private static final AlgorithmPool<AspectAlgorithm> ASPECTS = new AlgorithmPool<AspectAlgorithm>(AspectAlgorithm::new);
+    private static final AlgorithmPool<CurvaturesAlgorithm> CURVATURES = new AlgorithmPool<CurvaturesAlgorithm>(CurvaturesAlgorithm::new);
+    private static final AlgorithmPool<AvalancheTerrainExposureAlgorithm> ATEIS = new AlgorithmPool<AvalancheTerrainExposureAlgorithm>(AvalancheTerrainExposureAlgorithm::new,
+            ATEI_CONFIGURATION);
+    //instances computing the derivatives from the DEM are kept apart
+    private static final AlgorithmPool<AvalancheTerrainExposureAlgorithm> FUSED_ATEIS = new AlgorithmPool<AvalancheTerrainExposureAlgorithm>(AvalancheTerrainExposureAlgorithm::new,
+            ATEI_CONFIGURATION);
     
     private static int methodS  = SlopeAlgorithm.METHOD_ZEVENBERGEN;
     private static int unitS    = SlopeAlgorithm.UNITS_DEGREES;
@@ -76,10 +110,26 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
     private static String curvature = AvalancheTerrainExposureAlgorithm.CURVATURE;
     private static String landclass = AvalancheTerrainExposureAlgorithm.LANDCLASS;
     private static String atei = AvalancheTerrainExposureAlgorithm.ATEI;
+    private static String elevation = AvalancheTerrainExposureAlgorithm.DEM;
+    
+    /*
+     * When enabled slope, aspect and curvature are derived by the ATEI algorithm
+     * itself from a single 3x3 window of the DEM, instead of running the three
+     * Sextante morphometry algorithms one after another
+     */
+    private static boolean fusedDerivatives = Settings.getBoolean("geoavalanche.atei.fusedDerivatives", false);
+    /*
+     * When enabled the cropped DEM is wrapped as it is, without being
+     * written to and read back from a GeoTIFF in the temp directory. With
+     * the cache of derived layers it is only the grid the land cover is
+     * aligned on, and is never written
+     */
+    private static boolean inMemoryCrop = Settings.getBoolean("geoavalanche.inMemoryCrop", true);
 
     
     public ATEI() {
         super(Text.text("GeoAvalanche"), GEOAVALANCHE_NAMESPACE, ATEI.class);
+        SextanteBootstrap.initialize();
     }
     
     @DescribeProcess(title = "ATEI", description = "Calculate Avalanche Terrain Exposure Index in a shape")
@@ -121,85 +171,159 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
         GridCoverage2D croppedDEM = (GridCoverage2D) PROCESSOR.doOperation(demParam);
         LOG.info("cropped DEM coverage="+croppedDEM);
         
-        // performing the crop of clc
-        final ParameterValueGroup clcParam = PROCESSOR.getOperation("CoverageCrop").getParameters();
-        clcParam.parameter("Source").setValue(clc);
-        clcParam.parameter("Envelope").setValue(bounds);
-        clcParam.parameter("ROI").setValue(roi);
-
-        GridCoverage2D croppedCLC = (GridCoverage2D) PROCESSOR.doOperation(clcParam);
-        LOG.info("cropped DEM coverage="+croppedCLC);
-        
-        //Write DEM coverage to file in temp directory /tmp/ATEI/sample_cropped.tiff
-        String tmpDir = System.getProperty("java.io.tmpdir");
-        Path writedir = Paths.get(new StringBuilder(tmpDir).append(File.separatorChar).append(ATEI.class.getSimpleName()).toString());
-        LOG.info("write directory="+writedir.toString());
-        //Care to create directory
-        //LOG.info("writedir is a Directory? "+writedir.isDirectory());
-        //LOG.info("writedir exists? "+writedir.isDirectory());
-        //if (!writedir.exists()) {
-        if (!Files.exists(writedir)) {
+        final boolean cached = DerivedLayerCache.isEnabled() && !fusedDerivatives;
         
-            //writedir.mkdirs();
-            try {
-                Files.createDirectories(writedir);
-            } catch (IOException e) {
-                //fail to create directory
-                e.printStackTrace();
-            }
+        //the files written for this execution are deleted when it is over
+        try (ScratchWorkspace scratch = ScratchWorkspace.open(ATEI.class.getSimpleName())) {
+            GridCoverage2D lDEMCov;
+            if (inMemoryCrop || cached) {
+                //hand the cropped pixels straight to the algorithms
+                lDEMCov = Coverages.inMemory(croppedDEM);
+            } else {
+                //Write the crop to a file of the scratch workspace of this execution
+                final File writeDEMFile = scratch.newFile(croppedDEM.getName().toString()+"dem_", ".tiff");
+                LOG.info("write DEM file="+writeDEMFile.toString());
             
-        }
-        
-        
-        String cropDemFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(croppedDEM.getName().toString()).append("dem_"+UUID.randomUUID().toString()+".tiff").toString();
-        LOG.info("crop DEM filename="+cropDemFileName);
-        final File writeDEMFile = new File(cropDemFileName);
-        LOG.info("write DEM file="+writeDEMFile.toString());
-        
-        String cropClcFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(croppedCLC.getName().toString()).append("clc_"+UUID.randomUUID().toString()+".tiff").toString();
-        LOG.info("crop CLC filename="+cropClcFileName);
-        final File writeCLCFile = new File(cropClcFileName);
-        LOG.info("write CLC file="+writeCLCFile.toString());
+                //write to filesystem
+                writeToGeotiff(croppedDEM, writeDEMFile.getAbsolutePath());
+            
+                //read from filesystem
+                lDEMCov = getLocalCoverage(writeDEMFile);
+            }
+            LOG.info("lDEMcov="+lDEMCov);
         
-        //write to filesystem
-        writeToGeotiff(croppedDEM, cropDemFileName);
-        writeToGeotiff(croppedCLC, cropClcFileName);
+            GridCoverage2D lCLCCov;
+            if (AlignedCoverageCache.isEnabled()) {
+                //the land cover is resampled once on the grid of the DEM, tiles of previous requests are reused
+                lCLCCov = AlignedCoverageCache.getDefault().align(clc, dem, lDEMCov, roi);
+            } else {
+                // performing the crop of clc
+                final ParameterValueGroup clcParam = PROCESSOR.getOperation("CoverageCrop").getParameters();
+                clcParam.parameter("Source").setValue(clc);
+                clcParam.parameter("Envelope").setValue(bounds);
+                clcParam.parameter("ROI").setValue(roi);
+
+                GridCoverage2D croppedCLC = (GridCoverage2D) PROCESSOR.doOperation(clcParam);
+                LOG.info("cropped CLC coverage="+croppedCLC);
+                
+                final File writeCLCFile = scratch.newFile(croppedCLC.getName().toString()+"clc_", ".tiff");
+                LOG.info("write CLC file="+writeCLCFile.toString());
+                writeToGeotiff(croppedCLC, writeCLCFile.getAbsolutePath());
+                lCLCCov = getLocalCoverage(writeCLCFile);
+            }
+            LOG.info("lCLCcov="+lCLCCov);
         
-        //read from filesystem
-        GridCoverage2D lDEMCov = getLocalCoverage(writeDEMFile.getName());
-        LOG.info("lDEMcov="+lDEMCov);
+            /*
+             * Initialize the library, only the first call
+             * loads the algorithms and resource strings
+             */
+            SextanteBootstrap.initialize();
+
+            GridCoverage2D ret;
+            if (cached) {
+                //slope, aspect and curvature of the tiles computed for previous requests are reused
+                IRasterLayer slope = getCachedLayer(dem, bounds, roi, DerivedLayerCache.product("slope", methodS, unitS),
+                        (tile, coverage) -> getSlope(tile,methodS,unitS,tile.getLayerGridExtent()));
+                IRasterLayer aspect = getCachedLayer(dem, bounds, roi, DerivedLayerCache.product("aspect", methodA, unitA),
+                        (tile, coverage) -> getAspect(tile,methodA,unitA,tile.getLayerGridExtent()));
+                IRasterLayer curvature = getCachedLayer(dem, bounds, roi, DerivedLayerCache.product("curvature", methodC, result),
+                        (tile, coverage) -> getCurvature(tile,methodC,tile.getLayerGridExtent()));
+            
+                GTRasterLayer rasterCLC = new GTRasterLayer();
+                rasterCLC.create(lCLCCov);
+                LOG.info("raster CLC = "+rasterCLC);
+            
+                IRasterLayer atei = getATEI(slope,aspect,curvature,rasterCLC,slope.getLayerGridExtent());
+                ret = (GridCoverage2D) atei.getBaseDataObject();
+            } else if (TiledProcessor.isEnabled()) {
+                /*
+                 * Split the DEM in tiles with a one cell halo. Every tile reads the
+                 * land cover through its own layer, since the algorithms move the
+                 * window of their inputs to the extent of the tile
+                 */
+                ret = TiledProcessor.process(lDEMCov, (tile, coverage) -> {
+                    GTRasterLayer tileCLC = new GTRasterLayer();
+                    tileCLC.create(lCLCCov);
+                    return getATEI(tile, tileCLC);
+                });
+                if (QUANTIZED) {
+                    //the tiles are put together as float values
+                    ret = quantize(ret);
+                }
+            } else {
+                GTRasterLayer rasterDEM = new GTRasterLayer();
+                rasterDEM.create(lDEMCov);
+                LOG.info("raster DEM = "+rasterDEM);
         
-        GridCoverage2D lCLCCov = getLocalCoverage(writeCLCFile.getName());
-        LOG.info("lCLCcov="+lCLCCov);
+                GTRasterLayer rasterCLC = new GTRasterLayer();
+                rasterCLC.create(lCLCCov);
+                LOG.info("raster CLC = "+rasterCLC);
         
-        /*
-         * Initialize the library.
-         * This will load all the algorithms and resource strings.
-         * Since no language code is passed, default language(en)
-         * will be used
-         */
-        Sextante.initialize();
+                IRasterLayer atei = getATEI(rasterDEM, rasterCLC);
+                ret = (GridCoverage2D) atei.getBaseDataObject();
+            }
+            LOG.info("returned atei layer="+ret);            
 
-        GTRasterLayer rasterDEM = new GTRasterLayer();
-        rasterDEM.create(lDEMCov);
-        LOG.info("raster DEM = "+rasterDEM);
-        
-        GTRasterLayer rasterCLC = new GTRasterLayer();
-        rasterCLC.create(lCLCCov);
-        LOG.info("raster CLC = "+rasterCLC);
-        
+            return ret;
+        }
+    }
+
+
+    /**
+     * Returns a layer derived from the DEM over the bounds, from the cache
+     * of derived layers
+     *
+     * @param dem the whole DEM
+     * @param bounds the bounds of the request
+     * @param roi the region of interest, nodata outside, null for none
+     * @param product the name of the layer in the cache
+     * @param op computes the layer over a tile of the DEM
+     * @return the derived layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    private static IRasterLayer getCachedLayer(GridCoverage2D dem, GeneralEnvelope bounds, Geometry roi, String product,
+            TiledProcessor.TileOperation op) throws GeoAlgorithmExecutionException {
+
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(DerivedLayerCache.getDefault().derive(dem, bounds, roi, product, op));
+        return layer;
+    }
+
+    /**
+     * Returns the ATEI layer of the passed DEM, over the extent of the DEM
+     *
+     * @param rasterDEM the DEM
+     * @param landcover the land cover
+     * @return the ATEI layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    private static IRasterLayer getATEI(IRasterLayer rasterDEM, IRasterLayer landcover)
+            throws GeoAlgorithmExecutionException {
+
+        return getATEI(rasterDEM, landcover, fusedDerivatives);
+    }
+
+    /**
+     * Returns the ATEI layer of the passed DEM, over the extent of the DEM
+     *
+     * @param rasterDEM the DEM
+     * @param landcover the land cover
+     * @param fused true to derive slope, aspect and curvature within the ATEI algorithm
+     * @return the ATEI layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    static IRasterLayer getATEI(IRasterLayer rasterDEM, IRasterLayer landcover, boolean fused)
+            throws GeoAlgorithmExecutionException {
+
+        if (fused) {
+            return getATEI(rasterDEM,landcover,rasterDEM.getLayerGridExtent());
+        }
         IRasterLayer slope = getSlope(rasterDEM,methodS,unitS,rasterDEM.getLayerGridExtent());
         IRasterLayer aspect = getAspect(rasterDEM,methodA,unitA,rasterDEM.getLayerGridExtent());
         IRasterLayer curvature = getCurvature(rasterDEM,methodC,rasterDEM.getLayerGridExtent());
-        IRasterLayer landcover = (IRasterLayer) rasterCLC;
-        
-        IRasterLayer atei = getATEI(slope,aspect,curvature,landcover,slope.getLayerGridExtent());
-        GridCoverage2D ret = (GridCoverage2D) atei.getBaseDataObject();
-        LOG.info("returned atei layer="+ret);            
-
-        return ret;
+            
+        return getATEI(slope,aspect,curvature,landcover,slope.getLayerGridExtent());
     }
-
     
     /**
      * Returns a slope layer created from the passed DEM
@@ -212,9 +336,9 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
             throws GeoAlgorithmExecutionException {
 
         /*
-         * Instantiate the SlopeAlgorithm class
+         * Take an instance of the SlopeAlgorithm class from the pool
          */
-        SlopeAlgorithm alg = new SlopeAlgorithm();
+        SlopeAlgorithm alg = SLOPES.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -264,6 +388,7 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
          * Now the result can be taken from the output container
          */
         IRasterLayer slope = (IRasterLayer) out.getOutputObject();
+        SLOPES.release(alg);
 
         return slope;
 
@@ -280,9 +405,9 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the AspectAlgorithm class
+         * Take an instance of the AspectAlgorithm class from the pool
          */
-        AspectAlgorithm alg = new AspectAlgorithm();
+        AspectAlgorithm alg = ASPECTS.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -332,6 +457,7 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
          * Now the result can be taken from the output container
          */
         IRasterLayer aspect = (IRasterLayer) out.getOutputObject();
+        ASPECTS.release(alg);
 
         return aspect;
         
@@ -348,9 +474,9 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the CurvatureAlgorithm class
+         * Take an instance of the CurvatureAlgorithm class from the pool
          */
-        CurvaturesAlgorithm alg = new CurvaturesAlgorithm();
+        CurvaturesAlgorithm alg = CURVATURES.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -398,6 +524,7 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
          * Now the result can be taken from the output container
          */
         IRasterLayer curvature = (IRasterLayer) out.getOutputObject();
+        CURVATURES.release(alg);
 
         return curvature;
         
@@ -408,9 +535,9 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the AvalancheTerrainExposureAlgorithm class
+         * Take an instance of the AvalancheTerrainExposureAlgorithm class from the pool
          */
-        AvalancheTerrainExposureAlgorithm alg = new AvalancheTerrainExposureAlgorithm();
+        AvalancheTerrainExposureAlgorithm alg = ATEIS.borrow();
         alg.setAnalysisExtent(ext);
         
         /*
@@ -459,21 +586,79 @@ public class ATEI extends StaticMethodsProcessFactory<ATEI> {
          * If something goes wrong, it will throw an exception.
          */
         //@TODO Maybe it is better to monitoring the task and raise exceptions in try..catch
-        alg.execute(null, outputFactory); 
+        alg.execute(null, indexFactory); 
 
         /*
          * Now the result can be taken from the output container
          */
         IRasterLayer atei = (IRasterLayer) out.getOutputObject();
+        ATEIS.release(alg);
 
         return atei;
         
     }
     
-    static GridCoverage2D getLocalCoverage(String filename) throws Exception {
+    /**
+     * Returns an Avalanche Terrain Exposure layer computed straight from the DEM,
+     * without materializing slope, aspect and curvature layers
+     *
+     * @param dem the DEM
+     * @param landcover the LandCover
+     * @param ext the Extent of the calculation
+     * @return an atei layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    private static IRasterLayer getATEI(IRasterLayer dem, IRasterLayer landcover, AnalysisExtent ext) 
+            throws GeoAlgorithmExecutionException {
+        
+        AvalancheTerrainExposureAlgorithm alg = FUSED_ATEIS.borrow();
+        alg.setAnalysisExtent(ext);
+        
+        ParametersSet params = alg.getParameters();
+        
+        //dem input
+        params.getParameter(elevation).setParameterValue(dem);
+        
+        //landcover input
+        params.getParameter(landclass).setParameterValue(landcover);
+        
+        OutputObjectsSet outputs = alg.getOutputObjects();
+        Output out = outputs.getOutput(atei);
+        
+        //@TODO Maybe it is better to monitoring the task and raise exceptions in try..catch
+        alg.execute(null, indexFactory); 
+        
+        IRasterLayer atei = (IRasterLayer) out.getOutputObject();
+        FUSED_ATEIS.release(alg);
+        
+        return atei;
+        
+    }
+    
+    /**
+     * Encodes an index as an 8-bit coverage, as the ATEI algorithm does in
+     * quantized mode
+     */
+    private static GridCoverage2D quantize(GridCoverage2D coverage) {
+
+        GTRasterLayer values = new GTRasterLayer();
+        values.create(coverage);
+        AnalysisExtent extent = values.getLayerGridExtent();
+        ByteRasterLayer codes = new ByteRasterLayer();
+        codes.create(coverage.getName().toString(), extent, null, coverage.getCoordinateReferenceSystem());
+        codes.setNoDataValue(values.getNoDataValue());
+        codes.setTransform(AvalancheTerrainExposureAlgorithm.QUANTIZED_SCALE, AvalancheTerrainExposureAlgorithm.QUANTIZED_OFFSET);
+        float[] row = new float[extent.getNX()];
+        for (int y = 0; y < extent.getNY(); y++) {
+            FloatRasterLayer.getRow(values, y, row);
+            codes.setRow(y, row);
+        }
+        return (GridCoverage2D) codes.getBaseDataObject();
+
+    }
+
+    static GridCoverage2D getLocalCoverage(File file) throws Exception {
 
-        String tmpDir = System.getProperty("java.io.tmpdir");
-        File file = new File(tmpDir+File.separatorChar+ATEI.class.getSimpleName()+File.separatorChar+filename);
         LOG.info("geotiff file to read "+file.toString());
         AbstractGridFormat format = GridFormatFinder.findFormat(file);
         GridCoverage2DReader reader = format.getReader(file);
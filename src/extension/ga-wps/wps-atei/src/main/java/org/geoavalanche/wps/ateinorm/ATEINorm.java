@@ -1,5 +1,6 @@
 package org.geoavalanche.wps.ateinorm;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
@@ -7,7 +8,6 @@ import es.unex.sextante.core.AnalysisExtent;
 import es.unex.sextante.core.OutputFactory;
 import es.unex.sextante.core.OutputObjectsSet;
 import es.unex.sextante.core.ParametersSet;
-import es.unex.sextante.core.Sextante;
 import es.unex.sextante.dataObjects.IRasterLayer;
 import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
 import es.unex.sextante.exceptions.WrongOutputIDException;
@@ -18,27 +18,42 @@ import es.unex.sextante.morphometry.aspect.AspectAlgorithm;
 import es.unex.sextante.morphometry.curvatures.CurvaturesAlgorithm;
 import es.unex.sextante.morphometry.slope.SlopeAlgorithm;
 import org.geoavalanche.alg.avalanche.AvalancheTerrainExposureAlgorithm;
+import org.geoavalanche.alg.avalanche.ByteRasterLayer;
+import org.geoavalanche.wps.commons.AlgorithmPool;
+import org.geoavalanche.wps.commons.AlignedCoverageCache;
+import org.geoavalanche.wps.commons.Coverages;
+import org.geoavalanche.wps.commons.DerivedLayerCache;
+import org.geoavalanche.wps.commons.FeatureExecutor;
+import org.geoavalanche.wps.commons.GeometryResultCache;
+import org.geoavalanche.wps.commons.FloatOutputFactory;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geoavalanche.wps.commons.SummedAreaTable;
+import org.geoavalanche.wps.commons.RowExecutor;
+import org.geoavalanche.wps.commons.ScratchWorkspace;
+import org.geoavalanche.wps.commons.Settings;
+import org.geoavalanche.wps.commons.TiledProcessor;
+import org.geoavalanche.wps.commons.ZonalStatistics;
+import org.geoavalanche.wps.referencing.CRSRegistry;
 import es.unex.sextante.outputs.Output;
 import es.unex.sextante.outputs.OutputNumericalValue;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.logging.Level;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
-import org.geoserver.wps.sextante.GTOutputFactory;
 import org.geoserver.wps.sextante.GTRasterLayer;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.ViewType;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
 import org.geotools.coverage.grid.io.GridFormatFinder;
 import org.geotools.coverage.processing.CoverageProcessor;
+import org.geotools.data.DataUtilities;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
@@ -47,6 +62,7 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffWriteParams;
 import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -54,7 +70,6 @@ import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.factory.StaticMethodsProcessFactory;
-import org.geotools.referencing.CRS;
 import org.geotools.text.Text;
 import org.geotools.util.logging.Logging;
 import org.opengis.feature.Property;
@@ -80,9 +95,39 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
      * This tells the algorithm how to create new data objects (layers
      * and tables)
      * The GTOutputFactory creates objects based on geotools
-     * data objects (DataStore and GridCoverage)
+     * data objects (DataStore and GridCoverage), the FloatOutputFactory
+     * keeps the cells of the rasters in a float array
      */
-    private static OutputFactory outputFactory = new GTOutputFactory();
+    private static OutputFactory outputFactory = new FloatOutputFactory();
+    /*
+     * The ATEI algorithm alone may ask for a quantized index, the only
+     * byte rasters created as ByteRasterLayers
+     */
+    private static OutputFactory indexFactory = new FloatOutputFactory(true);
+    
+    /*
+     * Instances of the geoalgorithms are reused from one execution to the next,
+     * the ATEI ones compute their rows on the shared RowExecutor and log the
+     * values of one cell every geoavalanche.atei.debugSampling cells (none by default).
+     * With geoavalanche.atei.quantized the index is an 8-bit raster, whose mean
+     * is decoded from the counts of its codes
+     */
+    private static final boolean QUANTIZED = Settings.getBoolean("geoavalanche.atei.quantized", false);
+    private static final Consumer<AvalancheTerrainExposureAlgorithm> ATEI_CONFIGURATION = alg -> {
+        alg.setExecutor(RowExecutor.get());
+        alg.setDebugSampling(Settings.getInt("geoavalanche.atei.debugSampling", 0));
+        alg.setQuantized(QUANTIZED);
+    };
+    private static final AlgorithmPool<SlopeAlgorithm> SLOPES = new AlgorithmPool<SlopeAlgorithm>(SlopeAlgorithm::new);
+    private static final AlgorithmPool<AspectAlgorithm> ASPECTS = new AlgorithmPool<AspectAlgorithm>(AspectAlgorithm::new);
+    private static final AlgorithmPool<CurvaturesAlgorithm> CURVATURES = new AlgorithmPool<CurvaturesAlgorithm>(CurvaturesAlgorithm::new);
+    private static final AlgorithmPool<AvalancheTerrainExposureAlgorithm> ATEIS = new AlgorithmPool<AvalancheTerrainExposureAlgorithm>(AvalancheTerrainExposureAlgorithm::new,
+            ATEI_CONFIGURATION);
+    //instances computing the derivatives from the DEM are kept apart
+    private static final AlgorithmPool<AvalancheTerrainExposureAlgorithm> FUSED_ATEIS = new AlgorithmPool<AvalancheTerrainExposureAlgorithm>(AvalancheTerrainExposureAlgorithm::new,
+            ATEI_CONFIGURATION);
+    private static final AlgorithmPool<GridBasicStatsAlgorithm> STATS = new AlgorithmPool<GridBasicStatsAlgorithm>(GridBasicStatsAlgorithm::new);
+    private static final AlgorithmPool<MultiGridMajorityAlgorithm> MAJORITIES = new AlgorithmPool<MultiGridMajorityAlgorithm>(MultiGridMajorityAlgorithm::new);
     
     private static int methodS  = SlopeAlgorithm.METHOD_ZEVENBERGEN;
     private static int unitS    = SlopeAlgorithm.UNITS_DEGREES;
@@ -98,6 +143,48 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
     private static String curvature = AvalancheTerrainExposureAlgorithm.CURVATURE;
     private static String landclass = AvalancheTerrainExposureAlgorithm.LANDCLASS;
     private static String atei = AvalancheTerrainExposureAlgorithm.ATEI;
+    private static String elevation = AvalancheTerrainExposureAlgorithm.DEM;
+    
+    /*
+     * When enabled slope, aspect and curvature are derived by the ATEI algorithm
+     * itself from a single 3x3 window of the DEM, instead of running the three
+     * Sextante morphometry algorithms one after another
+     */
+    private static final boolean fusedDerivatives = Settings.getBoolean("geoavalanche.atei.fusedDerivatives", false);
+    
+    /*
+     * With geoavalanche.ateinorm.batch the ATEI of a collection is computed once
+     * over the union of the envelopes of its features, and averaged inside each
+     * geometry. Otherwise, by default, the features are cropped to their
+     * geometry and evaluated one by one, concurrently on the FeatureExecutor.
+     * The cells along the border of a geometry see their neighbours outside of
+     * it in a batch only, so the two engines give slightly different means
+     */
+    private static final boolean BATCH = Settings.getBoolean("geoavalanche.ateinorm.batch", false);
+    //the cells around the union of the envelopes of a batch, so that every cell has its neighbours
+    private static final int BATCH_MARGIN = 2;
+    //the nodata value of the ATEI layers
+    static final double NO_DATA = -99999;
+    /*
+     * With geoavalanche.ateinorm.summedAreaTable, the path of a table written by
+     * the RegionalATEI job, the ATEI of the geometries inside its region is read
+     * from the table instead of being computed. The table must have been built
+     * from the same DEM and land cover. Its ATEI is computed over the whole
+     * region, so the cells along the border of a geometry see their neighbours
+     * outside of it as in a batch: without geoavalanche.ateinorm.batch the means
+     * of the table differ slightly from the ones computed feature by feature.
+     * They are never put in the GeometryResultCache, whose means stay the ones
+     * of an engine
+     */
+    private static final String SUMMED_AREA_TABLE = Settings.get("geoavalanche.ateinorm.summedAreaTable", null);
+    private static volatile SummedAreaTable summedAreaTable;
+    private static volatile boolean summedAreaTableFailed;
+    /*
+     * The computed means are kept by the GeometryResultCache, under a product
+     * naming the engine and the settings that change them
+     */
+    private static final String BATCH_PRODUCT = DerivedLayerCache.product("ateinorm", true, QUANTIZED, fusedDerivatives);
+    private static final String FEATURE_PRODUCT = DerivedLayerCache.product("ateinorm", false, QUANTIZED, fusedDerivatives);
     
     private static String majorityValue = MultiGridMajorityAlgorithm.RESULT;
     
@@ -106,6 +193,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
     
     public ATEINorm() {
         super(Text.text("GeoAvalanche"), GEOAVALANCHE_NAMESPACE, ATEINorm.class);
+        SextanteBootstrap.initialize();
     }
     
     @DescribeProcess(title = "ATEINorm", description = "Calculate Avalanche Terrain Exposure Majority Value Index in a feature collection")
@@ -120,13 +208,12 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         try {
             LOG.info("step 1");
             
-            boolean lenient = true;
             CoordinateReferenceSystem sourceCRS_ = null;
             MathTransform transform3035 = null;
                     
             if (sourceCRS == null) {
                 //sourceCrs = featureCollection.getBounds().getCoordinateReferenceSystem(); doesn't work, returns ever null
-                sourceCRS_ = CRS.decode("EPSG:4326");
+                sourceCRS_ = CRSRegistry.decode("EPSG:4326");
             }
             else {
                 sourceCRS_ = sourceCRS;
@@ -134,52 +221,49 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
             LOG.info("source CRS of feature collection ="+sourceCRS_);
             
             try {
-                transform3035 = CRS.findMathTransform(sourceCRS_, CRS.decode("EPSG:3035"), lenient);
+                transform3035 = CRSRegistry.findMathTransform(sourceCRS_, CRSRegistry.decode("EPSG:3035"));
             } catch (Exception e) {
                 LOG.severe("Error with source CRS obtained from feature collection with exception "+e);
             }
             
-            List<SimpleFeature> featuresList = new ArrayList<SimpleFeature>();
-            SimpleFeatureBuilder fb = getSimpleFeatureBuilder(featureCollection);
+            final SimpleFeatureBuilder fb = getSimpleFeatureBuilder(featureCollection);
+            final SimpleFeatureType type = fb.getFeatureType();
+            final MathTransform toDEM = CRSRegistry.isSame(sourceCRS_, CRSRegistry.decode("EPSG:3035")) ? null : transform3035;
+            List<SimpleFeature> featuresList;
 
             LOG.info("step 2");
             
             SimpleFeatureIterator itr = featureCollection.features();
-            Level _level = LOG.getLevel();
-            while (itr.hasNext()) {
-                
-                SimpleFeature feature = itr.next();
-                fb.reset();
-                for (Property p : feature.getProperties()) {
-                    fb.set(p.getName().getLocalPart(), p.getValue());
-                }
-                Geometry theGeometry = (Geometry) feature.getAttribute("the_geom");
-                if (theGeometry == null) {
-                    theGeometry = (Geometry) feature.getAttribute("geometry");
-                }
-                if (theGeometry != null) {
+            try {
+                if (BATCH) {
+                    List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+                    List<Geometry> geometries = new ArrayList<Geometry>();
+                    while (itr.hasNext()) {
+                        SimpleFeature feature = itr.next();
+                        features.add(feature);
+                        geometries.add(getGeometry(feature, toDEM));
+                    }
                     
-                    Geometry procGeom = null;
+                    double[] means = getBatchAteiNorms(geometries, dem, clc);
                     
-                    if (sourceCRS_!=CRS.decode("EPSG:3035")) {
-                        procGeom = JTS.transform(theGeometry, transform3035);
-                    }    
-                    else {
-                        procGeom = theGeometry;
+                    featuresList = new ArrayList<SimpleFeature>();
+                    for (int i = 0; i < features.size(); i++) {
+                        featuresList.add(buildFeature(fb, features.get(i), geometries.get(i), means[i]));
                     }
-                    String relAtei = Double.toString(getAteiNorm(procGeom, dem, clc, true)); 
-                    LOG.info("returned atei ="+relAtei);
-                    fb.set("atei", relAtei);
+                } else {
+                    //the features are evaluated concurrently, each one with its own builder
+                    featuresList = FeatureExecutor.map(DataUtilities.iterator(itr), feature -> {
+                        Geometry procGeom = getGeometry(feature, toDEM);
+                        double mean = procGeom != null ? getFeatureAteiNorm(procGeom, dem, clc) : Double.NaN;
+                        return buildFeature(new SimpleFeatureBuilder(type), feature, procGeom, mean);
+                    });
                 }
-
-                featuresList.add(fb.buildFeature(feature.getID()));
-                LOG.setLevel(Level.OFF);
+            } finally {
+                itr.close();
             }
-            LOG.setLevel(_level);
             SimpleFeatureCollection ret = new ListFeatureCollection(fb.getFeatureType(), featuresList);
             LOG.info("step 2 ... done ");
             LOG.info("nrec = " + ret.size());
-            itr.close();
             return ret;
         } catch (Exception e) {
             e.printStackTrace();
@@ -187,12 +271,197 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         }
     }
     
+    /**
+     * Returns the ATEI mean of a geometry evaluated on its own, from the
+     * GeometryResultCache or the summed area table when it can
+     *
+     * @param geometry the geometry, in the CRS of the DEM
+     * @param dem the DEM
+     * @param clc the land cover
+     * @return the mean, NaN if no cell with data is inside
+     * @throws Exception
+     */
+    static double getFeatureAteiNorm(Geometry geometry, GridCoverage2D dem, GridCoverage2D clc) throws Exception {
+        
+        String key = GeometryResultCache.isEnabled()
+                ? GeometryResultCache.getDefault().key(geometry, FEATURE_PRODUCT, dem, clc) : null;
+        Double cached = key != null ? GeometryResultCache.getDefault().get(key) : null;
+        if (cached != null) {
+            return cached;
+        }
+        if (isInSummedAreaTable(geometry)) {
+            return getAteiNormFromTable(geometry);
+        }
+        double mean = getAteiNorm(geometry, dem, clc, true);
+        if (key != null) {
+            GeometryResultCache.getDefault().put(key, mean);
+        }
+        return mean;
+        
+    }
+    
+    /**
+     * Returns the ATEI means of a batch of geometries. The ones already seen
+     * or inside the region of the summed area table are answered first, the
+     * others are computed together by the batch engine, even a single one, so
+     * that the cached means are the ones of that engine
+     *
+     * @param geometries the geometries in the CRS of the DEM, null ones are skipped
+     * @param dem the DEM
+     * @param clc the land cover
+     * @return the means, NaN for a geometry without data
+     * @throws Exception
+     */
+    static double[] getBatchAteiNorms(List<Geometry> geometries, GridCoverage2D dem, GridCoverage2D clc) throws Exception {
+        
+        double[] means = new double[geometries.size()];
+        String[] keys = new String[geometries.size()];
+        List<Geometry> pending = new ArrayList<Geometry>(geometries);
+        int remaining = 0;
+        for (int i = 0; i < means.length; i++) {
+            Geometry procGeom = geometries.get(i);
+            Double cached = null;
+            if (procGeom != null && GeometryResultCache.isEnabled()) {
+                keys[i] = GeometryResultCache.getDefault().key(procGeom, BATCH_PRODUCT, dem, clc);
+                cached = GeometryResultCache.getDefault().get(keys[i]);
+            }
+            if (procGeom == null) {
+                means[i] = Double.NaN;
+            } else if (cached != null) {
+                means[i] = cached;
+                pending.set(i, null);
+            } else if (isInSummedAreaTable(procGeom)) {
+                means[i] = getAteiNormFromTable(procGeom);
+                pending.set(i, null);
+            } else {
+                remaining++;
+            }
+        }
+        
+        if (remaining > 0) {
+            double[] batch = getAteiNorms(pending, dem, clc);
+            for (int i = 0; i < means.length; i++) {
+                if (pending.get(i) != null) {
+                    means[i] = batch[i];
+                    if (keys[i] != null) {
+                        GeometryResultCache.getDefault().put(keys[i], means[i]);
+                    }
+                }
+            }
+        }
+        return means;
+        
+    }
+    
+    /**
+     * @return the summed area table of the setting, mapped on the first call, null if there is none
+     */
+    private static SummedAreaTable getSummedAreaTable() {
+        
+        if (SUMMED_AREA_TABLE == null || summedAreaTableFailed) {
+            return null;
+        }
+        if (summedAreaTable == null) {
+            synchronized (ATEINorm.class) {
+                if (summedAreaTable == null && !summedAreaTableFailed) {
+                    try {
+                        summedAreaTable = SummedAreaTable.open(new File(SUMMED_AREA_TABLE));
+                    } catch (IOException e) {
+                        LOG.severe("can not open the summed area table "+SUMMED_AREA_TABLE+": "+e);
+                        summedAreaTableFailed = true;
+                    }
+                }
+            }
+        }
+        return summedAreaTable;
+    }
+    
+    /**
+     * @param geometry a geometry in the CRS of the DEM
+     * @return true if the geometry is inside the region of the summed area table
+     */
+    private static boolean isInSummedAreaTable(Geometry geometry) {
+        SummedAreaTable table = getSummedAreaTable();
+        return table != null && table.getEnvelope().contains(geometry.getEnvelopeInternal());
+    }
+    
+    /**
+     * Returns the ATEI mean of a geometry from the summed area table, in
+     * constant time for a rectangle and by runs of cells for other polygons
+     *
+     * @param geometry a geometry in the CRS of the DEM
+     * @return the mean, NaN if no cell with data is inside
+     */
+    private static double getAteiNormFromTable(Geometry geometry) {
+        SummedAreaTable table = getSummedAreaTable();
+        return geometry.isRectangle() ? table.mean(geometry.getEnvelopeInternal()) : table.mean(geometry);
+    }
+    
+    /**
+     * Returns the geometry of a feature in the CRS of the DEM
+     *
+     * @param feature the feature
+     * @param toDEM the transform to the CRS of the DEM, null if the feature is already in it
+     * @return the geometry, null if the feature has none
+     * @throws Exception
+     */
+    private static Geometry getGeometry(SimpleFeature feature, MathTransform toDEM) throws Exception {
+        
+        Geometry theGeometry = (Geometry) feature.getAttribute("the_geom");
+        if (theGeometry == null) {
+            theGeometry = (Geometry) feature.getAttribute("geometry");
+        }
+        if (theGeometry == null || toDEM == null) {
+            return theGeometry;
+        }
+        return JTS.transform(theGeometry, toDEM);
+    }
+    
+    /**
+     * Returns a copy of the feature with its atei
+     *
+     * @param fb the builder of the output features
+     * @param feature the input feature
+     * @param geometry the geometry of the feature, null if it has none
+     * @param mean the atei of the feature
+     * @return the output feature
+     */
+    private static SimpleFeature buildFeature(SimpleFeatureBuilder fb, SimpleFeature feature, Geometry geometry, double mean) {
+        
+        fb.reset();
+        for (Property p : feature.getProperties()) {
+            fb.set(p.getName().getLocalPart(), p.getValue());
+        }
+        if (geometry != null) {
+            String relAtei = Double.toString(mean); 
+            LOG.fine("returned atei ="+relAtei);
+            fb.set("atei", relAtei);
+        }
+        return fb.buildFeature(feature.getID());
+    }
+    
     private static double getAteiNorm(Geometry thegeom, GridCoverage2D globdem, GridCoverage2D globclc, boolean withRoi) throws GeoAlgorithmExecutionException, Exception {
+        return getAteiNorm(thegeom, globdem, globclc, withRoi, DerivedLayerCache.isEnabled());
+    }
+    
+    /**
+     * Returns the ATEI mean of a geometry, over the geometry itself with withRoi
+     * and over its envelope otherwise
+     *
+     * @param thegeom the geometry, in the CRS of the DEM
+     * @param globdem the DEM
+     * @param globclc the land cover
+     * @param withRoi true to average the cells inside the geometry only
+     * @param cached true to take slope, aspect and curvature from the DerivedLayerCache
+     * @return the mean
+     * @throws Exception
+     */
+    static double getAteiNorm(Geometry thegeom, GridCoverage2D globdem, GridCoverage2D globclc, boolean withRoi, boolean cached) throws GeoAlgorithmExecutionException, Exception {
         
         // get the bounds
         
         GeneralEnvelope bounds = new GeneralEnvelope(new ReferencedEnvelope(thegeom.getEnvelopeInternal(), globdem.getCoordinateReferenceSystem()));
-        LOG.info("bounds=" + bounds);
+        LOG.fine("bounds=" + bounds);
         
         // get a polygon shape for Atei if receiving multipolygon
         Polygon roi = null;
@@ -205,7 +474,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
                     roi = (Polygon)mp.getGeometryN(0);
                 }
             }
-            LOG.info("roi=" + roi);
+            LOG.fine("roi=" + roi);
         }
         
         //@TODO Do cropping and writing/reading to/from file concurrently
@@ -217,103 +486,218 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         demParam.parameter("ROI").setValue(roi);
 
         GridCoverage2D croppedDEM = (GridCoverage2D) PROCESSOR.doOperation(demParam);
-        LOG.info("cropped DEM coverage="+croppedDEM);
-        
-        // performing the crop of clc
-        final ParameterValueGroup clcParam = PROCESSOR.getOperation("CoverageCrop").getParameters();
-        clcParam.parameter("Source").setValue(globclc);
-        clcParam.parameter("Envelope").setValue(bounds);
-        clcParam.parameter("ROI").setValue(roi);
-
-        GridCoverage2D croppedCLC = (GridCoverage2D) PROCESSOR.doOperation(clcParam);
-        LOG.info("cropped DEM coverage="+croppedCLC);
-        
-        //Write DEM coverage to file in temp directory /tmp/ATEINorm/sample_cropped.tiff
-        String tmpDir = System.getProperty("java.io.tmpdir");
-        Path writedir = Paths.get(new StringBuilder(tmpDir).append(File.separatorChar).append(ATEINorm.class.getSimpleName()).toString());
-        LOG.info("write directory="+writedir.toString());
-        //Care to create directory
-        //LOG.info("writedir is a Directory? "+writedir.isDirectory());
-        //LOG.info("writedir exists? "+writedir.isDirectory());
-        //if (!writedir.exists()) {
-        if (!Files.exists(writedir)) {
-        
-            //writedir.mkdirs();
-            try {
-                Files.createDirectories(writedir);
-            } catch (IOException e) {
-                //fail to create directory
-                e.printStackTrace();
-            }
-            
-        }
+        LOG.fine("cropped DEM coverage="+croppedDEM);
         
+        //the files written for this execution are deleted when it is over
+        try (ScratchWorkspace scratch = ScratchWorkspace.open(ATEINorm.class.getSimpleName())) {
+            //Write the crop to a file of the scratch workspace of this execution
+            final File writeDEMFile = scratch.newFile(croppedDEM.getName().toString()+"dem_", ".tiff");
+            LOG.fine("write DEM file="+writeDEMFile.toString());
         
-        String cropDemFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(croppedDEM.getName().toString()).append("dem_"+UUID.randomUUID().toString()+".tiff").toString();
-        LOG.info("crop DEM filename="+cropDemFileName);
-        final File writeDEMFile = new File(cropDemFileName);
-        LOG.info("write DEM file="+writeDEMFile.toString());
+            //write to filesystem
+            writeToGeotiff(croppedDEM, writeDEMFile.getAbsolutePath());
         
-        String cropClcFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(croppedCLC.getName().toString()).append("clc_"+UUID.randomUUID().toString()+".tiff").toString();
-        LOG.info("crop CLC filename="+cropClcFileName);
-        final File writeCLCFile = new File(cropClcFileName);
-        LOG.info("write CLC file="+writeCLCFile.toString());
+            //read from filesystem
+            GridCoverage2D lDEMCov = getLocalCoverage(writeDEMFile);
+            LOG.fine("lDEMcov="+lDEMCov);
         
-        //write to filesystem
-        writeToGeotiff(croppedDEM, cropDemFileName);
-        writeToGeotiff(croppedCLC, cropClcFileName);
+            GridCoverage2D lCLCCov = getLandCover(globclc, globdem, lDEMCov, bounds, roi, scratch);
         
-        //read from filesystem
-        GridCoverage2D lDEMCov = getLocalCoverage(writeDEMFile.getName());
-        LOG.info("lDEMcov="+lDEMCov);
-        
-        GridCoverage2D lCLCCov = getLocalCoverage(writeCLCFile.getName());
-        LOG.info("lCLCcov="+lCLCCov);
+            /*
+             * Initialize the library, only the first call
+             * loads the algorithms and resource strings
+             */
+            SextanteBootstrap.initialize();
+
+            GTRasterLayer rasterDEM = new GTRasterLayer();
+            rasterDEM.create(lDEMCov);
+            LOG.fine("raster DEM = "+rasterDEM);
+        
+            GTRasterLayer rasterCLC = new GTRasterLayer();
+            rasterCLC.create(lCLCCov);
+            LOG.fine("raster CLC = "+rasterCLC);
+        
+            IRasterLayer landcover = (IRasterLayer) rasterCLC;
+            IRasterLayer atei;
+        
+            if (fusedDerivatives) {
+                atei = getATEI(rasterDEM,landcover,rasterDEM.getLayerGridExtent());
+            } else if (cached) {
+                //slope, aspect and curvature of the tiles computed for previous features are reused,
+                //cropped to the roi as the DEM is
+                IRasterLayer slope = getCachedLayer(globdem, bounds, roi, DerivedLayerCache.product("slope", methodS, unitS),
+                        (tile, coverage) -> getSlope(tile,methodS,unitS,tile.getLayerGridExtent()));
+                IRasterLayer aspect = getCachedLayer(globdem, bounds, roi, DerivedLayerCache.product("aspect", methodA, unitA),
+                        (tile, coverage) -> getAspect(tile,methodA,unitA,tile.getLayerGridExtent()));
+                IRasterLayer curvature = getCachedLayer(globdem, bounds, roi, DerivedLayerCache.product("curvature", methodC, result),
+                        (tile, coverage) -> getCurvature(tile,methodC,tile.getLayerGridExtent()));
+            
+                atei = getATEI(slope,aspect,curvature,landcover,slope.getLayerGridExtent());
+            } else {
+                atei = getATEI(rasterDEM,landcover);
+            }
+            
+            //Process with Mean of values
+            double ateiMean = getMean(atei,atei.getLayerGridExtent());
         
-        /*
-         * Initialize the library.
-         * This will load all the algorithms and resource strings.
-         * Since no language code is passed, default language(en)
-         * will be used
-         */
-        Sextante.initialize();
+            //IRasterLayer ateiMGrid = getATEIMajority(slope,aspect,curvature,landcover,slope.getLayerGridExtent());               
 
-        GTRasterLayer rasterDEM = new GTRasterLayer();
-        rasterDEM.create(lDEMCov);
-        LOG.info("raster DEM = "+rasterDEM);
+            //Process with Extrema for the highest
+            /* GridCoverage2D ateiMajorityGC = (GridCoverage2D) ateiMGrid.getBaseDataObject();
+            LOG.fine("returned atei majority grid layer="+ateiMajorityGC); 
+        
+            ParameterValueGroup paramsExtrema = PROCESSOR.getOperation("Extrema").getParameters();
+            paramsExtrema.parameter("Source").setValue(ateiMajorityGC);        
+            GridCoverage2D result = (GridCoverage2D) PROCESSOR.doOperation(paramsExtrema, null);
+            double[] ateiHighestValue = (double[]) result.getProperty("maximum");
+            for (int x = 0; x < ateiHighestValue.length; x++) {
+                LOG.fine("maximum[" + x + "]=" + ateiHighestValue[x]);
+            }
+            LOG.fine("ateiMajorValue="+ateiHighestValue);
         
-        GTRasterLayer rasterCLC = new GTRasterLayer();
-        rasterCLC.create(lCLCCov);
-        LOG.info("raster CLC = "+rasterCLC);
+            return ateiHighestValue[0]; */
         
-        IRasterLayer slope = getSlope(rasterDEM,methodS,unitS,rasterDEM.getLayerGridExtent());
-        IRasterLayer aspect = getAspect(rasterDEM,methodA,unitA,rasterDEM.getLayerGridExtent());
-        IRasterLayer curvature = getCurvature(rasterDEM,methodC,rasterDEM.getLayerGridExtent());
-        IRasterLayer landcover = (IRasterLayer) rasterCLC;
+            return ateiMean;
+        }
         
-        double ateiMean = getATEIMean(slope,aspect,curvature,landcover,slope.getLayerGridExtent());
+    }
+    
+    /**
+     * Returns the ATEI means of many geometries at once: the ATEI is computed
+     * a single time over the union of their envelopes, widened by a margin of
+     * BATCH_MARGIN cells, then averaged inside every geometry by scanline. With
+     * the margin the cells of a geometry have all their neighbours, and its mean
+     * does not depend on the other geometries of the batch
+     *
+     * @param geometries the geometries in the CRS of the DEM, null ones are skipped
+     * @param globdem the DEM
+     * @param globclc the land cover
+     * @return the means, NaN for a geometry without data
+     * @throws Exception
+     */
+    private static double[] getAteiNorms(List<Geometry> geometries, GridCoverage2D globdem, GridCoverage2D globclc) throws Exception {
+        
+        final double[] means = new double[geometries.size()];
+        Arrays.fill(means, Double.NaN);
+        Envelope union = new Envelope();
+        for (Geometry g : geometries) {
+            if (g != null) {
+                union.expandToInclude(g.getEnvelopeInternal());
+            }
+        }
+        if (union.isNull()) {
+            return means;
+        }
+        final Envelope2D world = globdem.getEnvelope2D();
+        final GridEnvelope2D grid = globdem.getGridGeometry().getGridRange2D();
+        union.expandBy(BATCH_MARGIN * world.getWidth() / grid.getWidth(), BATCH_MARGIN * world.getHeight() / grid.getHeight());
+        GeneralEnvelope bounds = new GeneralEnvelope(new ReferencedEnvelope(union, globdem.getCoordinateReferenceSystem()));
+        LOG.info("batch of "+geometries.size()+" geometries, bounds=" + bounds);
+        
+        ZonalStatistics zonal = new ZonalStatistics(getATEICoverage(globdem, globclc, bounds), NO_DATA);
+        for (int i = 0; i < means.length; i++) {
+            if (geometries.get(i) != null) {
+                means[i] = zonal.mean(geometries.get(i));
+            }
+        }
+        return means;
         
-        //IRasterLayer ateiMGrid = getATEIMajority(slope,aspect,curvature,landcover,slope.getLayerGridExtent());               
-
-        //Process with Extrema for the highest
-        /* GridCoverage2D ateiMajorityGC = (GridCoverage2D) ateiMGrid.getBaseDataObject();
-        LOG.info("returned atei majority grid layer="+ateiMajorityGC); 
+    }
+    
+    /**
+     * Returns the ATEI over an envelope, tiled when the TiledProcessor is enabled
+     *
+     * @param globdem the DEM
+     * @param globclc the land cover
+     * @param bounds the envelope, in the CRS of the DEM
+     * @return the values of the ATEI, decoded if it is quantized
+     * @throws Exception
+     */
+    static GridCoverage2D getATEICoverage(GridCoverage2D globdem, GridCoverage2D globclc, GeneralEnvelope bounds) throws Exception {
         
-        ParameterValueGroup paramsExtrema = PROCESSOR.getOperation("Extrema").getParameters();
-        paramsExtrema.parameter("Source").setValue(ateiMajorityGC);        
-        GridCoverage2D result = (GridCoverage2D) PROCESSOR.doOperation(paramsExtrema, null);
-        double[] ateiHighestValue = (double[]) result.getProperty("maximum");
-        for (int x = 0; x < ateiHighestValue.length; x++) {
-            LOG.info("maximum[" + x + "]=" + ateiHighestValue[x]);
-        }
-        LOG.info("ateiMajorValue="+ateiHighestValue);
+        // performing the crop of dem, the geometries are applied afterwards
+        final ParameterValueGroup demParam = PROCESSOR.getOperation("CoverageCrop").getParameters();
+        demParam.parameter("Source").setValue(globdem);
+        demParam.parameter("Envelope").setValue(bounds);
+        GridCoverage2D croppedDEM = (GridCoverage2D) PROCESSOR.doOperation(demParam);
         
-        return ateiHighestValue[0]; */
+        try (ScratchWorkspace scratch = ScratchWorkspace.open(ATEINorm.class.getSimpleName())) {
+            final GridCoverage2D lDEMCov = Coverages.inMemory(croppedDEM);
+            final GridCoverage2D lCLCCov = getLandCover(globclc, globdem, lDEMCov, bounds, null, scratch);
+            
+            SextanteBootstrap.initialize();
+            
+            GridCoverage2D ateiCov;
+            if (TiledProcessor.isEnabled()) {
+                ateiCov = TiledProcessor.process(lDEMCov, (tile, coverage) -> {
+                    GTRasterLayer tileCLC = new GTRasterLayer();
+                    tileCLC.create(lCLCCov);
+                    return getATEI(tile, tileCLC);
+                });
+            } else {
+                GTRasterLayer rasterDEM = new GTRasterLayer();
+                rasterDEM.create(lDEMCov);
+                GTRasterLayer rasterCLC = new GTRasterLayer();
+                rasterCLC.create(lCLCCov);
+                ateiCov = (GridCoverage2D) getATEI(rasterDEM, rasterCLC).getBaseDataObject();
+            }
+            
+            //the values of a quantized index are decoded through its sample dimension
+            return ateiCov.view(ViewType.GEOPHYSICS);
+        }
         
-        return ateiMean;
+    }
+    
+    /**
+     * Returns the land cover over the grid of the cropped DEM
+     */
+    private static GridCoverage2D getLandCover(GridCoverage2D globclc, GridCoverage2D globdem, GridCoverage2D lDEMCov,
+            GeneralEnvelope bounds, Geometry roi, ScratchWorkspace scratch) throws Exception {
+        
+        GridCoverage2D lCLCCov;
+        if (AlignedCoverageCache.isEnabled()) {
+            //the land cover is resampled once on the grid of the DEM, tiles of previous requests are reused
+            lCLCCov = AlignedCoverageCache.getDefault().align(globclc, globdem, lDEMCov, roi);
+        } else {
+            // performing the crop of clc
+            final ParameterValueGroup clcParam = PROCESSOR.getOperation("CoverageCrop").getParameters();
+            clcParam.parameter("Source").setValue(globclc);
+            clcParam.parameter("Envelope").setValue(bounds);
+            clcParam.parameter("ROI").setValue(roi);
+
+            GridCoverage2D croppedCLC = (GridCoverage2D) PROCESSOR.doOperation(clcParam);
+            LOG.fine("cropped CLC coverage="+croppedCLC);
+            
+            final File writeCLCFile = scratch.newFile(croppedCLC.getName().toString()+"clc_", ".tiff");
+            LOG.fine("write CLC file="+writeCLCFile.toString());
+            writeToGeotiff(croppedCLC, writeCLCFile.getAbsolutePath());
+            lCLCCov = getLocalCoverage(writeCLCFile);
+        }
+        LOG.fine("lCLCcov="+lCLCCov);
+        return lCLCCov;
         
     }
     
+    /**
+     * Returns the ATEI layer of the passed DEM, over the extent of the DEM
+     *
+     * @param rasterDEM the DEM
+     * @param landcover the land cover
+     * @return the ATEI layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    private static IRasterLayer getATEI(IRasterLayer rasterDEM, IRasterLayer landcover)
+            throws GeoAlgorithmExecutionException {
+
+        if (fusedDerivatives) {
+            return getATEI(rasterDEM,landcover,rasterDEM.getLayerGridExtent());
+        }
+        IRasterLayer slope = getSlope(rasterDEM,methodS,unitS,rasterDEM.getLayerGridExtent());
+        IRasterLayer aspect = getAspect(rasterDEM,methodA,unitA,rasterDEM.getLayerGridExtent());
+        IRasterLayer curvature = getCurvature(rasterDEM,methodC,rasterDEM.getLayerGridExtent());
+        return getATEI(slope,aspect,curvature,landcover,slope.getLayerGridExtent());
+    }
+    
     static SimpleFeatureBuilder getSimpleFeatureBuilder(SimpleFeatureCollection featureCollection) {
         Map<String, Class> theProperties = new HashMap();
         SimpleFeatureIterator itr = featureCollection.features();
@@ -336,6 +720,26 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         return fb;
     }
     
+    /**
+     * Returns a layer derived from the DEM over the bounds, from the cache
+     * of derived layers
+     *
+     * @param dem the whole DEM
+     * @param bounds the bounds of the request
+     * @param roi the region of interest, nodata outside, null for none
+     * @param product the name of the layer in the cache
+     * @param op computes the layer over a tile of the DEM
+     * @return the derived layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    private static IRasterLayer getCachedLayer(GridCoverage2D dem, GeneralEnvelope bounds, Geometry roi, String product,
+            TiledProcessor.TileOperation op) throws GeoAlgorithmExecutionException {
+
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(DerivedLayerCache.getDefault().derive(dem, bounds, roi, product, op));
+        return layer;
+    }
+    
     /**
      * Returns a slope layer created from the passed DEM
      *
@@ -347,9 +751,9 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
             throws GeoAlgorithmExecutionException {
 
         /*
-         * Instantiate the SlopeAlgorithm class
+         * Take an instance of the SlopeAlgorithm class from the pool
          */
-        SlopeAlgorithm alg = new SlopeAlgorithm();
+        SlopeAlgorithm alg = SLOPES.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -399,6 +803,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * Now the result can be taken from the output container
          */
         IRasterLayer slope = (IRasterLayer) out.getOutputObject();
+        SLOPES.release(alg);
 
         return slope;
 
@@ -415,9 +820,9 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the AspectAlgorithm class
+         * Take an instance of the AspectAlgorithm class from the pool
          */
-        AspectAlgorithm alg = new AspectAlgorithm();
+        AspectAlgorithm alg = ASPECTS.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -467,6 +872,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * Now the result can be taken from the output container
          */
         IRasterLayer aspect = (IRasterLayer) out.getOutputObject();
+        ASPECTS.release(alg);
 
         return aspect;
         
@@ -483,9 +889,9 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the CurvatureAlgorithm class
+         * Take an instance of the CurvatureAlgorithm class from the pool
          */
-        CurvaturesAlgorithm alg = new CurvaturesAlgorithm();
+        CurvaturesAlgorithm alg = CURVATURES.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -533,6 +939,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * Now the result can be taken from the output container
          */
         IRasterLayer curvature = (IRasterLayer) out.getOutputObject();
+        CURVATURES.release(alg);
 
         return curvature;
         
@@ -546,16 +953,16 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
      * @param curvature the Curvature
      * @param landcover the LandCover
      * @param ext the Extent of the calculation
-     * @return an atei layer with the majority
+     * @return an atei layer
      * @throws GeoAlgorithmExecutionException
      */
-    private static double getATEIMean(IRasterLayer slope, IRasterLayer aspect, IRasterLayer curvature, IRasterLayer landcover, AnalysisExtent ext) 
+    private static IRasterLayer getATEI(IRasterLayer slope, IRasterLayer aspect, IRasterLayer curvature, IRasterLayer landcover, AnalysisExtent ext) 
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the AvalancheTerrainExposureAlgorithm class
+         * Take an instance of the AvalancheTerrainExposureAlgorithm class from the pool
          */
-        AvalancheTerrainExposureAlgorithm alg = new AvalancheTerrainExposureAlgorithm();
+        AvalancheTerrainExposureAlgorithm alg = ATEIS.borrow();
         alg.setAnalysisExtent(ext);
         
         /*
@@ -604,29 +1011,68 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * If something goes wrong, it will throw an exception.
          */
         //@TODO Maybe it is better to monitoring the task and raise exceptions in try..catch
-        alg.execute(null, outputFactory); 
+        alg.execute(null, indexFactory); 
 
         /*
          * Now the result can be taken from the output container
          */
         IRasterLayer atei = (IRasterLayer) out.getOutputObject();
+        ATEIS.release(alg);
+        
+        return atei;
+        
+    }
+    
+    /**
+     * Returns the Avalanche Terrain Exposure computed straight from the DEM,
+     * without materializing slope, aspect and curvature layers
+     *
+     * @param dem the DEM
+     * @param landcover the LandCover
+     * @param ext the Extent of the calculation
+     * @return an atei layer
+     * @throws GeoAlgorithmExecutionException
+     */
+    private static IRasterLayer getATEI(IRasterLayer dem, IRasterLayer landcover, AnalysisExtent ext) 
+            throws GeoAlgorithmExecutionException {
+        
+        AvalancheTerrainExposureAlgorithm alg = FUSED_ATEIS.borrow();
+        alg.setAnalysisExtent(ext);
+        
+        ParametersSet params = alg.getParameters();
         
-        //Process with Mean of values
-        double ateiMean = getMean(atei,atei.getLayerGridExtent());
+        //dem input
+        params.getParameter(elevation).setParameterValue(dem);
         
-        return ateiMean;
+        //landcover input
+        params.getParameter(landclass).setParameterValue(landcover);
+        
+        OutputObjectsSet outputs = alg.getOutputObjects();
+        Output out = outputs.getOutput(atei);
+        
+        //@TODO Maybe it is better to monitoring the task and raise exceptions in try..catch
+        alg.execute(null, indexFactory); 
+        
+        IRasterLayer atei = (IRasterLayer) out.getOutputObject();
+        FUSED_ATEIS.release(alg);
+        
+        return atei;
         
     }
     
     private static double getMean(IRasterLayer raster, AnalysisExtent ext) 
             throws WrongParameterIDException, WrongOutputIDException, GeoAlgorithmExecutionException {
         
+        if (raster instanceof ByteRasterLayer) {
+            return getQuantizedMean((ByteRasterLayer) raster);
+        }
+        
         /*Calculate the majority of values from the pixels of the grid*/
         
         /*
-         * Instantiate the GridBasicStatsAlgorithm class
+         * Take an instance of the GridBasicStatsAlgorithm class from the pool
          */
-        GridBasicStatsAlgorithm alg = new GridBasicStatsAlgorithm();
+        GridBasicStatsAlgorithm alg = STATS.borrow();
         alg.setAnalysisExtent(ext);
         
         /*
@@ -669,6 +1115,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * Now the result can be taken from the output container
          */
         double mean = (double) out.getOutputObject();
+        STATS.release(alg);
         
         LOG.info("The mean value of values="+mean);
     
@@ -676,6 +1123,33 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         
     }
     
+    /**
+     * Returns the mean of the values of an 8-bit layer, decoded from the
+     * number of cells of every code with the scale and offset of the layer
+     *
+     * @param raster the layer
+     * @return the mean of the values, NaN without data
+     */
+    private static double getQuantizedMean(ByteRasterLayer raster) {
+        
+        final long[] counts = new long[ByteRasterLayer.NO_DATA_CODE + 1];
+        for (byte code : raster.getCodes()) {
+            counts[code & 0xFF]++;
+        }
+        long cells = 0;
+        long sum = 0;
+        for (int code = 0; code < ByteRasterLayer.NO_DATA_CODE; code++) {
+            cells += counts[code];
+            sum += counts[code] * code;
+        }
+        double mean = cells == 0 ? Double.NaN : raster.getOffset() + raster.getScale() * sum / cells;
+        
+        LOG.info("The mean value of values="+mean+" from "+cells+" quantized cells");
+        
+        return mean;
+        
+    }
+    
     /**
      * Returns an Avalanche Terrain Exposure layer created from the passed Slope,Aspect,Curvature,LandCover
      *
@@ -691,9 +1165,9 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
             throws GeoAlgorithmExecutionException {
         
         /*
-         * Instantiate the AvalancheTerrainExposureAlgorithm class
+         * Take an instance of the AvalancheTerrainExposureAlgorithm class from the pool
          */
-        AvalancheTerrainExposureAlgorithm alg = new AvalancheTerrainExposureAlgorithm();
+        AvalancheTerrainExposureAlgorithm alg = ATEIS.borrow();
         alg.setAnalysisExtent(ext);
         
         /*
@@ -742,12 +1216,13 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * If something goes wrong, it will throw an exception.
          */
         //@TODO Maybe it is better to monitoring the task and raise exceptions in try..catch
-        alg.execute(null, outputFactory); 
+        alg.execute(null, indexFactory); 
 
         /*
          * Now the result can be taken from the output container
          */
         IRasterLayer atei = (IRasterLayer) out.getOutputObject();
+        ATEIS.release(alg);
         
         //Process with Majority values
         IRasterLayer ateiMajorityGrid = getGridMajority(atei,atei.getLayerGridExtent());
@@ -762,9 +1237,9 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         /*Calculate the majority of values from the pixels of the grid*/
         
         /*
-         * Instantiate the MultiGridMajorityAlgorithm class
+         * Take an instance of the MultiGridMajorityAlgorithm class from the pool
          */
-        MultiGridMajorityAlgorithm alg = new MultiGridMajorityAlgorithm();
+        MultiGridMajorityAlgorithm alg = MAJORITIES.borrow();
         alg.setAnalysisExtent(ext);
         
         /*
@@ -807,6 +1282,7 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
          * Now the result can be taken from the output container
          */
         IRasterLayer majority = (IRasterLayer) out.getOutputObject();
+        MAJORITIES.release(alg);
         
         LOG.info("The majority value of values="+majority);
     
@@ -814,10 +1290,8 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
         
     }
     
-    static GridCoverage2D getLocalCoverage(String filename) throws Exception {
+    static GridCoverage2D getLocalCoverage(File file) throws Exception {
 
-        String tmpDir = System.getProperty("java.io.tmpdir");
-        File file = new File(tmpDir+File.separatorChar+ATEINorm.class.getSimpleName()+File.separatorChar+filename);
         LOG.info("geotiff file to read "+file.toString());
         AbstractGridFormat format = GridFormatFinder.findFormat(file);
         GridCoverage2DReader reader = format.getReader(file);
@@ -844,10 +1318,9 @@ public class ATEINorm extends StaticMethodsProcessFactory<ATEINorm> {
     }
     
     static List<SimpleFeature> transform(List<SimpleFeature> featuresList, CoordinateReferenceSystem sourceCRS, CoordinateReferenceSystem targetCRS) throws Exception {
-        if (sourceCRS == null | targetCRS == null | sourceCRS==targetCRS) return featuresList;
+        if (sourceCRS == null || targetCRS == null || CRSRegistry.isSame(sourceCRS, targetCRS)) return featuresList;
         List<SimpleFeature> ret = new ArrayList();
-        boolean lenient = true;
-        MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS, lenient);
+        MathTransform transform = CRSRegistry.findMathTransform(sourceCRS, targetCRS);
         for (SimpleFeature feature : featuresList) {
             if (feature.getDefaultGeometry()!=null) {
                 feature.setDefaultGeometry(JTS.transform((Geometry)feature.getDefaultGeometry(), transform));
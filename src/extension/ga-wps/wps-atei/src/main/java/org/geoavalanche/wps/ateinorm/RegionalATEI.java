@@ -0,0 +1,86 @@
+package org.geoavalanche.wps.ateinorm;
+
+import java.io.File;
+import java.util.logging.Logger;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.geoavalanche.wps.commons.SummedAreaTable;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+
+/**
+ * Offline job computing the ATEI of a whole region, with its summed area table
+ *
+ * The ATEI depends only on the terrain and the land cover, so it is computed
+ * once per region: the job writes the index as a GeoTIFF and its summed area
+ * table, that ATEINorm maps with geoavalanche.ateinorm.summedAreaTable to
+ * answer the features of the region without computing anything.
+ *
+ * java org.geoavalanche.wps.ateinorm.RegionalATEI -dem dem.tif -clc clc.tif
+ *   -output alps [-bbox minx,miny,maxx,maxy]
+ *
+ */
+public final class RegionalATEI {
+
+    private static final Logger LOG = Logger.getLogger(RegionalATEI.class.getName());
+
+    private RegionalATEI() {
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = new Options();
+        options.addOption(Option.builder("dem").hasArg().argName("file").required()
+                .desc("GeoTIFF of the DEM").build());
+        options.addOption(Option.builder("clc").hasArg().argName("file").required()
+                .desc("GeoTIFF of the land cover").build());
+        options.addOption(Option.builder("output").hasArg().argName("prefix").required()
+                .desc("prefix of the files written, <prefix>.tif and <prefix>.sat").build());
+        options.addOption(Option.builder("bbox").hasArg().argName("minx,miny,maxx,maxy")
+                .desc("region in the CRS of the DEM, the whole DEM by default").build());
+
+        CommandLine line;
+        try {
+            line = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("RegionalATEI", options, true);
+            System.exit(1);
+            return;
+        }
+
+        GridCoverage2D dem = ATEINorm.getLocalCoverage(new File(line.getOptionValue("dem")));
+        GridCoverage2D clc = ATEINorm.getLocalCoverage(new File(line.getOptionValue("clc")));
+
+        GeneralEnvelope bounds;
+        if (line.hasOption("bbox")) {
+            String[] values = line.getOptionValue("bbox").split(",");
+            if (values.length != 4) {
+                System.err.println("bbox must be minx,miny,maxx,maxy");
+                System.exit(1);
+                return;
+            }
+            bounds = new GeneralEnvelope(new ReferencedEnvelope(
+                    Double.parseDouble(values[0].trim()), Double.parseDouble(values[2].trim()),
+                    Double.parseDouble(values[1].trim()), Double.parseDouble(values[3].trim()),
+                    dem.getCoordinateReferenceSystem()));
+        } else {
+            bounds = new GeneralEnvelope(dem.getEnvelope());
+        }
+        LOG.info("regional ATEI over "+bounds);
+
+        long start = System.currentTimeMillis();
+        GridCoverage2D atei = ATEINorm.getATEICoverage(dem, clc, bounds);
+        LOG.info("ATEI computed in "+(System.currentTimeMillis() - start)+" ms");
+
+        String prefix = line.getOptionValue("output");
+        ATEINorm.writeToGeotiff(atei, prefix + ".tif");
+        SummedAreaTable.write(atei, ATEINorm.NO_DATA, new File(prefix + ".sat"));
+        LOG.info("regional ATEI written to "+prefix+".tif and "+prefix+".sat");
+    }
+}
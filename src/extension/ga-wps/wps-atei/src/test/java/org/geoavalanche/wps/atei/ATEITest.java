@@ -1,8 +1,20 @@
 package org.geoavalanche.wps.atei;
 
+import es.unex.sextante.dataObjects.IRasterLayer;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.HashSet;
+import java.util.Set;
+import javax.media.jai.RasterFactory;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultEngineeringCRS;
 
 /**
  * Unit test for simple App.
@@ -10,6 +22,10 @@ import junit.framework.TestSuite;
 public class ATEITest 
     extends TestCase
 {
+    private static final int WIDTH = 48;
+    private static final int HEIGHT = 40;
+    private static final double CELL_SIZE = 10.0;
+
     /**
      * Create the test case
      *
@@ -28,6 +44,12 @@ public class ATEITest
         return new TestSuite( ATEITest.class );
     }
 
+    @Override
+    protected void setUp() throws Exception
+    {
+        SextanteBootstrap.initialize();
+    }
+
     /**
      * Rigourous Test :-)
      */
@@ -35,4 +57,59 @@ public class ATEITest
     {
         assertTrue( true );
     }
+
+    /**
+     * The fused derivatives are a performance option, the index must be the
+     * one of the Sextante slope, aspect and curvatures algorithms
+     */
+    public void testFusedDerivativesGiveTheSameIndex() throws Exception
+    {
+        GridCoverage2D dem = coverage("dem", (x, y) ->
+                // ridges and hollows of every aspect on a slope rising towards north-west
+                (float) (1500 + 6 * (WIDTH - x) + 4 * (HEIGHT - y)
+                        + 80 * Math.sin(x / 4.0) * Math.cos(y / 5.0) + 0.3 * x * y));
+        GridCoverage2D clc = coverage("clc", (x, y) ->
+                // pastures, forest, grassland and heathland
+                new float[] {17, 23, 25, 26}[(x / 12 + y / 10) % 4]);
+
+        IRasterLayer sextante = ATEI.getATEI(layer(dem), layer(clc), false);
+        IRasterLayer fused = ATEI.getATEI(layer(dem), layer(clc), true);
+
+        assertEquals(sextante.getNX(), fused.getNX());
+        assertEquals(sextante.getNY(), fused.getNY());
+        Set<Double> values = new HashSet<Double>();
+        for (int y = 0; y < sextante.getNY(); y++) {
+            for (int x = 0; x < sextante.getNX(); x++) {
+                double expected = sextante.getCellValueAsDouble(x, y);
+                assertEquals("cell " + x + "," + y, expected, fused.getCellValueAsDouble(x, y), 0.0);
+                values.add(expected);
+            }
+        }
+        // every class of every input is met
+        assertTrue(values.size() > 10);
+    }
+
+    private interface Cells {
+        float value(int x, int y);
+    }
+
+    private static GridCoverage2D coverage(String name, Cells values)
+    {
+        WritableRaster raster = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, WIDTH, HEIGHT, 1, null);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, values.value(x, y));
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(0, WIDTH * CELL_SIZE, 0, HEIGHT * CELL_SIZE,
+                DefaultEngineeringCRS.GENERIC_2D);
+        return new GridCoverageFactory().create(name, raster, envelope);
+    }
+
+    private static IRasterLayer layer(GridCoverage2D coverage)
+    {
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(coverage);
+        return layer;
+    }
 }
@@ -0,0 +1,152 @@
+package org.geoavalanche.wps.ateinorm;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.media.jai.RasterFactory;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geoavalanche.wps.commons.GeometryResultCache;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for ATEINorm.
+ */
+public class ATEINormTest
+    extends TestCase
+{
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 32;
+    private static final double CELL_SIZE = 0.001;
+    private static final double X0 = 10.0;
+    private static final double Y0 = 45.0;
+
+    public ATEINormTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ATEINormTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        SextanteBootstrap.initialize();
+    }
+
+    /**
+     * Slope, aspect and curvature taken from the cache are cropped to the
+     * polygon as the DEM is, so the mean is the one of the cells inside it
+     */
+    public void testCachedLayersGiveTheMeanOfThePolygon() throws Exception
+    {
+        // a plane, whose derivatives do not depend on the cells around
+        GridCoverage2D dem = coverage("dem", (x, y) -> (float) (1000 + 0.0006 * x));
+        // grassland on the west, forest on the east
+        GridCoverage2D clc = coverage("clc", (x, y) -> x < WIDTH / 2 ? 25f : 23f);
+
+        // an L with its long side in the grassland
+        GeometryFactory gf = new GeometryFactory();
+        Geometry l = gf.createPolygon(new Coordinate[] {
+            coordinate(4, 4), coordinate(36, 4), coordinate(36, 10), coordinate(10, 10),
+            coordinate(10, 28), coordinate(4, 28), coordinate(4, 4)
+        });
+
+        double uncached = ATEINorm.getAteiNorm(l, dem, clc, true, false);
+        double cached = ATEINorm.getAteiNorm(l, dem, clc, true, true);
+        assertFalse(Double.isNaN(uncached));
+        assertEquals(uncached, cached, 1e-6);
+
+        // the envelope of the L holds more forest
+        double envelope = ATEINorm.getAteiNorm(l, dem, clc, false, false);
+        assertTrue(envelope < cached - 1e-3);
+    }
+
+    /**
+     * A mean cached by a request of a single feature is the one computed
+     * afresh in a request of many, with either engine, on a DEM whose
+     * derivatives depend on the cells around
+     */
+    public void testCachedMeanMatchesAFreshOne() throws Exception
+    {
+        // hills on a slope
+        GridCoverage2D dem = coverage("dem",
+                (x, y) -> (float) (1000 + 0.0006 * x + 0.0004 * Math.sin(x / 3.0) * Math.cos(y / 4.0)));
+        GridCoverage2D clc = coverage("clc", (x, y) -> x < WIDTH / 2 ? 25f : 23f);
+
+        GeometryFactory gf = new GeometryFactory();
+        Geometry l = gf.createPolygon(new Coordinate[] {
+            coordinate(4, 4), coordinate(36, 4), coordinate(36, 10), coordinate(10, 10),
+            coordinate(10, 28), coordinate(4, 28), coordinate(4, 4)
+        });
+        Geometry square = gf.createPolygon(new Coordinate[] {
+            coordinate(20, 14), coordinate(30, 14), coordinate(30, 24), coordinate(20, 24), coordinate(20, 14)
+        });
+        Geometry triangle = gf.createPolygon(new Coordinate[] {
+            coordinate(12, 20), coordinate(34, 14), coordinate(34, 26), coordinate(12, 20)
+        });
+        List<Geometry> geometries = Arrays.asList(l, square, triangle);
+        GeometryResultCache cache = GeometryResultCache.getDefault();
+        assertTrue(GeometryResultCache.isEnabled());
+
+        // the batch engine
+        cache.clear();
+        double[] fresh = ATEINorm.getBatchAteiNorms(geometries, dem, clc);
+        cache.clear();
+        ATEINorm.getBatchAteiNorms(Collections.singletonList(square), dem, clc);
+        long hits = cache.getHits();
+        double[] cached = ATEINorm.getBatchAteiNorms(geometries, dem, clc);
+        assertEquals(hits + 1, cache.getHits());
+        for (int i = 0; i < fresh.length; i++) {
+            assertFalse(Double.isNaN(fresh[i]));
+            assertEquals(fresh[i], cached[i], 1e-9);
+        }
+
+        // the features one by one
+        cache.clear();
+        double freshSquare = ATEINorm.getFeatureAteiNorm(square, dem, clc);
+        hits = cache.getHits();
+        assertEquals(freshSquare, ATEINorm.getFeatureAteiNorm(square, dem, clc), 1e-9);
+        assertEquals(hits + 1, cache.getHits());
+        // the engines have their own entries
+        cache.clear();
+        ATEINorm.getBatchAteiNorms(Collections.singletonList(square), dem, clc);
+        assertEquals(freshSquare, ATEINorm.getFeatureAteiNorm(square, dem, clc), 1e-9);
+        assertEquals(freshSquare, ATEINorm.getAteiNorm(square, dem, clc, true, false), 1e-6);
+    }
+
+    private interface Cells {
+        float value(int x, int y);
+    }
+
+    private static Coordinate coordinate(int x, int y)
+    {
+        return new Coordinate(X0 + x * CELL_SIZE, Y0 + y * CELL_SIZE);
+    }
+
+    private static GridCoverage2D coverage(String name, Cells values)
+    {
+        WritableRaster raster = RasterFactory.createBandedRaster(DataBuffer.TYPE_FLOAT, WIDTH, HEIGHT, 1, null);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, values.value(x, y));
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(X0, X0 + WIDTH * CELL_SIZE, Y0, Y0 + HEIGHT * CELL_SIZE,
+                DefaultGeographicCRS.WGS84);
+        return new GridCoverageFactory().create(name, raster, envelope);
+    }
+}
@@ -0,0 +1,108 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.core.GeoAlgorithm;
+import es.unex.sextante.core.OutputObjectsSet;
+import es.unex.sextante.core.ParametersSet;
+import es.unex.sextante.dataObjects.ILayer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Pool of reusable instances of a geoalgorithm
+ *
+ * Building a GeoAlgorithm defines its parameters and outputs, looking up their
+ * descriptions in the resource bundles; ATEINorm did it several times for every
+ * feature. Instances are configured once when created, borrowed for an
+ * execution and released afterwards. Released instances forget their inputs
+ * and outputs, so that an idle algorithm does not hold a raster in memory.
+ *
+ * Setting: geoavalanche.algorithmPool.maxIdle, instances kept per pool (number of processors)
+ *
+ * @param <T> the geoalgorithm
+ */
+public final class AlgorithmPool<T extends GeoAlgorithm> {
+
+    private static final Logger LOG = Logger.getLogger(AlgorithmPool.class.getName());
+    private static final int MAX_IDLE = Settings.getInt("geoavalanche.algorithmPool.maxIdle",
+            Runtime.getRuntime().availableProcessors());
+
+    private final Supplier<T> factory;
+    private final Consumer<T> configuration;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    public AlgorithmPool(Supplier<T> factory) {
+        this(factory, null);
+    }
+
+    /**
+     * @param factory creates a new instance
+     * @param configuration sets the parameters which are the same for every execution, may be null
+     */
+    public AlgorithmPool(Supplier<T> factory, Consumer<T> configuration) {
+        this.factory = factory;
+        this.configuration = configuration;
+    }
+
+    /**
+     * @return an instance of the algorithm, to be released after its execution
+     */
+    public T borrow() {
+        T alg = idle.poll();
+        if (alg != null) {
+            idleCount.decrementAndGet();
+            return alg;
+        }
+        SextanteBootstrap.initialize();
+        alg = factory.get();
+        if (configuration != null) {
+            configuration.accept(alg);
+        }
+        LOG.fine("created "+alg.getClass().getSimpleName()+" #"+created.incrementAndGet());
+        return alg;
+    }
+
+    /**
+     * Gives back an instance, once its results have been taken
+     */
+    public void release(T alg) {
+        if (alg == null) {
+            return;
+        }
+        clear(alg);
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            idle.offer(alg);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of instances created by the pool
+     */
+    public int getCreated() {
+        return created.get();
+    }
+
+    private void clear(T alg) {
+        ParametersSet params = alg.getParameters();
+        for (int i = 0; i < params.getNumberOfParameters(); i++) {
+            Object value = params.getParameter(i).getParameterValueAsObject();
+            if (value instanceof ILayer) {
+                try {
+                    params.getParameter(i).setParameterValue(null);
+                } catch (Exception e) {
+                    //the parameter does not accept null, it is set again on the next use
+                }
+            }
+        }
+        OutputObjectsSet outputs = alg.getOutputObjects();
+        for (int i = 0; i < outputs.getOutputObjectsCount(); i++) {
+            outputs.getOutput(i).setOutputObject(null);
+        }
+    }
+}
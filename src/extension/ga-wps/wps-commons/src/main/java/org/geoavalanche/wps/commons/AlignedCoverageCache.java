@@ -0,0 +1,366 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.media.jai.RasterFactory;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoordinates2D;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.ConcatenatedTransform;
+import org.opengis.referencing.datum.PixelInCell;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Cache of a coverage resampled on the grid of a DEM (the land cover)
+ *
+ * The source is resampled by nearest neighbour, keeping its data type, over
+ * fixed tiles of the grid of the DEM, which are kept by source, DEM and tile.
+ * A request over an area already seen reuses the resampled tiles, and the
+ * algorithms read the result cell by cell on the grid of the DEM instead of
+ * resampling the source through the window of its layer. The least recently
+ * used tiles are evicted past the memory budget.
+ *
+ * Cells of the DEM out of the source get the nodata value of the source, or
+ * 0 when it declares none, and so do the cells out of the region of interest
+ * of the request, which only masks the result, not the cached tiles.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.alignCache.enabled (true)</li>
+ * <li>geoavalanche.alignCache.memoryMB (128)</li>
+ * <li>geoavalanche.cache.tileSize in cells (256)</li>
+ * <li>geoavalanche.cache.demVersion, geoavalanche.cache.landCoverVersion, to be
+ * changed when a coverage is replaced in place</li>
+ * </ul>
+ *
+ */
+public final class AlignedCoverageCache {
+
+    private static final Logger LOG = Logger.getLogger(AlignedCoverageCache.class.getName());
+
+    private static final boolean ENABLED = Settings.getBoolean("geoavalanche.alignCache.enabled", true);
+    private static final AlignedCoverageCache DEFAULT = new AlignedCoverageCache(
+            Settings.getInt("geoavalanche.cache.tileSize", 256),
+            Settings.getLong("geoavalanche.alignCache.memoryMB", 128) * 1024 * 1024);
+
+    private final int tileSize;
+    private final long maxBytes;
+    private final String demVersion = Settings.get("geoavalanche.cache.demVersion", "");
+    private final String sourceVersion = Settings.get("geoavalanche.cache.landCoverVersion", "");
+
+    private final LinkedHashMap<String, Raster> memory = new LinkedHashMap<String, Raster>(64, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param tileSize the size of the tiles in cells
+     * @param maxBytes the memory budget
+     */
+    public AlignedCoverageCache(int tileSize, long maxBytes) {
+        this.tileSize = tileSize;
+        this.maxBytes = maxBytes;
+        LOG.info("aligned coverage cache: tileSize="+tileSize+" memory="+maxBytes);
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static AlignedCoverageCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the first band of the source resampled on the cells of the
+     * grid, a window of the grid of the DEM (as a crop of the DEM)
+     *
+     * @param source the coverage to resample, the land cover
+     * @param dem the whole DEM, whose tiles are cached
+     * @param grid the coverage whose grid is wanted, on the grid of the DEM
+     * @return the source over the grid, with the data type of the source
+     * @throws GeoAlgorithmExecutionException
+     */
+    public GridCoverage2D align(final GridCoverage2D source, GridCoverage2D dem, GridCoverage2D grid)
+            throws GeoAlgorithmExecutionException {
+        return align(source, dem, grid, null);
+    }
+
+    /**
+     * Returns the first band of the source resampled on the cells of the
+     * grid, the cells whose centre is out of the region of interest holding
+     * the nodata value, as in a crop of the source with the region
+     *
+     * @param source the coverage to resample, the land cover
+     * @param dem the whole DEM, whose tiles are cached
+     * @param grid the coverage whose grid is wanted, on the grid of the DEM
+     * @param roi the region of interest in the CRS of the DEM, null for the whole grid
+     * @return the source over the grid, with the data type of the source
+     * @throws GeoAlgorithmExecutionException
+     */
+    public GridCoverage2D align(final GridCoverage2D source, GridCoverage2D dem, GridCoverage2D grid, Geometry roi)
+            throws GeoAlgorithmExecutionException {
+
+        final GridGeometry2D gg = dem.getGridGeometry();
+        final Rectangle range = gg.getGridRange2D();
+        final MathTransform demToSource;
+        Rectangle window;
+        Envelope2D envelope;
+        try {
+            // the corner cells of the grid, by their centres on the grid of the DEM
+            GridEnvelope2D gridRange = grid.getGridGeometry().getGridRange2D();
+            DirectPosition2D upperLeft = grid.getGridGeometry().gridToWorld(
+                    new GridCoordinates2D(gridRange.x, gridRange.y));
+            DirectPosition2D lowerRight = grid.getGridGeometry().gridToWorld(
+                    new GridCoordinates2D(gridRange.x + gridRange.width - 1, gridRange.y + gridRange.height - 1));
+            GridCoordinates2D first = gg.worldToGrid(upperLeft);
+            GridCoordinates2D last = gg.worldToGrid(lowerRight);
+            window = new Rectangle(Math.min(first.x, last.x), Math.min(first.y, last.y),
+                    Math.abs(last.x - first.x) + 1, Math.abs(last.y - first.y) + 1).intersection(range);
+            if (window.isEmpty()) {
+                throw new GeoAlgorithmExecutionException(grid.getName()+" is out of "+dem.getName());
+            }
+            envelope = gg.gridToWorld(new GridEnvelope2D(window));
+
+            // grid of the DEM to grid of the source, both on the centres of the cells
+            MathTransform worldToWorld = CRS.equalsIgnoreMetadata(dem.getCoordinateReferenceSystem(), source.getCoordinateReferenceSystem())
+                    ? null : CRS.findMathTransform(dem.getCoordinateReferenceSystem(), source.getCoordinateReferenceSystem(), true);
+            MathTransform transform = gg.getGridToCRS(PixelInCell.CELL_CENTER);
+            if (worldToWorld != null) {
+                transform = ConcatenatedTransform.create(transform, worldToWorld);
+            }
+            demToSource = ConcatenatedTransform.create(transform,
+                    source.getGridGeometry().getGridToCRS(PixelInCell.CELL_CENTER).inverse());
+        } catch (GeoAlgorithmExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeoAlgorithmExecutionException(source.getName()+" can not be aligned on "+dem.getName()+": "+e);
+        }
+
+        final String prefix = DerivedLayerCache.identity(source, sourceVersion) + "/"
+                + DerivedLayerCache.identity(dem, demVersion) + "/";
+        final int dataType = source.getRenderedImage().getSampleModel().getDataType();
+        final double fill = fillValue(source);
+        final WritableRaster values = RasterFactory.createBandedRaster(dataType, window.width, window.height, 1, null);
+        final Rectangle target = window;
+
+        int tx0 = (window.x - range.x) / tileSize;
+        int ty0 = (window.y - range.y) / tileSize;
+        int tx1 = (window.x + window.width - 1 - range.x) / tileSize;
+        int ty1 = (window.y + window.height - 1 - range.y) / tileSize;
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int cached = 0;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                final String key = prefix + tx + "_" + ty;
+                final Rectangle core = new Rectangle(range.x + tx * tileSize, range.y + ty * tileSize, tileSize, tileSize)
+                        .intersection(range);
+                Raster tile = lookup(key);
+                if (tile != null) {
+                    copy(tile, core, values, target);
+                    cached++;
+                    continue;
+                }
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Raster tile = resample(source, demToSource, core, dataType, fill);
+                        remember(key, tile);
+                        copy(tile, core, values, target);
+                        return null;
+                    }
+                });
+            }
+        }
+        LOG.info(source.getName()+" over "+window+": "+cached+" cached tiles, "+tasks.size()+" to resample ("+this+")");
+        if (!tasks.isEmpty()) {
+            TiledProcessor.invokeAll(tasks, source.getName().toString());
+        }
+
+        GridCoverage2D aligned = Coverages.wrap(source.getName(), values, envelope,
+                new GridSampleDimension[] { source.getSampleDimension(0) }, source.getRenderedImage().getColorModel());
+        if (roi != null) {
+            // the coverage shares the raster of the values
+            mask(values, Scanline.worldToGrid(aligned), roi, fill);
+        }
+        return aligned;
+    }
+
+    /**
+     * Sets the fill value in the cells whose centre is out of the region
+     */
+    static void mask(final WritableRaster values, AffineTransform worldToGrid, Geometry roi, final double fill) {
+
+        final int width = values.getWidth();
+        final int height = values.getHeight();
+        // the next cell to visit, the runs come row by row from left to right
+        final int[] next = new int[2];
+        Scanline.rasterize(roi, worldToGrid, width, height, (row, from, to) -> {
+            fill(values, next, row, from, fill);
+            next[0] = row;
+            next[1] = to;
+        });
+        fill(values, next, height, 0, fill);
+    }
+
+    /**
+     * Fills the cells from the next one to the given one excluded
+     */
+    private static void fill(WritableRaster values, int[] next, int row, int column, double fill) {
+        final int width = values.getWidth();
+        for (int y = next[0]; y <= row && y < values.getHeight(); y++) {
+            int from = y == next[0] ? next[1] : 0;
+            int to = y == row ? column : width;
+            for (int x = from; x < to; x++) {
+                values.setSample(values.getMinX() + x, values.getMinY() + y, 0, fill);
+            }
+        }
+    }
+
+    /**
+     * Resamples the source on a tile of the grid of the DEM, by nearest neighbour
+     */
+    static Raster resample(GridCoverage2D source, MathTransform demToSource, Rectangle core, int dataType, double fill)
+            throws Exception {
+
+        final int n = core.width * core.height;
+        final double[] points = new double[2 * n];
+        for (int y = 0, i = 0; y < core.height; y++) {
+            for (int x = 0; x < core.width; x++) {
+                points[i++] = core.x + x;
+                points[i++] = core.y + y;
+            }
+        }
+        demToSource.transform(points, 0, points, 0, n);
+
+        // the cells of the source under the tile, read at once
+        final int[] cells = new int[2 * n];
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            int sx = (int) Math.floor(points[2 * i] + 0.5);
+            int sy = (int) Math.floor(points[2 * i + 1] + 0.5);
+            cells[2 * i] = sx;
+            cells[2 * i + 1] = sy;
+            minX = Math.min(minX, sx);
+            minY = Math.min(minY, sy);
+            maxX = Math.max(maxX, sx);
+            maxY = Math.max(maxY, sy);
+        }
+        final RenderedImage image = source.getRenderedImage();
+        final Rectangle area = new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1)
+                .intersection(new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight()));
+        final Raster data = area.isEmpty() ? null : image.getData(area);
+
+        final WritableRaster tile = RasterFactory.createBandedRaster(dataType, core.width, core.height, 1, null);
+        for (int y = 0, i = 0; y < core.height; y++) {
+            for (int x = 0; x < core.width; x++, i++) {
+                int sx = cells[2 * i];
+                int sy = cells[2 * i + 1];
+                tile.setSample(x, y, 0, data != null && area.contains(sx, sy) ? data.getSampleDouble(sx, sy, 0) : fill);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * @return the nodata value of the first band of the source, 0 without one
+     */
+    private static double fillValue(GridCoverage2D source) {
+        double[] noData = source.getSampleDimension(0).getNoDataValues();
+        return noData != null && noData.length > 0 ? noData[0] : 0;
+    }
+
+    /**
+     * Copies the cells of a tile falling in the target window
+     */
+    private static void copy(Raster tile, Rectangle core, WritableRaster values, Rectangle target) {
+        Rectangle common = core.intersection(target);
+        Raster part = tile.createChild(common.x - core.x, common.y - core.y, common.width, common.height,
+                common.x - target.x, common.y - target.y, null);
+        // the tiles do not overlap, but the raster is shared by the tasks
+        synchronized (values) {
+            values.setRect(part);
+        }
+    }
+
+    private Raster lookup(String key) {
+        synchronized (memory) {
+            Raster tile = memory.get(key);
+            if (tile != null) {
+                hits.incrementAndGet();
+                return tile;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private static long size(Raster tile) {
+        return (long) tile.getWidth() * tile.getHeight() * DataBuffer.getDataTypeSize(tile.getTransferType()) / 8;
+    }
+
+    private void remember(String key, Raster tile) {
+        synchronized (memory) {
+            Raster old = memory.put(key, tile);
+            bytes += size(tile) - (old != null ? size(old) : 0);
+            Iterator<Map.Entry<String, Raster>> it = memory.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Raster> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                bytes -= size(eldest.getValue());
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            bytes = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (memory) {
+            return "hits="+hits+" misses="+misses+" evictions="+evictions+" tiles="+memory.size()+" bytes="+bytes;
+        }
+    }
+}
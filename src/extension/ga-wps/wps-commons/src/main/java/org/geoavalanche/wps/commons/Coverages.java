@@ -0,0 +1,107 @@
+package org.geoavalanche.wps.commons;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.logging.Logger;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.operator.TranslateDescriptor;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.geometry.Envelope2D;
+import org.opengis.geometry.Envelope;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Helpers to build in memory coverages sharing the pixels of other ones
+ *
+ */
+public final class Coverages {
+
+    private static final Logger LOG = Logger.getLogger(Coverages.class.getName());
+    private static final GridCoverageFactory FACTORY = new GridCoverageFactory();
+
+    private Coverages() {
+    }
+
+    /**
+     * Returns the passed coverage with its image translated to the origin, as
+     * if it had been read from a file. This is what a GTRasterLayer expects,
+     * without the GeoTIFF round-trip.
+     *
+     * The image is not copied: an image already at the origin is returned as
+     * is, another one is wrapped in an integral translation sharing its tiles.
+     *
+     * @param cropped the (cropped) coverage
+     * @return a coverage ready to be wrapped in a GTRasterLayer
+     */
+    public static GridCoverage2D inMemory(GridCoverage2D cropped) {
+
+        RenderedImage image = cropped.getRenderedImage();
+        if (image.getMinX() == 0 && image.getMinY() == 0) {
+            return cropped;
+        }
+        RenderedImage translated = TranslateDescriptor.create(image,
+                (float) -image.getMinX(), (float) -image.getMinY(), null, null);
+        GridCoverage2D coverage = FACTORY.create(cropped.getName(), translated, cropped.getEnvelope(),
+                cropped.getSampleDimensions(), null, null);
+        LOG.fine("in memory coverage=" + coverage);
+        return coverage;
+    }
+
+    /**
+     * Returns a coverage over a window of the passed one, sharing the pixels
+     * of the passed raster. The raster of the returned coverage has its origin
+     * in 0,0.
+     *
+     * @param coverage the source coverage
+     * @param data pixels of the source coverage containing the window
+     * @param window the window, in the grid coordinates of the coverage
+     * @return the coverage of the window
+     */
+    public static GridCoverage2D subCoverage(GridCoverage2D coverage, Raster data, Rectangle window) {
+
+        WritableRaster child = writable(data).createWritableChild(window.x, window.y,
+                window.width, window.height, 0, 0, null);
+
+        Envelope2D envelope;
+        try {
+            envelope = coverage.getGridGeometry().gridToWorld(new GridEnvelope2D(window));
+        } catch (TransformException e) {
+            throw new IllegalArgumentException("window "+window+" is not valid for "+coverage.getName(), e);
+        }
+
+        return wrap(coverage.getName(), child, envelope, coverage.getSampleDimensions(), coverage.getRenderedImage().getColorModel());
+    }
+
+    /**
+     * Wraps a raster with origin in 0,0 in a coverage, without copying the pixels
+     */
+    public static GridCoverage2D wrap(CharSequence name, WritableRaster raster, Envelope envelope, GridSampleDimension[] bands, ColorModel cm) {
+
+        ColorModel colorModel = cm;
+        if (colorModel == null || !colorModel.isCompatibleRaster(raster)) {
+            colorModel = PlanarImage.createColorModel(raster.getSampleModel());
+        }
+        if (colorModel == null) {
+            //no way to build an image, let the factory choose the sample dimensions
+            return FACTORY.create(name, raster, envelope);
+        }
+        RenderedImage image = new BufferedImage(colorModel, raster, false, null);
+        return FACTORY.create(name, image, envelope, bands, null, null);
+    }
+
+    static WritableRaster writable(Raster data) {
+        if (data instanceof WritableRaster) {
+            return (WritableRaster) data;
+        }
+        WritableRaster copy = data.createCompatibleWritableRaster(data.getMinX(), data.getMinY(), data.getWidth(), data.getHeight());
+        copy.setRect(data);
+        return copy;
+    }
+}
@@ -0,0 +1,446 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import es.unex.sextante.dataObjects.IRasterLayer;
+import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
+import java.awt.Rectangle;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.processing.CoverageProcessor;
+import org.geotools.geometry.Envelope2D;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.geometry.Envelope;
+import org.opengis.parameter.ParameterValueGroup;
+
+/**
+ * Cache of the layers derived from a DEM (slope, aspect, curvature)
+ *
+ * The derived layers are computed over fixed tiles of the grid of the DEM and
+ * kept by DEM, product and tile, so that a request over an area already seen
+ * only runs the morphometry on the tiles it did not cover yet. Tiles are kept
+ * in memory, the least recently used ones being evicted past the memory budget,
+ * and optionally on disk.
+ *
+ * The tiles are computed on the whole DEM, while the uncached processes run on
+ * the DEM cropped to the bounds and masked by the region of interest. The
+ * cells whose 3x3 window reaches out of the crop, or holds a masked cell, are
+ * computed again on the cropped DEM, in blocks of EDGE_BLOCK cells, so that
+ * the result is cell by cell the one of the uncached processes, nodata out of
+ * the region included.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.cache.enabled (true)</li>
+ * <li>geoavalanche.cache.tileSize in cells (256)</li>
+ * <li>geoavalanche.cache.memoryMB (256)</li>
+ * <li>geoavalanche.cache.dir, the disk tier is off when not set</li>
+ * <li>geoavalanche.cache.demVersion, to be changed when a DEM is replaced in place</li>
+ * </ul>
+ *
+ */
+public final class DerivedLayerCache {
+
+    private static final Logger LOG = Logger.getLogger(DerivedLayerCache.class.getName());
+    private static final CoverageProcessor PROCESSOR = CoverageProcessor.getInstance();
+
+    /** Size in cells of the blocks computed again at the edge of a request */
+    static final int EDGE_BLOCK = 32;
+    private static final double DEFAULT_NO_DATA = -99999.0;
+
+    private static final boolean ENABLED = Settings.getBoolean("geoavalanche.cache.enabled", true);
+    private static final DerivedLayerCache DEFAULT = new DerivedLayerCache(
+            Settings.getInt("geoavalanche.cache.tileSize", 256),
+            Settings.getLong("geoavalanche.cache.memoryMB", 256) * 1024 * 1024,
+            Settings.get("geoavalanche.cache.dir", null));
+
+    private final int tileSize;
+    private final long maxBytes;
+    private final Path directory;
+    private final String demVersion = Settings.get("geoavalanche.cache.demVersion", "");
+
+    private final LinkedHashMap<String, float[]> memory = new LinkedHashMap<String, float[]>(64, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong edgeBlocks = new AtomicLong();
+
+    /**
+     * @param tileSize the size of the tiles in cells
+     * @param maxBytes the memory budget
+     * @param directory the directory of the disk tier, null for none
+     */
+    public DerivedLayerCache(int tileSize, long maxBytes, String directory) {
+        this.tileSize = tileSize;
+        this.maxBytes = maxBytes;
+        this.directory = directory != null && !directory.isEmpty() ? Paths.get(directory) : null;
+        LOG.info("derived layer cache: tileSize="+tileSize+" memory="+maxBytes+" directory="+this.directory);
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static DerivedLayerCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the name under which a derived layer is cached
+     *
+     * @param name the name of the layer (slope, aspect...)
+     * @param parameters the parameters of the algorithm computing it
+     * @return the product name
+     */
+    public static String product(String name, Object... parameters) {
+        StringBuilder sb = new StringBuilder(name);
+        for (Object p : parameters) {
+            sb.append('_').append(String.valueOf(p).replaceAll("[^A-Za-z0-9]", ""));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a layer derived from the DEM over the passed bounds, computing
+     * only the tiles not found in the cache and the edge of the request
+     *
+     * @param dem the whole DEM
+     * @param bounds the bounds of the request
+     * @param roi the region of interest the result is cropped to, null for none
+     * @param product the name of the derived layer, see product()
+     * @param op the operation deriving the layer from a tile of the DEM
+     * @return the derived layer, with a nodata band
+     * @throws GeoAlgorithmExecutionException
+     */
+    public GridCoverage2D derive(final GridCoverage2D dem, Envelope bounds, Geometry roi, final String product,
+            final TiledProcessor.TileOperation op) throws GeoAlgorithmExecutionException {
+
+        final GridGeometry2D gg = dem.getGridGeometry();
+        final Rectangle range = gg.getGridRange2D();
+        final GridCoverage2D masked;
+        Rectangle window;
+        Envelope2D envelope;
+        try {
+            Envelope demBounds = bounds;
+            if (bounds.getCoordinateReferenceSystem() != null
+                    && !CRS.equalsIgnoreMetadata(bounds.getCoordinateReferenceSystem(), dem.getCoordinateReferenceSystem())) {
+                demBounds = CRS.transform(bounds, dem.getCoordinateReferenceSystem());
+            }
+            // the DEM the uncached processes run on, a crop keeps the grid coordinates of the DEM
+            masked = crop(dem, new GeneralEnvelope(demBounds), roi);
+            window = masked.getGridGeometry().getGridRange2D().intersection(range);
+            if (window.isEmpty()) {
+                throw new GeoAlgorithmExecutionException("bounds "+bounds+" are out of "+dem.getName());
+            }
+            envelope = gg.gridToWorld(new GridEnvelope2D(window));
+        } catch (GeoAlgorithmExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GeoAlgorithmExecutionException("bounds "+bounds+" can not be mapped on "+dem.getName()+": "+e);
+        }
+
+        final String prefix = identity(dem, demVersion) + "/" + product + "/";
+        final float[] values = new float[window.width * window.height];
+        final Rectangle target = window;
+        final AtomicReference<IRasterLayer> result = new AtomicReference<IRasterLayer>();
+
+        int tx0 = (window.x - range.x) / tileSize;
+        int ty0 = (window.y - range.y) / tileSize;
+        int tx1 = (window.x + window.width - 1 - range.x) / tileSize;
+        int ty1 = (window.y + window.height - 1 - range.y) / tileSize;
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int cached = 0;
+        for (int ty = ty0; ty <= ty1; ty++) {
+            for (int tx = tx0; tx <= tx1; tx++) {
+                final String key = prefix + tx + "_" + ty;
+                final Rectangle core = new Rectangle(range.x + tx * tileSize, range.y + ty * tileSize, tileSize, tileSize)
+                        .intersection(range);
+                float[] tile = lookup(key);
+                if (tile != null) {
+                    copy(tile, core, values, target);
+                    cached++;
+                    continue;
+                }
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Raster data = dem.getRenderedImage().getData(halo(core, range));
+                        float[] tile = TiledProcessor.processTile(dem, data, range, core, op, result);
+                        store(key, tile);
+                        copy(tile, core, values, target);
+                        return null;
+                    }
+                });
+            }
+        }
+        LOG.info(product+" over "+window+": "+cached+" cached tiles, "+tasks.size()+" to compute ("+this+")");
+        if (!tasks.isEmpty()) {
+            TiledProcessor.invokeAll(tasks, product);
+        }
+
+        // the edge of the request, after the tiles it overwrites
+        List<Callable<Void>> edges = new ArrayList<Callable<Void>>();
+        for (int y = window.y; y < window.y + window.height; y += EDGE_BLOCK) {
+            for (int x = window.x; x < window.x + window.width; x += EDGE_BLOCK) {
+                final Rectangle core = new Rectangle(x, y, EDGE_BLOCK, EDGE_BLOCK).intersection(window);
+                edges.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Rectangle halo = halo(core, target);
+                        Raster data = masked.getRenderedImage().getData(halo);
+                        if (isEdge(core, target, data, dem.getRenderedImage(), halo)) {
+                            float[] block = TiledProcessor.processTile(masked, data, target, core, op, result);
+                            copy(block, core, values, target);
+                            edgeBlocks.incrementAndGet();
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        TiledProcessor.invokeAll(edges, product);
+
+        WritableRaster raster = Raster.createBandedRaster(new DataBufferFloat(values, values.length),
+                window.width, window.height, window.width, new int[] { 0 }, new int[] { 0 }, null);
+        double noData = result.get() != null ? result.get().getNoDataValue() : DEFAULT_NO_DATA;
+        return new GridCoverageFactory().create(product, raster, envelope,
+                new GridSampleDimension[] { FloatRasterLayer.noDataBand(product, noData) }, null, null);
+    }
+
+    /**
+     * Crops the DEM to the bounds, masked by the region of interest if any
+     */
+    private static GridCoverage2D crop(GridCoverage2D dem, GeneralEnvelope bounds, Geometry roi) {
+        final ParameterValueGroup param = PROCESSOR.getOperation("CoverageCrop").getParameters();
+        param.parameter("Source").setValue(dem);
+        param.parameter("Envelope").setValue(bounds);
+        if (roi != null) {
+            param.parameter("ROI").setValue(roi);
+        }
+        return (GridCoverage2D) PROCESSOR.doOperation(param);
+    }
+
+    /**
+     * Grows a block by the halo of the TiledProcessor, within the bounds
+     */
+    private static Rectangle halo(Rectangle core, Rectangle bounds) {
+        return new Rectangle(core.x - TiledProcessor.HALO, core.y - TiledProcessor.HALO,
+                core.width + 2 * TiledProcessor.HALO, core.height + 2 * TiledProcessor.HALO).intersection(bounds);
+    }
+
+    /**
+     * Tells whether a cell of the block has a window out of the crop or
+     * holding a cell of the cropped DEM which differs from the DEM
+     *
+     * @param core the block
+     * @param window the crop
+     * @param masked the pixels of the cropped DEM over the halo
+     * @param dem the image of the DEM
+     * @param halo the block grown by the halo, within the crop
+     */
+    static boolean isEdge(Rectangle core, Rectangle window, Raster masked, RenderedImage dem, Rectangle halo) {
+        if (core.x - TiledProcessor.HALO < window.x || core.y - TiledProcessor.HALO < window.y
+                || core.x + core.width + TiledProcessor.HALO > window.x + window.width
+                || core.y + core.height + TiledProcessor.HALO > window.y + window.height) {
+            return true;
+        }
+        Raster original = dem.getData(halo);
+        for (int y = halo.y; y < halo.y + halo.height; y++) {
+            for (int x = halo.x; x < halo.x + halo.width; x++) {
+                if (Double.compare(masked.getSampleDouble(x, y, 0), original.getSampleDouble(x, y, 0)) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the cells of a tile falling in the target window
+     */
+    private static void copy(float[] tile, Rectangle core, float[] values, Rectangle target) {
+        Rectangle common = core.intersection(target);
+        for (int y = common.y; y < common.y + common.height; y++) {
+            System.arraycopy(tile, (y - core.y) * core.width + common.x - core.x, values,
+                    (y - target.y) * target.width + common.x - target.x, common.width);
+        }
+    }
+
+    /**
+     * Returns a key identifying a coverage: its name, grid and envelope
+     *
+     * @param coverage the coverage
+     * @param version changed when the coverage is replaced in place
+     */
+    static String identity(GridCoverage2D coverage, String version) {
+        String id = coverage.getName() + "|" + coverage.getGridGeometry().getGridRange2D() + "|" + coverage.getEnvelope2D() + "|" + version;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(id.hashCode());
+        }
+    }
+
+    private float[] lookup(String key) {
+        synchronized (memory) {
+            float[] tile = memory.get(key);
+            if (tile != null) {
+                hits.incrementAndGet();
+                return tile;
+            }
+        }
+        float[] tile = read(key);
+        if (tile != null) {
+            diskHits.incrementAndGet();
+            remember(key, tile);
+            return tile;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void store(String key, float[] tile) {
+        remember(key, tile);
+        write(key, tile);
+    }
+
+    private void remember(String key, float[] tile) {
+        synchronized (memory) {
+            float[] old = memory.put(key, tile);
+            bytes += 4L * tile.length - (old != null ? 4L * old.length : 0);
+            Iterator<Map.Entry<String, float[]>> it = memory.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, float[]> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                bytes -= 4L * eldest.getValue().length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private float[] read(String key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key + ".raw");
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.nativeOrder());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            float[] tile = new float[buffer.remaining() / 4];
+            buffer.asFloatBuffer().get(tile);
+            return tile;
+        } catch (IOException e) {
+            LOG.severe("can not read cached tile "+file+": "+e);
+            return null;
+        }
+    }
+
+    private void write(String key, float[] tile) {
+        if (directory == null) {
+            return;
+        }
+        Path file = directory.resolve(key + ".raw");
+        try {
+            Files.createDirectories(file.getParent());
+            //write aside and move, so that a concurrent reader never sees half a tile
+            Path tmp = Files.createTempFile(file.getParent(), "tile", ".tmp");
+            ByteBuffer buffer = ByteBuffer.allocate(4 * tile.length).order(ByteOrder.nativeOrder());
+            buffer.asFloatBuffer().put(tile);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.severe("can not write cached tile "+file+": "+e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of blocks computed again at the edge of the requests
+     */
+    public long getEdgeBlocks() {
+        return edgeBlocks.get();
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            bytes = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (memory) {
+            return "hits="+hits+" diskHits="+diskHits+" misses="+misses+" evictions="+evictions
+                    +" edgeBlocks="+edgeBlocks+" tiles="+memory.size()+" bytes="+bytes;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.geoavalanche.wps.commons;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor of the processes evaluating the features of a collection
+ * one by one
+ *
+ * At most geoavalanche.features.queue features are in flight: the next one is
+ * read from the iterator only when a slot is free, so a large collection is
+ * never held in memory as pending tasks. The results come back in the order
+ * of the input. It is apart from the RowExecutor and the pool of the
+ * TiledProcessor, which the features use in their turn.
+ *
+ * Settings: geoavalanche.features.threads (half the number of processors),
+ * 1 to evaluate the features on the calling thread;
+ * geoavalanche.features.queue (twice the number of threads)
+ *
+ */
+public final class FeatureExecutor {
+
+    private static final int THREADS = Settings.getInt("geoavalanche.features.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE = Settings.getInt("geoavalanche.features.queue", 2 * THREADS);
+
+    private static volatile ExecutorService executor;
+
+    /**
+     * The evaluation of one item
+     */
+    public interface Task<T, R> {
+
+        R apply(T item) throws Exception;
+    }
+
+    private FeatureExecutor() {
+    }
+
+    /**
+     * Applies the task to every item of the iterator
+     *
+     * @param items the items, read from the calling thread only
+     * @param task the task, run concurrently
+     * @return the results, in the order of the items
+     * @throws Exception the first failure of a task, in the order of the items
+     */
+    public static <T, R> List<R> map(Iterator<T> items, Task<T, R> task) throws Exception {
+        return map(items, task, get(), QUEUE);
+    }
+
+    static <T, R> List<R> map(Iterator<T> items, final Task<T, R> task, ExecutorService pool, int queue)
+            throws Exception {
+
+        List<R> results = new ArrayList<R>();
+        if (pool == null) {
+            while (items.hasNext()) {
+                results.add(task.apply(items.next()));
+            }
+            return results;
+        }
+
+        final Semaphore slots = new Semaphore(Math.max(1, queue));
+        List<Future<R>> futures = new ArrayList<Future<R>>();
+        try {
+            while (items.hasNext()) {
+                slots.acquire();
+                final T item = items.next();
+                futures.add(pool.submit(() -> {
+                    try {
+                        return task.apply(item);
+                    } finally {
+                        slots.release();
+                    }
+                }));
+            }
+            for (Future<R> f : futures) {
+                results.add(f.get());
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            for (Future<R> f : futures) {
+                f.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the shared executor, or null if the features are evaluated on the calling thread
+     */
+    static ExecutorService get() {
+        if (THREADS <= 1) {
+            return null;
+        }
+        if (executor == null) {
+            synchronized (FeatureExecutor.class) {
+                if (executor == null) {
+                    final AtomicInteger count = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(THREADS, r -> {
+                        Thread thread = new Thread(r, "geoavalanche-features-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,90 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.core.AnalysisExtent;
+import es.unex.sextante.dataObjects.IRasterLayer;
+import es.unex.sextante.exceptions.UnsupportedOutputChannelException;
+import es.unex.sextante.outputs.IOutputChannel;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Logger;
+import org.geoavalanche.alg.avalanche.ByteRasterLayer;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
+import org.geoavalanche.alg.avalanche.MappedFloatRasterLayer;
+import org.geoserver.wps.sextante.GTOutputFactory;
+
+/**
+ * Output factory creating raster layers backed by a float array
+ *
+ * Vector layers and tables are created as by the GTOutputFactory. Rasters are
+ * FloatRasterLayers, whose base data object is a GridCoverage2D as well, so
+ * the processes can use their results the same way. They are read row by row
+ * when chained to the ATEI algorithm, instead of cell by cell through the
+ * window of a GTRasterLayer.
+ *
+ * A factory created for the quantized ATEI creates its single band rasters of
+ * type byte as ByteRasterLayers, keeping their cells as 8-bit codes with the
+ * scale and offset the algorithm sets. Any other factory creates byte rasters
+ * as float ones, so that their values are kept as they are.
+ *
+ * Rasters with more cells than a threshold can be kept in memory-mapped files
+ * of the scratch directory instead of the heap, so that large extents are
+ * bound by the disk.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.floatRasters (true), false to create GTRasterLayers</li>
+ * <li>geoavalanche.mappedRasters (false)</li>
+ * <li>geoavalanche.mappedRasters.minCells (4194304), smaller rasters stay on the heap</li>
+ * <li>geoavalanche.scratch.dir (java.io.tmpdir/geoavalanche)</li>
+ * </ul>
+ *
+ */
+public class FloatOutputFactory extends GTOutputFactory {
+
+    private static final Logger LOG = Logger.getLogger(FloatOutputFactory.class.getName());
+
+    private static final boolean ENABLED = Settings.getBoolean("geoavalanche.floatRasters", true);
+    private static final boolean MAPPED = Settings.getBoolean("geoavalanche.mappedRasters", false);
+    private static final long MAPPED_MIN_CELLS = Settings.getLong("geoavalanche.mappedRasters.minCells", 4L * 1024 * 1024);
+    private static final Path SCRATCH = ScratchWorkspace.root().resolve("rasters");
+
+    private final boolean byteCodes;
+
+    public FloatOutputFactory() {
+        this(false);
+    }
+
+    /**
+     * @param byteCodes true to create the single band byte rasters as
+     * ByteRasterLayers, for algorithms setting their scale and offset
+     */
+    public FloatOutputFactory(boolean byteCodes) {
+        this.byteCodes = byteCodes;
+    }
+
+    @Override
+    public IRasterLayer getNewRasterLayer(String sName, int iDataType, AnalysisExtent extent, int iBands,
+            IOutputChannel channel, Object crs) throws UnsupportedOutputChannelException {
+
+        if (!ENABLED) {
+            return super.getNewRasterLayer(sName, iDataType, extent, iBands, channel, crs);
+        }
+        if (byteCodes && iDataType == IRasterLayer.RASTER_DATA_TYPE_BYTE && iBands <= 1) {
+            ByteRasterLayer layer = new ByteRasterLayer();
+            layer.create(sName, extent, channel, crs);
+            return layer;
+        }
+        if (MAPPED && (long) extent.getNX() * extent.getNY() * Math.max(1, iBands) >= MAPPED_MIN_CELLS) {
+            MappedFloatRasterLayer layer = new MappedFloatRasterLayer();
+            try {
+                layer.create(sName, extent, iBands, channel, crs, SCRATCH);
+                return layer;
+            } catch (IOException e) {
+                LOG.severe("can not map raster "+sName+" in "+SCRATCH+", keeping it on the heap: "+e);
+            }
+        }
+        FloatRasterLayer layer = new FloatRasterLayer();
+        layer.create(sName, extent, iBands, channel, crs);
+        return layer;
+    }
+}
@@ -0,0 +1,321 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.ByteOrderValues;
+import com.vividsolutions.jts.io.WKBWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Cache of the values computed for a geometry over the terrain layers
+ *
+ * The terrain does not change from one request to the next, so the index of a
+ * geometry already seen is kept by the hash of its normalized WKB, the product
+ * computed and the identity of the DEM and land cover. When one of the layers
+ * changes its identity changes, and the values of the old one are never found
+ * again: they leave the memory tier as the least recently used, and the disk
+ * tier as the oldest files once it is over its limit.
+ *
+ * Values are kept in memory up to a number of entries, and optionally on disk,
+ * a file per value, so that they survive a restart of the server.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.resultCache.enabled (true)</li>
+ * <li>geoavalanche.resultCache.entries in memory (100000)</li>
+ * <li>geoavalanche.resultCache.dir, the disk tier is off when not set</li>
+ * <li>geoavalanche.resultCache.diskEntries (1000000)</li>
+ * <li>geoavalanche.cache.demVersion and geoavalanche.cache.landCoverVersion,
+ * to be changed when a layer is replaced in place</li>
+ * </ul>
+ *
+ */
+public final class GeometryResultCache {
+
+    private static final Logger LOG = Logger.getLogger(GeometryResultCache.class.getName());
+
+    private static final boolean ENABLED = Settings.getBoolean("geoavalanche.resultCache.enabled", true);
+    private static final GeometryResultCache DEFAULT = new GeometryResultCache(
+            Settings.getInt("geoavalanche.resultCache.entries", 100000),
+            Settings.get("geoavalanche.resultCache.dir", null),
+            Settings.getLong("geoavalanche.resultCache.diskEntries", 1000000));
+
+    private final int maxEntries;
+    private final Path directory;
+    private final long maxDiskEntries;
+    private final String demVersion = Settings.get("geoavalanche.cache.demVersion", "");
+    private final String landCoverVersion = Settings.get("geoavalanche.cache.landCoverVersion", "");
+
+    private final LinkedHashMap<String, Double> memory = new LinkedHashMap<String, Double>(1024, 0.75f, true);
+    //files of the disk tier, counted on first use
+    private long diskEntries = -1;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    /**
+     * @param maxEntries the number of values kept in memory
+     * @param directory the directory of the disk tier, null for none
+     * @param maxDiskEntries the number of values kept on disk
+     */
+    public GeometryResultCache(int maxEntries, String directory, long maxDiskEntries) {
+        this.maxEntries = maxEntries;
+        this.directory = directory != null && !directory.isEmpty() ? Paths.get(directory) : null;
+        this.maxDiskEntries = maxDiskEntries;
+        LOG.info("geometry result cache: entries="+maxEntries+" directory="+this.directory+" diskEntries="+maxDiskEntries);
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static GeometryResultCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the key of the value of a geometry
+     *
+     * @param geometry the geometry, in the CRS of the DEM
+     * @param product the name of the value and of the settings it depends on, see DerivedLayerCache.product()
+     * @param dem the DEM
+     * @param landCover the land cover
+     * @return the key
+     */
+    public String key(Geometry geometry, String product, GridCoverage2D dem, GridCoverage2D landCover) {
+        // the same shape gives the same bytes, whatever its first vertex and orientation
+        Geometry normalized = (Geometry) geometry.clone();
+        normalized.normalize();
+        byte[] wkb = new WKBWriter(2, ByteOrderValues.BIG_ENDIAN).write(normalized);
+        String layers = DerivedLayerCache.identity(dem, demVersion) + DerivedLayerCache.identity(landCover, landCoverVersion);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(wkb);
+            byte[] hash = digest.digest(product.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(layers).append('/');
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return layers + "/" + product + Integer.toHexString(Arrays.hashCode(wkb));
+        }
+    }
+
+    /**
+     * @param key the key of the value
+     * @return the value, null if it is not cached
+     */
+    public Double get(String key) {
+        synchronized (memory) {
+            Double value = memory.get(key);
+            if (value != null) {
+                hits.incrementAndGet();
+                return value;
+            }
+        }
+        Double value = read(key);
+        if (value != null) {
+            diskHits.incrementAndGet();
+            remember(key, value);
+            return value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param key the key of the value
+     * @param value the value, NaN included
+     */
+    public void put(String key, double value) {
+        remember(key, value);
+        write(key, value);
+    }
+
+    private void remember(String key, double value) {
+        synchronized (memory) {
+            memory.put(key, value);
+            while (memory.size() > maxEntries) {
+                memory.remove(memory.keySet().iterator().next());
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private Path file(String key) {
+        // a level of directories by the first characters of the hash
+        int slash = key.indexOf('/');
+        return directory.resolve(key.substring(0, slash)).resolve(key.substring(slash + 1, slash + 3))
+                .resolve(key.substring(slash + 1) + ".val");
+    }
+
+    private Double read(String key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = file(key);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length != 8) {
+                return null;
+            }
+            // the age of a file is that of its last use
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return ByteBuffer.wrap(bytes).getDouble();
+        } catch (IOException e) {
+            LOG.severe("can not read cached value "+file+": "+e);
+            return null;
+        }
+    }
+
+    private void write(String key, double value) {
+        if (directory == null) {
+            return;
+        }
+        Path file = file(key);
+        try {
+            Files.createDirectories(file.getParent());
+            //write aside and move, so that a concurrent reader never sees half a value
+            Path tmp = Files.createTempFile(file.getParent(), "value", ".tmp");
+            Files.write(tmp, ByteBuffer.allocate(8).putDouble(value).array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.severe("can not write cached value "+file+": "+e);
+            return;
+        }
+        boolean full;
+        synchronized (this) {
+            if (diskEntries < 0) {
+                diskEntries = list(directory).size();
+            } else {
+                diskEntries++;
+            }
+            full = diskEntries > maxDiskEntries;
+        }
+        if (full) {
+            trim();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files of the disk tier, down to nine
+     * tenths of its limit
+     */
+    private synchronized void trim() {
+        List<Path> files = list(directory);
+        if (files.size() <= maxDiskEntries) {
+            diskEntries = files.size();
+            return;
+        }
+        final Map<Path, Long> ages = new LinkedHashMap<Path, Long>();
+        for (Path f : files) {
+            try {
+                ages.put(f, Files.getLastModifiedTime(f).toMillis());
+            } catch (IOException e) {
+                ages.put(f, 0L);
+            }
+        }
+        Collections.sort(files, (a, b) -> Long.compare(ages.get(a), ages.get(b)));
+        long keep = maxDiskEntries * 9 / 10;
+        int deleted = 0;
+        for (int i = 0; i < files.size() - keep; i++) {
+            try {
+                Files.deleteIfExists(files.get(i));
+                deleted++;
+            } catch (IOException e) {
+                LOG.severe("can not delete cached value "+files.get(i)+": "+e);
+            }
+        }
+        diskEvictions.addAndGet(deleted);
+        diskEntries = files.size() - deleted;
+        LOG.info("geometry result cache: "+deleted+" values deleted from "+directory);
+    }
+
+    private static List<Path> list(Path directory) {
+        List<Path> files = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> layers = Files.newDirectoryStream(directory)) {
+            for (Path l : layers) {
+                if (!Files.isDirectory(l)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> shards = Files.newDirectoryStream(l)) {
+                    for (Path s : shards) {
+                        if (!Files.isDirectory(s)) {
+                            continue;
+                        }
+                        try (DirectoryStream<Path> values = Files.newDirectoryStream(s, "*.val")) {
+                            for (Path v : values) {
+                                files.add(v);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.severe("can not list the cached values in "+directory+": "+e);
+        }
+        return files;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getDiskEvictions() {
+        return diskEvictions.get();
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (memory) {
+            return "hits="+hits+" diskHits="+diskHits+" misses="+misses+" evictions="+evictions
+                    +" diskEvictions="+diskEvictions+" values="+memory.size();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.geoavalanche.wps.commons;
+
+import java.util.logging.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Stops the shared pools of the processes when the application context of
+ * GeoServer is closed, on shutdown or reload of the extensions
+ *
+ * It is declared in the applicationContext.xml of the module.
+ *
+ */
+public class ProcessLifecycle implements DisposableBean {
+
+    private static final Logger LOG = Logger.getLogger(ProcessLifecycle.class.getName());
+
+    @Override
+    public void destroy() {
+        LOG.info("stopping the tiling pool");
+        TiledProcessor.shutdown();
+    }
+}
@@ -0,0 +1,48 @@
+package org.geoavalanche.wps.commons;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executor of the geoalgorithms computing their rows in parallel
+ *
+ * It is apart from the pool of the TiledProcessor: a tile waiting for its
+ * rows never takes a thread the rows need.
+ *
+ * Setting: geoavalanche.rows.threads (number of processors), 1 to compute the
+ * rows on the calling thread
+ *
+ */
+public final class RowExecutor {
+
+    private static final int THREADS = Settings.getInt("geoavalanche.rows.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    private static volatile ExecutorService executor;
+
+    private RowExecutor() {
+    }
+
+    /**
+     * @return the shared executor, or null if the rows are computed on the calling thread
+     */
+    public static ExecutorService get() {
+        if (THREADS <= 1) {
+            return null;
+        }
+        if (executor == null) {
+            synchronized (RowExecutor.class) {
+                if (executor == null) {
+                    final AtomicInteger count = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(THREADS, r -> {
+                        Thread thread = new Thread(r, "geoavalanche-rows-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+}
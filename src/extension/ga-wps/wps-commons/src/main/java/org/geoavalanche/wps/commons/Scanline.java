@@ -0,0 +1,144 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.operation.MathTransform2D;
+
+/**
+ * Rasterization of polygons into runs of cells, row by row
+ *
+ * A cell is inside when its centre is, by the even-odd rule over all the
+ * rings of the polygons.
+ *
+ */
+final class Scanline {
+
+    /**
+     * Receives the runs of cells inside a polygon
+     */
+    interface Runs {
+
+        /**
+         * @param row the row
+         * @param from the first column inside
+         * @param to the column after the last one inside
+         */
+        void run(int row, int from, int to);
+    }
+
+    private Scanline() {
+    }
+
+    /**
+     * Returns the transform from world coordinates to the rows and columns
+     * of the raster of a coverage
+     *
+     * @param coverage a coverage with an affine grid to world transform
+     * @return the transform, from the upper left corner of the cells
+     */
+    static AffineTransform worldToGrid(GridCoverage2D coverage) {
+
+        MathTransform2D gridToWorld = coverage.getGridGeometry().getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+        if (!(gridToWorld instanceof AffineTransform)) {
+            throw new IllegalArgumentException("the grid of "+coverage.getName()+" is not affine");
+        }
+        try {
+            AffineTransform inverse = ((AffineTransform) gridToWorld).createInverse();
+            // rows and columns from the origin of the raster
+            int minX = coverage.getGridGeometry().getGridRange2D().x;
+            int minY = coverage.getGridGeometry().getGridRange2D().y;
+            inverse.preConcatenate(AffineTransform.getTranslateInstance(-minX, -minY));
+            return inverse;
+        } catch (NoninvertibleTransformException e) {
+            throw new IllegalArgumentException("the grid of "+coverage.getName()+" can not be inverted", e);
+        }
+    }
+
+    /**
+     * Visits the runs of cells inside the polygons of a geometry
+     *
+     * @param geometry a Polygon, MultiPolygon or collection of them
+     * @param worldToGrid the transform from the CRS of the geometry to the grid
+     * @param width the number of columns of the grid
+     * @param height the number of rows of the grid
+     * @param runs the visitor, called row by row with the runs from left to right
+     */
+    static void rasterize(Geometry geometry, AffineTransform worldToGrid, int width, int height, Runs runs) {
+
+        // edges of all the rings, as x0,y0,x1,y1 in grid coordinates
+        double[] edges = new double[64];
+        int count = 0;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        final Point2D.Double point = new Point2D.Double();
+        for (int g = 0; g < geometry.getNumGeometries(); g++) {
+            Geometry part = geometry.getGeometryN(g);
+            if (!(part instanceof Polygon)) {
+                continue;
+            }
+            Polygon polygon = (Polygon) part;
+            for (int r = -1; r < polygon.getNumInteriorRing(); r++) {
+                LineString ring = r < 0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(r);
+                Coordinate[] coords = ring.getCoordinates();
+                double px = 0;
+                double py = 0;
+                for (int i = 0; i < coords.length; i++) {
+                    point.setLocation(coords[i].x, coords[i].y);
+                    worldToGrid.transform(point, point);
+                    if (i > 0) {
+                        if (count + 4 > edges.length) {
+                            edges = Arrays.copyOf(edges, edges.length * 2);
+                        }
+                        edges[count++] = px;
+                        edges[count++] = py;
+                        edges[count++] = point.x;
+                        edges[count++] = point.y;
+                    }
+                    px = point.x;
+                    py = point.y;
+                    minY = Math.min(minY, py);
+                    maxY = Math.max(maxY, py);
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        double[] crossings = new double[16];
+        final int firstRow = Math.max(0, (int) Math.ceil(minY - 0.5));
+        final int lastRow = Math.min(height - 1, (int) Math.floor(maxY - 0.5));
+        for (int row = firstRow; row <= lastRow; row++) {
+            final double yc = row + 0.5;
+            int n = 0;
+            for (int e = 0; e < count; e += 4) {
+                double y0 = edges[e + 1];
+                double y1 = edges[e + 3];
+                if ((y0 <= yc && yc < y1) || (y1 <= yc && yc < y0)) {
+                    if (n == crossings.length) {
+                        crossings = Arrays.copyOf(crossings, n * 2);
+                    }
+                    double x0 = edges[e];
+                    crossings[n++] = x0 + (yc - y0) * (edges[e + 2] - x0) / (y1 - y0);
+                }
+            }
+            Arrays.sort(crossings, 0, n);
+            for (int i = 0; i + 1 < n; i += 2) {
+                // columns whose centre is in [crossings[i], crossings[i + 1])
+                int from = Math.max(0, (int) Math.ceil(crossings[i] - 0.5));
+                int to = Math.min(width, (int) Math.ceil(crossings[i + 1] - 0.5));
+                if (from < to) {
+                    runs.run(row, from, to);
+                }
+            }
+        }
+    }
+}
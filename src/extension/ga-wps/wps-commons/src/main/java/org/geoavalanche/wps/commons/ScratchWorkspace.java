@@ -0,0 +1,259 @@
+package org.geoavalanche.wps.commons;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Scratch directory of a single execution of a process
+ *
+ * Every execution gets its own directory under the scratch root, so that
+ * concurrent executions on the same layer do not write the same files, and
+ * the directory is deleted when the execution closes its workspace. The
+ * directory is only created when a first file is asked for.
+ *
+ * A background reaper deletes the directories left behind by executions which
+ * did not close their workspace (a killed server, a file still open when it
+ * was closed), and the oldest ones of the closed workspaces when the scratch
+ * directories take more than the disk quota. Workspaces in use are never
+ * reaped.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.scratch.dir (java.io.tmpdir/geoavalanche)</li>
+ * <li>geoavalanche.scratch.quotaMB (2048)</li>
+ * <li>geoavalanche.scratch.maxAgeMinutes (60), age of the directories left behind</li>
+ * <li>geoavalanche.scratch.reaperSeconds (300)</li>
+ * </ul>
+ *
+ */
+public final class ScratchWorkspace implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(ScratchWorkspace.class.getName());
+
+    private static final Path ROOT = Paths.get(Settings.get("geoavalanche.scratch.dir",
+            Paths.get(System.getProperty("java.io.tmpdir"), "geoavalanche").toString()));
+    private static final Path WORK = ROOT.resolve("work");
+    private static final long QUOTA_BYTES = Settings.getLong("geoavalanche.scratch.quotaMB", 2048) * 1024 * 1024;
+    private static final long MAX_AGE_MILLIS = Settings.getLong("geoavalanche.scratch.maxAgeMinutes", 60) * 60 * 1000;
+    private static final long REAPER_SECONDS = Settings.getLong("geoavalanche.scratch.reaperSeconds", 300);
+
+    /* directories of the workspaces not closed yet */
+    private static final Set<Path> ACTIVE = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private static volatile ScheduledExecutorService reaper;
+
+    private final Path directory;
+    private volatile boolean created;
+
+    private ScratchWorkspace(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the root of the scratch directories
+     */
+    public static Path root() {
+        return ROOT;
+    }
+
+    /**
+     * Opens the workspace of an execution, to be closed when it is over
+     *
+     * @param owner the name of the process, used as prefix of the directory
+     * @return a new workspace
+     */
+    public static ScratchWorkspace open(String owner) {
+        startReaper();
+        ScratchWorkspace workspace = new ScratchWorkspace(
+                WORK.resolve(owner + "-" + System.currentTimeMillis() + "-" + UUID.randomUUID()));
+        ACTIVE.add(workspace.directory);
+        return workspace;
+    }
+
+    /**
+     * @return the directory of the workspace, created if needed
+     * @throws IOException if the directory can not be created
+     */
+    public Path getDirectory() throws IOException {
+        if (!created) {
+            Files.createDirectories(directory);
+            created = true;
+        }
+        return directory;
+    }
+
+    /**
+     * Returns a new file of the workspace, with a name no other file has
+     *
+     * @param prefix the prefix of the name
+     * @param suffix the suffix of the name, as ".tiff"
+     * @return an empty file
+     * @throws IOException if the file can not be created
+     */
+    public File newFile(String prefix, String suffix) throws IOException {
+        return Files.createTempFile(getDirectory(), prefix, suffix).toFile();
+    }
+
+    /**
+     * Deletes the directory and its files; a directory which can not be
+     * deleted now is left to the reaper
+     */
+    @Override
+    public void close() {
+        if (created && !delete(directory)) {
+            LOG.warning("scratch directory "+directory+" left to the reaper");
+        }
+        ACTIVE.remove(directory);
+    }
+
+    @Override
+    public String toString() {
+        return directory.toString();
+    }
+
+    private static void startReaper() {
+        if (reaper == null) {
+            synchronized (ScratchWorkspace.class) {
+                if (reaper == null) {
+                    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "geoavalanche-scratch-reaper");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.scheduleWithFixedDelay(() -> reap(WORK, MAX_AGE_MILLIS, QUOTA_BYTES),
+                            0, REAPER_SECONDS, TimeUnit.SECONDS);
+                    reaper = executor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the inactive directories older than the maximum age, then the
+     * oldest inactive ones until the directories fit in the quota
+     *
+     * @param work the parent of the directories of the workspaces
+     * @param maxAgeMillis age past which an inactive directory is deleted
+     * @param quotaBytes the disk quota of the directories
+     * @return the number of bytes left in the directories
+     */
+    static long reap(Path work, long maxAgeMillis, long quotaBytes) {
+
+        if (!Files.isDirectory(work)) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        final List<Path> inactive = new ArrayList<Path>();
+        long total = 0;
+        long active = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(work)) {
+            for (Path dir : dirs) {
+                long size = size(dir);
+                if (ACTIVE.contains(dir)) {
+                    active += size;
+                    total += size;
+                } else if (now - Files.getLastModifiedTime(dir).toMillis() > maxAgeMillis && delete(dir)) {
+                    LOG.info("reaped scratch directory "+dir);
+                } else {
+                    inactive.add(dir);
+                    total += size;
+                }
+            }
+        } catch (IOException e) {
+            LOG.severe("can not reap the scratch directories of "+work+": "+e);
+            return total;
+        }
+
+        if (total > quotaBytes) {
+            inactive.sort(Comparator.comparingLong(ScratchWorkspace::lastModified));
+            for (Path dir : inactive) {
+                if (total <= quotaBytes) {
+                    break;
+                }
+                long size = size(dir);
+                if (delete(dir)) {
+                    LOG.info("reaped scratch directory "+dir+" over quota");
+                    total -= size;
+                }
+            }
+            if (total > quotaBytes) {
+                LOG.severe("scratch directories take "+total+" bytes, "+active+" of them in use, quota "+quotaBytes);
+            }
+        }
+        return total;
+
+    }
+
+    private static long lastModified(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long size(Path dir) {
+        final AtomicLong size = new AtomicLong();
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size.addAndGet(attrs.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            //counted as far as it could be walked
+        }
+        return size.get();
+    }
+
+    private static boolean delete(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    Files.delete(d);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return true;
+        } catch (IOException e) {
+            LOG.warning("can not delete scratch directory "+dir+": "+e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.geoavalanche.wps.commons;
+
+import java.util.logging.Logger;
+
+/**
+ * Server side settings of the GeoAvalanche processes
+ *
+ * A setting is looked up as a system property (-Dgeoavalanche.tiling.threads=8)
+ * and then as an environment variable with the same name in upper case
+ * (GEOAVALANCHE_TILING_THREADS), as done for MONGOIP by the Crowd process.
+ *
+ */
+public final class Settings {
+
+    private static final Logger LOG = Logger.getLogger(Settings.class.getName());
+
+    private Settings() {
+    }
+
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key.toUpperCase().replace('.', '_'));
+        }
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            LOG.severe("setting "+key+" is not an integer: "+value);
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOG.severe("setting "+key+" is not a long: "+value);
+            return defaultValue;
+        }
+    }
+}
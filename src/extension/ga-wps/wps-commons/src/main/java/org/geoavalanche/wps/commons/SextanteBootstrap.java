@@ -0,0 +1,46 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.core.Sextante;
+import java.util.logging.Logger;
+
+/**
+ * Initializes the Sextante library once per JVM
+ *
+ * Sextante.initialize() loads every algorithm and resource bundle on the
+ * classpath. The processes used to call it on every execution; they now call
+ * initialize() from the constructor of their process factory, which GeoServer
+ * creates once, and again before running algorithms in case the factory was
+ * created by other means. Only the first call does the work.
+ *
+ */
+public final class SextanteBootstrap {
+
+    private static final Logger LOG = Logger.getLogger(SextanteBootstrap.class.getName());
+
+    private static volatile boolean initialized;
+
+    private SextanteBootstrap() {
+    }
+
+    public static void initialize() {
+        if (initialized) {
+            return;
+        }
+        synchronized (SextanteBootstrap.class) {
+            if (!initialized) {
+                long start = System.currentTimeMillis();
+                /*
+                 * Since no language code is passed, default language(en)
+                 * will be used
+                 */
+                Sextante.initialize();
+                initialized = true;
+                LOG.info("Sextante initialized in "+(System.currentTimeMillis() - start)+" ms");
+            }
+        }
+    }
+
+    public static boolean isInitialized() {
+        return initialized;
+    }
+}
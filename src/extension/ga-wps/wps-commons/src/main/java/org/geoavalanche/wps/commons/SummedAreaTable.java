@@ -0,0 +1,282 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Integral image of a raster, answering the mean of the cells of any envelope
+ * in constant time and of any polygon in time proportional to its rows
+ *
+ * The table holds, for every corner (row, col) of the grid, the sum of the
+ * values and the number of cells with data above and to the left of it. It is
+ * written once by an offline job and memory mapped by the processes, the
+ * pages being shared between them through the page cache.
+ *
+ * The file is a header (magic, version, width, height, the six terms of the
+ * grid to world transform of the upper left corner of the cells) followed by
+ * (height + 1) rows of (width + 1) entries, each a double sum and a long count,
+ * big endian. A row has to fit in a single mapping of at most 2GB, a table
+ * of more than about 134 million columns is refused.
+ *
+ */
+public final class SummedAreaTable implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(SummedAreaTable.class.getName());
+
+    private static final int MAGIC = 0x47415354;
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 * 4 + 6 * 8;
+    private static final int ENTRY = 8 + 8;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final int rowsPerChunk;
+    private final long rowBytes;
+    private final int width;
+    private final int height;
+    private final AffineTransform worldToGrid;
+    private final Envelope envelope;
+
+    private SummedAreaTable(FileChannel channel, int width, int height, AffineTransform gridToWorld) throws IOException {
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        Point2D upperLeft = gridToWorld.transform(new Point2D.Double(0, 0), null);
+        Point2D lowerRight = gridToWorld.transform(new Point2D.Double(width, height), null);
+        this.envelope = new Envelope(upperLeft.getX(), lowerRight.getX(), upperLeft.getY(), lowerRight.getY());
+        try {
+            this.worldToGrid = gridToWorld.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IOException("the grid of the table can not be inverted", e);
+        }
+        this.rowBytes = (long) (width + 1) * ENTRY;
+        // a mapping is at most 2GB, a row is never split between two of them
+        this.rowsPerChunk = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+        int rows = height + 1;
+        this.chunks = new MappedByteBuffer[(rows + rowsPerChunk - 1) / rowsPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            int first = i * rowsPerChunk;
+            int count = Math.min(rowsPerChunk, rows - first);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + first * rowBytes, count * rowBytes);
+        }
+    }
+
+    /**
+     * Writes the table of a coverage, row by row
+     *
+     * @param coverage the coverage, of one band with an affine grid to world transform
+     * @param noData the nodata value of the coverage, cells with it or NaN are left out
+     * @param file the file of the table, replaced once complete
+     * @throws IOException
+     */
+    public static void write(GridCoverage2D coverage, double noData, File file) throws IOException {
+
+        RenderedImage image = coverage.getRenderedImage();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        checkRow(width, coverage.getName());
+        AffineTransform gridToWorld;
+        try {
+            gridToWorld = Scanline.worldToGrid(coverage).createInverse();
+        } catch (NoninvertibleTransformException e) {
+            throw new IOException("the grid of "+coverage.getName()+" can not be inverted", e);
+        }
+        double[] matrix = new double[6];
+        gridToWorld.getMatrix(matrix);
+
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+            for (double m : matrix) {
+                header.putDouble(m);
+            }
+            header.flip();
+            writeFully(out, header);
+
+            // the first row of corners is all zeros
+            double[] sums = new double[width + 1];
+            long[] counts = new long[width + 1];
+            ByteBuffer row = ByteBuffer.allocate((width + 1) * ENTRY);
+            writeRow(out, row, sums, counts);
+            float[] values = new float[width];
+            for (int y = 0; y < height; y++) {
+                Raster data = image.getData(new Rectangle(image.getMinX(), image.getMinY() + y, width, 1));
+                data.getSamples(data.getMinX(), data.getMinY(), width, 1, 0, values);
+                double rowSum = 0;
+                long rowCount = 0;
+                for (int x = 0; x < width; x++) {
+                    float v = values[x];
+                    if (v != noData && !Float.isNaN(v)) {
+                        rowSum += v;
+                        rowCount++;
+                    }
+                    sums[x + 1] += rowSum;
+                    counts[x + 1] += rowCount;
+                }
+                writeRow(out, row, sums, counts);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("summed area table of "+coverage.getName()+" written to "+file+", "+width+"x"+height+" cells");
+    }
+
+    private static void writeRow(FileChannel out, ByteBuffer row, double[] sums, long[] counts) throws IOException {
+        row.clear();
+        for (int x = 0; x < sums.length; x++) {
+            row.putDouble(sums[x]).putLong(counts[x]);
+        }
+        row.flip();
+        writeFully(out, row);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Maps a table written by write
+     *
+     * @param file the file of the table
+     * @return the table, to close when no longer used
+     * @throws IOException if the file is not a table
+     */
+    public static SummedAreaTable open(File file) throws IOException {
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // reading the header
+            }
+            header.flip();
+            if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+                throw new IOException(file+" is not a summed area table");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file+" is a summed area table of version "+version);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            if (width < 0 || height < 0) {
+                throw new IOException(file+" is a summed area table of "+width+"x"+height+" cells");
+            }
+            checkRow(width, file);
+            double[] matrix = new double[6];
+            for (int i = 0; i < matrix.length; i++) {
+                matrix[i] = header.getDouble();
+            }
+            long expected = HEADER + (long) (height + 1) * (width + 1) * ENTRY;
+            if (channel.size() != expected) {
+                throw new IOException(file+" holds "+channel.size()+" bytes instead of "+expected);
+            }
+            SummedAreaTable table = new SummedAreaTable(channel, width, height, new AffineTransform(matrix));
+            LOG.info("summed area table "+file+" mapped, "+width+"x"+height+" cells");
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @throws IOException if a row of the table can not be mapped in one piece
+     */
+    private static void checkRow(int width, Object source) throws IOException {
+        long rowBytes = (long) (width + 1) * ENTRY;
+        if (rowBytes > Integer.MAX_VALUE) {
+            throw new IOException("the rows of the summed area table of "+source+" would hold "+rowBytes
+                    +" bytes, more than a mapping can");
+        }
+    }
+
+    /**
+     * @return the envelope of the cells of the table, in the CRS of the raster
+     */
+    public Envelope getEnvelope() {
+        return new Envelope(envelope);
+    }
+
+    /**
+     * Returns the mean of the cells whose centre is inside an envelope
+     *
+     * @param envelope the envelope, in the CRS of the raster
+     * @return the mean, NaN if no cell with data is inside
+     */
+    public double mean(Envelope envelope) {
+
+        Point2D a = worldToGrid.transform(new Point2D.Double(envelope.getMinX(), envelope.getMinY()), null);
+        Point2D b = worldToGrid.transform(new Point2D.Double(envelope.getMaxX(), envelope.getMaxY()), null);
+        // the cells whose centre is in [min, max) of both axes
+        int col0 = clamp((int) Math.ceil(Math.min(a.getX(), b.getX()) - 0.5), width);
+        int col1 = clamp((int) Math.ceil(Math.max(a.getX(), b.getX()) - 0.5), width);
+        int row0 = clamp((int) Math.ceil(Math.min(a.getY(), b.getY()) - 0.5), height);
+        int row1 = clamp((int) Math.ceil(Math.max(a.getY(), b.getY()) - 0.5), height);
+        if (col0 >= col1 || row0 >= row1) {
+            return Double.NaN;
+        }
+        double sum = sum(row1, col1) - sum(row0, col1) - sum(row1, col0) + sum(row0, col0);
+        long cells = count(row1, col1) - count(row0, col1) - count(row1, col0) + count(row0, col0);
+        return cells == 0 ? Double.NaN : sum / cells;
+    }
+
+    /**
+     * Returns the mean of the cells inside the polygons of a geometry, summing
+     * the runs of cells of every row from the table
+     *
+     * @param geometry a Polygon, MultiPolygon or collection of them, in the CRS of the raster
+     * @return the mean, NaN if no cell with data is inside
+     */
+    public double mean(Geometry geometry) {
+
+        final double[] sum = new double[1];
+        final long[] cells = new long[1];
+        Scanline.rasterize(geometry, worldToGrid, width, height, (row, from, to) -> {
+            sum[0] += sum(row + 1, to) - sum(row, to) - sum(row + 1, from) + sum(row, from);
+            cells[0] += count(row + 1, to) - count(row, to) - count(row + 1, from) + count(row, from);
+        });
+        return cells[0] == 0 ? Double.NaN : sum[0] / cells[0];
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+    private int offset(int row, int col) {
+        return (int) ((row % rowsPerChunk) * rowBytes) + col * ENTRY;
+    }
+
+    private double sum(int row, int col) {
+        return chunks[row / rowsPerChunk].getDouble(offset(row, col));
+    }
+
+    private long count(int row, int col) {
+        return chunks[row / rowsPerChunk].getLong(offset(row, col) + 8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,259 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.dataObjects.IRasterLayer;
+import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+
+/**
+ * Runs a 3x3 neighbourhood operation on a coverage tile by tile
+ *
+ * The coverage is split in square tiles, each one grown by a halo of one cell
+ * on every side so that the neighbourhood of its border cells is the same as in
+ * the whole coverage. The tiles are processed in parallel and only their core
+ * cells are copied in the result, which is then cell by cell the same as the
+ * one computed on the whole coverage.
+ *
+ * Each tile reads only its own pixels and halo from the image of the
+ * coverage, the coverage is never copied as a whole.
+ *
+ * The pool runs on daemon threads, created at the first tiled processing and
+ * stopped by shutdown(), which ProcessLifecycle calls when the application
+ * context of GeoServer is closed.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.tiling.enabled (true)</li>
+ * <li>geoavalanche.tiling.tileSize in cells (512)</li>
+ * <li>geoavalanche.tiling.threads (number of processors)</li>
+ * </ul>
+ *
+ */
+public final class TiledProcessor {
+
+    private static final Logger LOG = Logger.getLogger(TiledProcessor.class.getName());
+
+    /** Cells added on every side of a tile, enough for a 3x3 window */
+    public static final int HALO = 1;
+
+    private static final boolean ENABLED = Settings.getBoolean("geoavalanche.tiling.enabled", true);
+    private static final int TILE_SIZE = Settings.getInt("geoavalanche.tiling.tileSize", 512);
+    private static final int THREADS = Math.max(1,
+            Settings.getInt("geoavalanche.tiling.threads", Runtime.getRuntime().availableProcessors()));
+
+    private static volatile ForkJoinPool pool;
+
+    private TiledProcessor() {
+    }
+
+    /**
+     * The operation to run on every tile
+     */
+    public interface TileOperation {
+
+        /**
+         * @param tile the tile, halo included
+         * @param coverage the coverage of the tile, halo included
+         * @return the result over the extent of the tile
+         */
+        IRasterLayer process(IRasterLayer tile, GridCoverage2D coverage) throws GeoAlgorithmExecutionException;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    private static ForkJoinPool getPool() {
+        if (pool == null) {
+            synchronized (TiledProcessor.class) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(THREADS, p -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                        thread.setName("geoavalanche-tiles-" + thread.getPoolIndex());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, null, false);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Stops the threads of the pool. The tasks running are completed, a later
+     * processing starts a new pool
+     */
+    public static void shutdown() {
+        synchronized (TiledProcessor.class) {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+    }
+
+    public static GridCoverage2D process(GridCoverage2D coverage, TileOperation op) throws GeoAlgorithmExecutionException {
+        return process(coverage, op, TILE_SIZE);
+    }
+
+    /**
+     * Runs the operation on the coverage tile by tile
+     *
+     * @param coverage the coverage, as returned by Coverages.inMemory
+     * @param op the operation
+     * @param tileSize the size of the core of the tiles in cells
+     * @return a float coverage with the result over the extent of the coverage,
+     * with the name and the sample dimensions of the result of the first tile
+     * @throws GeoAlgorithmExecutionException
+     */
+    public static GridCoverage2D process(final GridCoverage2D coverage, final TileOperation op, int tileSize)
+            throws GeoAlgorithmExecutionException {
+
+        final RenderedImage image = coverage.getRenderedImage();
+        final Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        final int width = bounds.width;
+        final int height = bounds.height;
+
+        if (width <= tileSize && height <= tileSize) {
+            //nothing to split
+            GTRasterLayer layer = new GTRasterLayer();
+            layer.create(coverage);
+            IRasterLayer result = op.process(layer, coverage);
+            return (GridCoverage2D) result.getBaseDataObject();
+        }
+
+        final float[] values = new float[width * height];
+        final int minX = bounds.x;
+        final int minY = bounds.y;
+        final AtomicReference<IRasterLayer> first = new AtomicReference<IRasterLayer>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int y = 0; y < height; y += tileSize) {
+            for (int x = 0; x < width; x += tileSize) {
+                final Rectangle core = new Rectangle(minX + x, minY + y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Rectangle halo = new Rectangle(core.x - HALO, core.y - HALO,
+                                core.width + 2 * HALO, core.height + 2 * HALO).intersection(bounds);
+                        Raster data = image.getData(halo);
+                        float[] tile = processTile(coverage, data, bounds, core, op,
+                                core.x == minX && core.y == minY ? first : null);
+                        for (int row = 0; row < core.height; row++) {
+                            System.arraycopy(tile, row * core.width, values,
+                                    (core.y - minY + row) * width + core.x - minX, core.width);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        LOG.info("processing "+coverage.getName()+" "+width+"x"+height+" in "+tasks.size()+" tiles");
+        invokeAll(tasks, coverage.getName().toString());
+
+        WritableRaster raster = Raster.createBandedRaster(new DataBufferFloat(values, values.length),
+                width, height, width, new int[] { 0 }, new int[] { 0 }, null);
+        IRasterLayer result = first.get();
+        return new GridCoverageFactory().create(result.getName(), raster, coverage.getEnvelope(),
+                sampleDimensions(result), null, null);
+    }
+
+    /**
+     * Returns the sample dimensions of the float values of a result, those of
+     * its coverage unless the coverage packs them in integer codes
+     */
+    private static GridSampleDimension[] sampleDimensions(IRasterLayer result) {
+
+        if (result.getBaseDataObject() instanceof GridCoverage2D) {
+            GridCoverage2D coverage = (GridCoverage2D) result.getBaseDataObject();
+            int type = coverage.getRenderedImage().getSampleModel().getDataType();
+            if (type == DataBuffer.TYPE_FLOAT || type == DataBuffer.TYPE_DOUBLE) {
+                return coverage.getSampleDimensions();
+            }
+        }
+        return new GridSampleDimension[] { FloatRasterLayer.noDataBand(result.getName(), result.getNoDataValue()) };
+    }
+
+    /**
+     * Runs the tasks on the pool and waits for all of them
+     */
+    static void invokeAll(List<Callable<Void>> tasks, String name) throws GeoAlgorithmExecutionException {
+
+        for (Future<Void> f : getPool().invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GeoAlgorithmExecutionException("tiled processing of "+name+" interrupted");
+            } catch (ExecutionException e) {
+                LOG.severe("tile failed: "+e.getCause());
+                throw new GeoAlgorithmExecutionException("tiled processing of "+name+" failed: "+e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Runs the operation on a tile grown by the halo
+     *
+     * @param coverage the source coverage
+     * @param data pixels of the source coverage containing the tile and its halo
+     * @param bounds the grid range the halo is clipped to
+     * @param core the tile, in the grid coordinates of the coverage
+     * @param op the operation
+     * @return the values of the core cells, row by row
+     */
+    static float[] processTile(GridCoverage2D coverage, Raster data, Rectangle bounds, Rectangle core, TileOperation op)
+            throws GeoAlgorithmExecutionException {
+        return processTile(coverage, data, bounds, core, op, null);
+    }
+
+    /**
+     * Runs the operation on a tile grown by the halo
+     *
+     * @param result set to the result of the operation, if not null
+     */
+    static float[] processTile(GridCoverage2D coverage, Raster data, Rectangle bounds, Rectangle core, TileOperation op,
+            AtomicReference<IRasterLayer> result) throws GeoAlgorithmExecutionException {
+
+        Rectangle window = new Rectangle(core.x - HALO, core.y - HALO, core.width + 2 * HALO, core.height + 2 * HALO)
+                .intersection(bounds);
+
+        GridCoverage2D tileCoverage = Coverages.subCoverage(coverage, data, window);
+        //every tile has its own layer, the window of a GTRasterLayer is not thread safe
+        GTRasterLayer tile = new GTRasterLayer();
+        tile.create(tileCoverage);
+
+        IRasterLayer layer = op.process(tile, tileCoverage);
+        if (result != null) {
+            result.set(layer);
+        }
+
+        float[] values = new float[core.width * core.height];
+        int offX = core.x - window.x;
+        int offY = core.y - window.y;
+        for (int y = 0; y < core.height; y++) {
+            int row = y * core.width;
+            for (int x = 0; x < core.width; x++) {
+                values[row + x] = (float) layer.getCellValueAsDouble(x + offX, y + offY);
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,62 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.awt.geom.AffineTransform;
+import java.awt.image.Raster;
+import org.geotools.coverage.grid.GridCoverage2D;
+
+/**
+ * Statistics of the cells of a coverage inside polygons
+ *
+ * The cells of the coverage are read once; every polygon is then rasterized
+ * row by row against its grid, a cell being inside when its centre is, by the
+ * even-odd rule over all the rings. Cells holding the nodata value or NaN are
+ * left out.
+ *
+ */
+public final class ZonalStatistics {
+
+    private final float[] values;
+    private final int width;
+    private final int height;
+    private final double noData;
+    private final AffineTransform worldToGrid;
+
+    /**
+     * @param coverage the coverage, of one band with an affine grid to world transform
+     * @param noData the nodata value of the coverage
+     */
+    public ZonalStatistics(GridCoverage2D coverage, double noData) {
+
+        Raster data = coverage.getRenderedImage().getData();
+        this.width = data.getWidth();
+        this.height = data.getHeight();
+        this.values = data.getSamples(data.getMinX(), data.getMinY(), width, height, 0, (float[]) null);
+        this.noData = noData;
+        this.worldToGrid = Scanline.worldToGrid(coverage);
+    }
+
+    /**
+     * Returns the mean of the cells inside the polygons of a geometry, in the
+     * CRS of the coverage
+     *
+     * @param geometry a Polygon, MultiPolygon or collection of them
+     * @return the mean, NaN if no cell with data is inside
+     */
+    public double mean(Geometry geometry) {
+
+        final double[] sum = new double[1];
+        final long[] cells = new long[1];
+        Scanline.rasterize(geometry, worldToGrid, width, height, (row, from, to) -> {
+            final int offset = row * width;
+            for (int col = from; col < to; col++) {
+                float v = values[offset + col];
+                if (v != noData && !Float.isNaN(v)) {
+                    sum[0] += v;
+                    cells[0]++;
+                }
+            }
+        });
+        return cells[0] == 0 ? Double.NaN : sum[0] / cells[0];
+    }
+}
@@ -0,0 +1,123 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.additionalInfo.AdditionalInfoNumericalValue;
+import es.unex.sextante.core.GeoAlgorithm;
+import es.unex.sextante.core.ParametersSet;
+import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
+import es.unex.sextante.exceptions.RepeatedParameterNameException;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for AlgorithmPool.
+ */
+public class AlgorithmPoolTest
+    extends TestCase
+{
+    private final AtomicInteger configured = new AtomicInteger();
+
+    public AlgorithmPoolTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AlgorithmPoolTest.class );
+    }
+
+    public void testReleasedInstanceIsBorrowedAgain() throws Exception
+    {
+        AlgorithmPool<Copy> pool = new AlgorithmPool<Copy>(Copy::new, alg -> configured.incrementAndGet());
+
+        Copy first = pool.borrow();
+        pool.release(first);
+        Copy second = pool.borrow();
+        assertSame(first, second);
+        assertEquals(1, pool.getCreated());
+        // configured once, when created
+        assertEquals(1, configured.get());
+
+        // an instance borrowed by another execution is not shared
+        Copy third = pool.borrow();
+        assertNotSame(second, third);
+        assertEquals(2, pool.getCreated());
+        assertEquals(2, configured.get());
+    }
+
+    public void testReleaseForgetsTheLayers() throws Exception
+    {
+        AlgorithmPool<Copy> pool = new AlgorithmPool<Copy>(Copy::new);
+        GTRasterLayer layer = layer();
+
+        Copy alg = pool.borrow();
+        ParametersSet params = alg.getParameters();
+        params.getParameter(Copy.INPUT).setParameterValue(layer);
+        params.getParameter(Copy.FACTOR).setParameterValue(2.0);
+        alg.getOutputObjects().getOutput(Copy.RESULT).setOutputObject(layer);
+        pool.release(alg);
+
+        Copy again = pool.borrow();
+        assertSame(alg, again);
+        assertNull(again.getParameters().getParameter(Copy.INPUT).getParameterValueAsObject());
+        assertNull(again.getOutputObjects().getOutput(Copy.RESULT).getOutputObject());
+        // the other parameters are kept
+        assertEquals(2.0, again.getParameters().getParameter(Copy.FACTOR).getParameterValueAsDouble(), 0.0);
+    }
+
+    public void testNullIsNotPooled() throws Exception
+    {
+        AlgorithmPool<Copy> pool = new AlgorithmPool<Copy>(Copy::new);
+        pool.release(null);
+        assertNotNull(pool.borrow());
+        assertEquals(1, pool.getCreated());
+    }
+
+    private static GTRasterLayer layer()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, 4, 3, 1, null);
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(new GridCoverageFactory().create("layer", raster,
+                new ReferencedEnvelope(0, 4, 0, 3, DefaultGeographicCRS.WGS84)));
+        return layer;
+    }
+
+    /**
+     * A geoalgorithm with a layer and a number as inputs, never executed
+     */
+    public static class Copy extends GeoAlgorithm
+    {
+        static final String INPUT = "INPUT";
+        static final String FACTOR = "FACTOR";
+        static final String RESULT = "RESULT";
+
+        @Override
+        public void defineCharacteristics()
+        {
+            setName("Copy");
+            setGroup("Test");
+            try {
+                m_Parameters.addInputRasterLayer(INPUT, "Input", true);
+                m_Parameters.addNumericalValue(FACTOR, "Factor", 1.0, AdditionalInfoNumericalValue.NUMERICAL_VALUE_DOUBLE);
+                addOutputRasterLayer(RESULT, "Result");
+            } catch (RepeatedParameterNameException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public boolean processAlgorithm() throws GeoAlgorithmExecutionException
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for AlignedCoverageCache.
+ */
+public class AlignedCoverageCacheTest
+    extends TestCase
+{
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    public AlignedCoverageCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( AlignedCoverageCacheTest.class );
+    }
+
+    public void testNearestNeighbourKeepsTheType() throws Exception
+    {
+        AlignedCoverageCache cache = new AlignedCoverageCache(16, 1024 * 1024);
+        GridCoverage2D dem = dem();
+        Rectangle window = new Rectangle(5, 5, 20, 15);
+        GridCoverage2D grid = Coverages.subCoverage(dem, dem.getRenderedImage().getData(), window);
+
+        GridCoverage2D aligned = cache.align(landCover(), dem, grid);
+        Raster data = aligned.getRenderedImage().getData();
+        assertEquals(DataBuffer.TYPE_BYTE, data.getSampleModel().getDataType());
+        assertEquals(window.width, data.getWidth());
+        assertEquals(window.height, data.getHeight());
+        for (int y = 0; y < window.height; y++) {
+            for (int x = 0; x < window.width; x++) {
+                // a cell of the land cover covers 2x2 cells of the DEM
+                int expected = (x + window.x) / 2 * 10 + (y + window.y) / 2;
+                assertEquals(expected, data.getSample(x + data.getMinX(), y + data.getMinY(), 0));
+            }
+        }
+    }
+
+    public void testSecondRequestIsServedFromMemory() throws Exception
+    {
+        AlignedCoverageCache cache = new AlignedCoverageCache(16, 1024 * 1024);
+        GridCoverage2D dem = dem();
+        GridCoverage2D clc = landCover();
+        GridCoverage2D grid = Coverages.subCoverage(dem, dem.getRenderedImage().getData(), new Rectangle(0, 0, 30, 20));
+
+        cache.align(clc, dem, grid);
+        long tiles = cache.getMisses();
+        assertTrue(tiles > 0);
+
+        cache.align(clc, dem, grid);
+        assertEquals(tiles, cache.getMisses());
+        assertEquals(tiles, cache.getHits());
+    }
+
+    public void testCellsOutOfTheRegionHoldTheNoDataValue() throws Exception
+    {
+        AlignedCoverageCache cache = new AlignedCoverageCache(16, 1024 * 1024);
+        GridCoverage2D dem = dem();
+        GridCoverage2D clc = landCover();
+        Rectangle window = new Rectangle(5, 5, 20, 15);
+        GridCoverage2D grid = Coverages.subCoverage(dem, dem.getRenderedImage().getData(), window);
+        // an L over the window, from x 5 to 25 and y 10 to 25
+        Geometry roi = new WKTReader().read("POLYGON((5 10, 25 10, 25 15, 12 15, 12 25, 5 25, 5 10))");
+
+        Raster data = cache.align(clc, dem, grid, roi).getRenderedImage().getData();
+        int inside = 0;
+        for (int y = 0; y < window.height; y++) {
+            for (int x = 0; x < window.width; x++) {
+                double cx = x + window.x + 0.5;
+                double cy = HEIGHT - (y + window.y + 0.5);
+                boolean in = cy < 15 || cx < 12;
+                // the land cover declares no nodata value
+                int expected = in ? (x + window.x) / 2 * 10 + (y + window.y) / 2 : 0;
+                assertEquals("cell " + x + "," + y, expected, data.getSample(x + data.getMinX(), y + data.getMinY(), 0));
+                inside += in ? 1 : 0;
+            }
+        }
+        assertEquals(20 * 5 + 7 * 10, inside);
+
+        // the cached tiles are not masked
+        data = cache.align(clc, dem, grid).getRenderedImage().getData();
+        assertEquals((24 / 2) * 10 + 5 / 2, data.getSample(data.getMinX() + 19, data.getMinY(), 0));
+    }
+
+    private static GridCoverage2D dem()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, WIDTH, HEIGHT, 1, null);
+        return new GridCoverageFactory().create("dem", raster,
+                new ReferencedEnvelope(0, WIDTH, 0, HEIGHT, DefaultGeographicCRS.WGS84));
+    }
+
+    /**
+     * Byte coverage with cells twice as large as those of the DEM
+     */
+    private static GridCoverage2D landCover()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, WIDTH / 2, HEIGHT / 2, 1, null);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                raster.setSample(x, y, 0, x * 10 + y);
+            }
+        }
+        return new GridCoverageFactory().create("clc", raster,
+                new ReferencedEnvelope(0, WIDTH, 0, HEIGHT, DefaultGeographicCRS.WGS84));
+    }
+}
@@ -0,0 +1,80 @@
+package org.geoavalanche.wps.commons;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import javax.media.jai.operator.TranslateDescriptor;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for Coverages.
+ */
+public class CoveragesTest
+    extends TestCase
+{
+    public CoveragesTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CoveragesTest.class );
+    }
+
+    public void testCoverageAtTheOriginIsReturnedAsIs() throws Exception
+    {
+        BufferedImage image = image();
+        GridCoverage2D coverage = new GridCoverageFactory().create("dem", image,
+                new ReferencedEnvelope(0, 20, 0, 10, DefaultGeographicCRS.WGS84));
+        assertSame(coverage, Coverages.inMemory(coverage));
+    }
+
+    public void testCroppedCoverageIsTranslatedWithoutCopy() throws Exception
+    {
+        BufferedImage image = image();
+        // as a crop, the image keeps the grid coordinates of its source
+        RenderedImage cropped = TranslateDescriptor.create(image, 5f, 3f, null, null);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(5, 25, 0, 10, DefaultGeographicCRS.WGS84);
+        GridCoverage2D coverage = new GridCoverageFactory().create("dem", cropped, envelope);
+
+        GridCoverage2D inMemory = Coverages.inMemory(coverage);
+        RenderedImage translated = inMemory.getRenderedImage();
+        assertEquals(0, translated.getMinX());
+        assertEquals(0, translated.getMinY());
+        assertEquals(20, translated.getWidth());
+        assertEquals(10, translated.getHeight());
+        assertTrue(inMemory.getEnvelope2D().boundsEquals(coverage.getEnvelope2D(), 0, 1, 1e-9));
+        assertEquals(coverage.getSampleDimension(0), inMemory.getSampleDimension(0));
+
+        Raster data = translated.getData();
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 20; x++) {
+                assertEquals(x * 100 + y, data.getSample(x, y, 0));
+            }
+        }
+
+        // the pixels are those of the source image, not a copy
+        image.getRaster().setSample(3, 4, 0, 7);
+        assertEquals(7, translated.getTile(0, 0).getSample(3, 4, 0));
+    }
+
+    private static BufferedImage image()
+    {
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 20; x++) {
+                raster.setSample(x, y, 0, x * 100 + y);
+            }
+        }
+        return image;
+    }
+}
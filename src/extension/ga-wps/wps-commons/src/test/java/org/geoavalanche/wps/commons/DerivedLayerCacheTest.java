@@ -0,0 +1,228 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import es.unex.sextante.dataObjects.IRasterLayer;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.processing.CoverageProcessor;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.parameter.ParameterValueGroup;
+
+/**
+ * Unit test for DerivedLayerCache.
+ */
+public class DerivedLayerCacheTest
+    extends TestCase
+{
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+    private static final double NO_DATA = -9999.0;
+
+    private final AtomicInteger computed = new AtomicInteger();
+
+    public DerivedLayerCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DerivedLayerCacheTest.class );
+    }
+
+    public void testSecondRequestIsServedFromMemory() throws Exception
+    {
+        DerivedLayerCache cache = new DerivedLayerCache(16, 1024 * 1024, null);
+        GridCoverage2D dem = dem();
+        ReferencedEnvelope bounds = new ReferencedEnvelope(5, 25, 5, 20, DefaultGeographicCRS.WGS84);
+
+        GridCoverage2D first = cache.derive(dem, bounds, null, "double", DOUBLE);
+        long tiles = cache.getMisses();
+        assertTrue(tiles > 0);
+
+        // only the blocks at the edge of the request are computed again
+        int computedFirst = computed.get();
+        long edgeBlocks = cache.getEdgeBlocks();
+        GridCoverage2D second = cache.derive(dem, bounds, null, "double", DOUBLE);
+        assertEquals(tiles, cache.getMisses());
+        assertEquals(tiles, cache.getHits());
+        assertEquals(computedFirst + cache.getEdgeBlocks() - edgeBlocks, computed.get());
+
+        Raster a = first.getRenderedImage().getData();
+        Raster b = second.getRenderedImage().getData();
+        assertEquals(a.getWidth(), b.getWidth());
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                assertEquals(a.getSampleFloat(x, y, 0), b.getSampleFloat(x, y, 0), 0f);
+            }
+        }
+    }
+
+    public void testEvictedTilesAreReadFromDisk() throws Exception
+    {
+        File dir = Files.createTempDirectory("derived").toFile();
+        //room for a single 16x16 tile
+        DerivedLayerCache cache = new DerivedLayerCache(16, 16 * 16 * 4, dir.getAbsolutePath());
+        GridCoverage2D dem = dem();
+        ReferencedEnvelope bounds = new ReferencedEnvelope(0, WIDTH, 0, HEIGHT, DefaultGeographicCRS.WGS84);
+
+        cache.derive(dem, bounds, null, "double", DOUBLE);
+        long tiles = cache.getMisses();
+        assertTrue(cache.getEvictions() > 0);
+
+        cache.derive(dem, bounds, null, "double", DOUBLE);
+        assertEquals(tiles, cache.getMisses());
+        assertTrue(cache.getDiskHits() > 0);
+    }
+
+    /**
+     * A cached response is cell by cell the one computed on the DEM cropped
+     * to the region of interest, whatever the tiles already cached
+     */
+    public void testCachedResponseMatchesTheUncachedOne() throws Exception
+    {
+        GridCoverage2D dem = hilly();
+        ReferencedEnvelope bounds = new ReferencedEnvelope(5, 195, 5, 155, DefaultGeographicCRS.WGS84);
+        Geometry roi = new WKTReader().read("POLYGON((5 5, 195 5, 195 80, 110 80, 110 155, 5 155, 5 5))");
+
+        final ParameterValueGroup param = CoverageProcessor.getInstance().getOperation("CoverageCrop").getParameters();
+        param.parameter("Source").setValue(dem);
+        param.parameter("Envelope").setValue(new GeneralEnvelope(bounds));
+        param.parameter("ROI").setValue(roi);
+        GridCoverage2D cropped = Coverages.inMemory((GridCoverage2D) CoverageProcessor.getInstance().doOperation(param));
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(cropped);
+        Raster expected = ((GridCoverage2D) SUM.process(layer, cropped).getBaseDataObject()).getRenderedImage().getData();
+
+        // cold cache, then tiles cached by a request over the whole DEM
+        DerivedLayerCache cache = new DerivedLayerCache(16, 1024 * 1024, null);
+        assertMatches(expected, cache.derive(dem, bounds, roi, "sum", SUM));
+        cache.clear();
+        cache.derive(dem, new ReferencedEnvelope(0, 200, 0, 160, DefaultGeographicCRS.WGS84), null, "sum", SUM);
+        long edgeBlocks = cache.getEdgeBlocks();
+        GridCoverage2D warm = cache.derive(dem, bounds, roi, "sum", SUM);
+        assertMatches(expected, warm);
+        // the blocks inside the region come from the cache
+        assertTrue(cache.getEdgeBlocks() - edgeBlocks < 6 * 5);
+
+        GridSampleDimension band = warm.getSampleDimension(0);
+        assertEquals(1, band.getNoDataValues().length);
+        assertEquals(NO_DATA, band.getNoDataValues()[0], 0.0);
+    }
+
+    private static void assertMatches(Raster expected, GridCoverage2D actual)
+    {
+        Raster data = actual.getRenderedImage().getData();
+        assertEquals(expected.getWidth(), data.getWidth());
+        assertEquals(expected.getHeight(), data.getHeight());
+        int noData = 0;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                float value = expected.getSampleFloat(expected.getMinX() + x, expected.getMinY() + y, 0);
+                assertEquals("cell " + x + "," + y, value, data.getSampleFloat(data.getMinX() + x, data.getMinY() + y, 0), 0f);
+                noData += value == NO_DATA ? 1 : 0;
+            }
+        }
+        // the cells out of the L
+        assertTrue(noData > 0);
+    }
+
+    /**
+     * Non planar DEM with a nodata value and a hole inside the region
+     */
+    private static GridCoverage2D hilly()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, 200, 160, 1, null);
+        for (int y = 0; y < 160; y++) {
+            for (int x = 0; x < 200; x++) {
+                boolean hole = x >= 50 && x < 53 && y >= 50 && y < 52;
+                raster.setSample(x, y, 0, hole ? NO_DATA : 1000 + 50 * Math.sin(x / 5.0) * Math.cos(y / 7.0) + x);
+            }
+        }
+        return new GridCoverageFactory().create("hilly", raster,
+                new ReferencedEnvelope(0, 200, 0, 160, DefaultGeographicCRS.WGS84),
+                new GridSampleDimension[] { FloatRasterLayer.noDataBand("hilly", NO_DATA) }, null, null);
+    }
+
+    private static GridCoverage2D dem()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, WIDTH, HEIGHT, 1, null);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, x + y * WIDTH);
+            }
+        }
+        return new GridCoverageFactory().create("dem", raster,
+                new ReferencedEnvelope(0, WIDTH, 0, HEIGHT, DefaultGeographicCRS.WGS84));
+    }
+
+    /**
+     * Doubles every cell and counts the tiles it is run on
+     */
+    private final TiledProcessor.TileOperation DOUBLE = new TiledProcessor.TileOperation() {
+        @Override
+        public IRasterLayer process(IRasterLayer tile, GridCoverage2D coverage) {
+            computed.incrementAndGet();
+            int w = tile.getNX();
+            int h = tile.getNY();
+            WritableRaster result = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, w, h, 1, null);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    result.setSample(x, y, 0, 2 * tile.getCellValueAsDouble(x, y));
+                }
+            }
+            GTRasterLayer layer = new GTRasterLayer();
+            layer.create(new GridCoverageFactory().create("double", result, coverage.getEnvelope()));
+            return layer;
+        }
+    };
+
+    /**
+     * Sum of the valid cells of the 3x3 window of every valid cell of the tile
+     */
+    private static final TiledProcessor.TileOperation SUM = new TiledProcessor.TileOperation() {
+        @Override
+        public IRasterLayer process(IRasterLayer tile, GridCoverage2D coverage) {
+            int w = tile.getNX();
+            int h = tile.getNY();
+            WritableRaster sum = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, w, h, 1, null);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    double s = 0;
+                    if (tile.isNoDataValue(tile.getCellValueAsDouble(x, y))) {
+                        s = NO_DATA;
+                    } else {
+                        for (int dy = -1; dy <= 1; dy++) {
+                            for (int dx = -1; dx <= 1; dx++) {
+                                if (x + dx >= 0 && x + dx < w && y + dy >= 0 && y + dy < h
+                                        && !tile.isNoDataValue(tile.getCellValueAsDouble(x + dx, y + dy))) {
+                                    s += tile.getCellValueAsDouble(x + dx, y + dy);
+                                }
+                            }
+                        }
+                    }
+                    sum.setSample(x, y, 0, s);
+                }
+            }
+            GTRasterLayer layer = new GTRasterLayer();
+            layer.create(new GridCoverageFactory().create("sum", sum, coverage.getEnvelope(),
+                    new GridSampleDimension[] { FloatRasterLayer.noDataBand("sum", NO_DATA) }, null, null));
+            return layer;
+        }
+    };
+}
@@ -0,0 +1,104 @@
+package org.geoavalanche.wps.commons;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for FeatureExecutor.
+ */
+public class FeatureExecutorTest
+    extends TestCase
+{
+    private ExecutorService pool;
+
+    public FeatureExecutorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( FeatureExecutorTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        pool.shutdownNow();
+    }
+
+    public void testResultsInTheOrderOfTheInput() throws Exception
+    {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 50; i++) {
+            items.add(i);
+        }
+        List<Integer> results = FeatureExecutor.map(items.iterator(), i -> {
+            // the first ones finish last
+            Thread.sleep(50 - i);
+            return i * i;
+        }, pool, 8);
+        assertEquals(50, results.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i * i, results.get(i).intValue());
+        }
+    }
+
+    public void testTheIteratorIsReadAheadOfTheQueueOnly() throws Exception
+    {
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicInteger ahead = new AtomicInteger();
+        Iterator<Integer> items = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return read.get() < 40;
+            }
+
+            @Override
+            public Integer next() {
+                int pending = read.incrementAndGet() - done.get();
+                ahead.accumulateAndGet(pending, Math::max);
+                return read.get();
+            }
+        };
+        FeatureExecutor.map(items, i -> {
+            Thread.sleep(2);
+            done.incrementAndGet();
+            return i;
+        }, pool, 3);
+        assertTrue("pending " + ahead.get(), ahead.get() <= 3);
+    }
+
+    public void testTheFailureOfATaskIsThrown() throws Exception
+    {
+        List<Integer> items = new ArrayList<Integer>();
+        for (int i = 0; i < 10; i++) {
+            items.add(i);
+        }
+        try {
+            FeatureExecutor.map(items.iterator(), i -> {
+                if (i == 5) {
+                    throw new IllegalStateException("feature " + i);
+                }
+                return i;
+            }, pool, 4);
+            fail("the failure of a feature must be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("feature 5", e.getMessage());
+        }
+    }
+}
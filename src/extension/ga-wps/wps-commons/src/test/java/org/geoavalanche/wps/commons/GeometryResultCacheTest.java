@@ -0,0 +1,112 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.io.WKTReader;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for GeometryResultCache.
+ */
+public class GeometryResultCacheTest
+    extends TestCase
+{
+    private static final String SQUARE = "POLYGON((0 0, 2 0, 2 2, 0 2, 0 0))";
+
+    private File directory;
+
+    public GeometryResultCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( GeometryResultCacheTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = Files.createTempDirectory("results").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testKeyOfTheShapeAndTheLayers() throws Exception
+    {
+        GeometryResultCache cache = new GeometryResultCache(10, null, 10);
+        WKTReader reader = new WKTReader();
+        GridCoverage2D dem = coverage("dem", 10);
+        GridCoverage2D clc = coverage("clc", 10);
+        String key = cache.key(reader.read(SQUARE), "ateinorm", dem, clc);
+
+        // another first vertex and orientation
+        assertEquals(key, cache.key(reader.read("POLYGON((2 2, 2 0, 0 0, 0 2, 2 2))"), "ateinorm", dem, clc));
+        assertFalse(key.equals(cache.key(reader.read("POLYGON((0 0, 3 0, 3 2, 0 2, 0 0))"), "ateinorm", dem, clc)));
+        assertFalse(key.equals(cache.key(reader.read(SQUARE), "ateinorm_quantized", dem, clc)));
+        // a DEM replaced by a larger one
+        assertFalse(key.equals(cache.key(reader.read(SQUARE), "ateinorm", coverage("dem", 20), clc)));
+    }
+
+    public void testLeastRecentlyUsedAreEvicted() throws Exception
+    {
+        GeometryResultCache cache = new GeometryResultCache(2, null, 10);
+        cache.put("a/01", 1);
+        cache.put("a/02", 2);
+        assertEquals(1.0, cache.get("a/01"));
+        cache.put("a/03", 3);
+        assertNull(cache.get("a/02"));
+        assertEquals(1.0, cache.get("a/01"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    public void testDiskTierSurvivesARestart() throws Exception
+    {
+        GeometryResultCache first = new GeometryResultCache(10, directory.getAbsolutePath(), 10);
+        first.put("a/01", 1.5);
+        first.put("a/02", Double.NaN);
+
+        GeometryResultCache second = new GeometryResultCache(10, directory.getAbsolutePath(), 10);
+        assertEquals(1.5, second.get("a/01"));
+        assertTrue(second.get("a/02").isNaN());
+        assertEquals(2, second.getDiskHits());
+        assertNull(second.get("a/03"));
+    }
+
+    public void testDiskTierIsBounded() throws Exception
+    {
+        GeometryResultCache cache = new GeometryResultCache(100, directory.getAbsolutePath(), 10);
+        for (int i = 0; i < 25; i++) {
+            cache.put(String.format("a/%02x", i), i);
+        }
+        long files;
+        try (Stream<Path> walk = Files.walk(directory.toPath())) {
+            files = walk.filter(p -> p.toString().endsWith(".val")).count();
+        }
+        assertTrue("files " + files, files <= 10);
+        assertTrue(cache.getDiskEvictions() > 0);
+    }
+
+    private static GridCoverage2D coverage(String name, int size)
+    {
+        return new GridCoverageFactory().create(name, Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, size, size, 1, null),
+                new ReferencedEnvelope(0, size, 0, size, DefaultGeographicCRS.WGS84));
+    }
+}
@@ -0,0 +1,150 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.core.OutputFactory;
+import es.unex.sextante.core.OutputObjectsSet;
+import es.unex.sextante.core.ParametersSet;
+import es.unex.sextante.core.SilentTaskMonitor;
+import es.unex.sextante.dataObjects.IRasterLayer;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geoavalanche.alg.avalanche.AvalancheTerrainExposureAlgorithm;
+import org.geoserver.wps.sextante.GTOutputFactory;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test of the ATEI algorithm computing its rows on an executor: the
+ * bands share the GTRasterLayers of the inputs and, without float rasters,
+ * the one of the output.
+ */
+public class RowExecutorTest
+    extends TestCase
+{
+    private static final int WIDTH = 60;
+    private static final int HEIGHT = 200;
+
+    private ExecutorService executor;
+
+    public RowExecutorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RowExecutorTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        SextanteBootstrap.initialize();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        executor.shutdownNow();
+    }
+
+    public void testParallelRowsMatchSerialRows() throws Exception
+    {
+        for (OutputFactory factory : new OutputFactory[] { new FloatOutputFactory(), new GTOutputFactory() }) {
+            for (boolean fromDEM : new boolean[] { false, true }) {
+                IRasterLayer serial = run(null, factory, fromDEM, null);
+                IRasterLayer parallel = run(executor, factory, fromDEM, null);
+                assertSame(serial, parallel);
+            }
+        }
+    }
+
+    public void testCancelPartWay() throws Exception
+    {
+        AtomicInteger asked = new AtomicInteger();
+        SilentTaskMonitor cancelAfterTwoBands = new SilentTaskMonitor() {
+            @Override
+            public boolean isCanceled() {
+                return asked.incrementAndGet() > 2;
+            }
+        };
+        assertNull(run(executor, new GTOutputFactory(), true, cancelAfterTwoBands));
+        assertTrue(asked.get() > 2);
+
+        // the executor is not left with bands of the canceled execution
+        IRasterLayer serial = run(null, new GTOutputFactory(), true, null);
+        IRasterLayer parallel = run(executor, new GTOutputFactory(), true, null);
+        assertSame(serial, parallel);
+    }
+
+    private static void assertSame(IRasterLayer expected, IRasterLayer actual)
+    {
+        assertEquals(expected.getNX(), actual.getNX());
+        assertEquals(expected.getNY(), actual.getNY());
+        for (int y = 0; y < expected.getNY(); y++) {
+            for (int x = 0; x < expected.getNX(); x++) {
+                assertEquals("cell " + x + "," + y, expected.getCellValueAsDouble(x, y), actual.getCellValueAsDouble(x, y), 0.0);
+            }
+        }
+    }
+
+    /**
+     * Runs the algorithm on new input layers
+     *
+     * @return the index, null if the execution was canceled
+     */
+    private static IRasterLayer run(ExecutorService executor, OutputFactory factory, boolean fromDEM,
+            SilentTaskMonitor monitor) throws Exception
+    {
+        AvalancheTerrainExposureAlgorithm alg = new AvalancheTerrainExposureAlgorithm();
+        alg.setExecutor(executor);
+        ParametersSet params = alg.getParameters();
+        GTRasterLayer landclass = layer((x, y) -> new float[] {17, 23, 25, 26, 40}[(x / 7 + y / 11) % 5]);
+        params.getParameter(AvalancheTerrainExposureAlgorithm.LANDCLASS).setParameterValue(landclass);
+        if (fromDEM) {
+            params.getParameter(AvalancheTerrainExposureAlgorithm.DEM).setParameterValue(
+                    layer((x, y) -> (float) (2000 + 0.8 * (WIDTH - x) + 40 * Math.sin(x / 3.0) * Math.cos(y / 7.0))));
+        } else {
+            params.getParameter(AvalancheTerrainExposureAlgorithm.SLOPE).setParameterValue(
+                    layer((x, y) -> (x * 3 + y) % 70));
+            params.getParameter(AvalancheTerrainExposureAlgorithm.ASPECT).setParameterValue(
+                    layer((x, y) -> (x * 11 + y * 7) % 360));
+            params.getParameter(AvalancheTerrainExposureAlgorithm.CURVATURE).setParameterValue(
+                    layer((x, y) -> (x + y) % 9));
+        }
+        alg.setAnalysisExtent(landclass.getLayerGridExtent());
+
+        OutputObjectsSet outputs = alg.getOutputObjects();
+        if (!alg.execute(monitor, factory)) {
+            return null;
+        }
+        return (IRasterLayer) outputs.getOutput(AvalancheTerrainExposureAlgorithm.ATEI).getOutputObject();
+    }
+
+    private interface Cells {
+        float value(int x, int y);
+    }
+
+    private static GTRasterLayer layer(Cells values)
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, WIDTH, HEIGHT, 1, null);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, values.value(x, y));
+            }
+        }
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(new GridCoverageFactory().create("layer", raster,
+                new ReferencedEnvelope(0, WIDTH, 0, HEIGHT, DefaultGeographicCRS.WGS84)));
+        return layer;
+    }
+}
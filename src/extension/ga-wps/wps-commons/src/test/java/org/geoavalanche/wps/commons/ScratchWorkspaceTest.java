@@ -0,0 +1,91 @@
+package org.geoavalanche.wps.commons;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for ScratchWorkspace.
+ */
+public class ScratchWorkspaceTest
+    extends TestCase
+{
+    public ScratchWorkspaceTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ScratchWorkspaceTest.class );
+    }
+
+    public void testConcurrentWorkspacesDoNotShareFiles() throws Exception
+    {
+        try (ScratchWorkspace first = ScratchWorkspace.open("test");
+                ScratchWorkspace second = ScratchWorkspace.open("test")) {
+            File a = first.newFile("dem", ".tiff");
+            File b = second.newFile("dem", ".tiff");
+            assertFalse(a.equals(b));
+            assertFalse(first.getDirectory().equals(second.getDirectory()));
+        }
+    }
+
+    public void testCloseDeletesTheDirectory() throws Exception
+    {
+        ScratchWorkspace workspace = ScratchWorkspace.open("test");
+        File file = workspace.newFile("dem", ".tiff");
+        Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+        Path directory = workspace.getDirectory();
+
+        workspace.close();
+        assertFalse(file.exists());
+        assertFalse(Files.exists(directory));
+    }
+
+    public void testReaperKeepsActiveWorkspaces() throws Exception
+    {
+        Path work = Files.createTempDirectory("work");
+        Path orphan = Files.createDirectory(work.resolve("orphan"));
+        Files.write(orphan.resolve("dem.tiff"), new byte[10]);
+        Files.setLastModifiedTime(orphan, FileTime.fromMillis(System.currentTimeMillis() - 120000));
+
+        try (ScratchWorkspace workspace = ScratchWorkspace.open("test")) {
+            Path active = workspace.getDirectory();
+            Files.write(active.resolve("dem.tiff"), new byte[10]);
+            Files.setLastModifiedTime(active, FileTime.fromMillis(System.currentTimeMillis() - 120000));
+
+            ScratchWorkspace.reap(work, 60000, Long.MAX_VALUE);
+            assertFalse(Files.exists(orphan));
+
+            ScratchWorkspace.reap(active.getParent(), 60000, 0);
+            assertTrue(Files.exists(active));
+        }
+        Files.delete(work);
+    }
+
+    public void testReaperEnforcesTheQuota() throws Exception
+    {
+        Path work = Files.createTempDirectory("work");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            Path dir = Files.createDirectory(work.resolve("dir" + i));
+            Files.write(dir.resolve("dem.tiff"), new byte[100]);
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(now - 1000 * (3 - i)));
+        }
+
+        long left = ScratchWorkspace.reap(work, Long.MAX_VALUE, 150);
+        assertEquals(100, left);
+        // the oldest ones go first
+        assertFalse(Files.exists(work.resolve("dir0")));
+        assertFalse(Files.exists(work.resolve("dir1")));
+        assertTrue(Files.exists(work.resolve("dir2")));
+
+        ScratchWorkspace.reap(work, -1, Long.MAX_VALUE);
+        Files.delete(work);
+    }
+}
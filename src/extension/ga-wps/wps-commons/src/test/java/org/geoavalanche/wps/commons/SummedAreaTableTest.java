@@ -0,0 +1,115 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for SummedAreaTable.
+ */
+public class SummedAreaTableTest
+    extends TestCase
+{
+    private static final float NO_DATA = -99999f;
+
+    private File file;
+
+    public SummedAreaTableTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SummedAreaTableTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("atei", ".sat");
+        SummedAreaTable.write(coverage(), NO_DATA, file);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testEnvelope() throws Exception
+    {
+        try (SummedAreaTable table = SummedAreaTable.open(file)) {
+            assertEquals(new Envelope(0, 10, 0, 10), table.getEnvelope());
+            // columns 2 and 3 of rows 0 and 1 (north is up): 2, 3, 12, 13
+            assertEquals(7.5, table.mean(new Envelope(2, 4, 8, 10)), 1e-9);
+            // rows 6 to 8 of columns 6 to 8 but 77
+            assertEquals((66 + 67 + 68 + 76 + 78 + 86 + 87 + 88) / 8.0, table.mean(new Envelope(6, 9, 1, 4)), 1e-9);
+            assertTrue(Double.isNaN(table.mean(new Envelope(20, 30, 20, 30))));
+        }
+    }
+
+    public void testSameMeansAsTheZonalStatistics() throws Exception
+    {
+        ZonalStatistics zonal = new ZonalStatistics(coverage(), NO_DATA);
+        WKTReader reader = new WKTReader();
+        String[] polygons = {
+            "POLYGON((2 8, 4 8, 4 10, 2 10, 2 8))",
+            "POLYGON((6 0, 9 0, 9 3, 6 3, 6 0), (7 1, 8 1, 8 2, 7 2, 7 1))",
+            "POLYGON((0.2 0.3, 9.7 4.1, 3.3 9.9, 0.2 0.3))",
+            "MULTIPOLYGON(((0 9, 1 9, 1 10, 0 10, 0 9)), ((9 9, 10 9, 10 10, 9 10, 9 9)))"
+        };
+        try (SummedAreaTable table = SummedAreaTable.open(file)) {
+            for (String wkt : polygons) {
+                Geometry polygon = reader.read(wkt);
+                assertEquals(wkt, zonal.mean(polygon), table.mean(polygon), 1e-9);
+            }
+            // the nodata cell alone
+            assertTrue(Double.isNaN(table.mean(reader.read("POLYGON((7 2, 8 2, 8 3, 7 3, 7 2))"))));
+        }
+    }
+
+    public void testRowsLargerThanAMappingAreRefused() throws Exception
+    {
+        // the width in the header, after the magic and the version
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(8);
+            raf.writeInt(200000000);
+        }
+        try {
+            SummedAreaTable.open(file).close();
+            fail("a row of 3.2GB can not be mapped");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("mapping"));
+        }
+    }
+
+    /**
+     * 10x10 cells of one degree, holding column + 10 * row, 77 being nodata
+     */
+    private static GridCoverage2D coverage()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, 10, 10, 1, null);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                raster.setSample(x, y, 0, x + 10 * y);
+            }
+        }
+        raster.setSample(7, 7, 0, NO_DATA);
+        return new GridCoverageFactory().create("atei", raster,
+                new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84));
+    }
+}
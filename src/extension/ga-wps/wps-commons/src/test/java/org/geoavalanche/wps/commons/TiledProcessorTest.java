@@ -0,0 +1,128 @@
+package org.geoavalanche.wps.commons;
+
+import es.unex.sextante.dataObjects.IRasterLayer;
+import java.awt.Color;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.Category;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for TiledProcessor.
+ */
+public class TiledProcessorTest
+    extends TestCase
+{
+    private static final int WIDTH = 23;
+    private static final int HEIGHT = 17;
+    private static final double NO_DATA = -9999.0;
+
+    public TiledProcessorTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TiledProcessorTest.class );
+    }
+
+    /**
+     * A 3x3 operation computed on small tiles is the same as on the whole coverage
+     */
+    public void testTilesMatchWholeCoverage() throws Exception
+    {
+        GridCoverage2D coverage = dem();
+
+        GridCoverage2D whole = TiledProcessor.process(coverage, SUM, 100);
+        GridCoverage2D tiled = TiledProcessor.process(coverage, SUM, 4);
+
+        Raster expected = whole.getRenderedImage().getData();
+        Raster actual = tiled.getRenderedImage().getData();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals("cell " + x + "," + y, expected.getSampleFloat(x, y, 0), actual.getSampleFloat(x, y, 0), 0f);
+            }
+        }
+    }
+
+    /**
+     * The tiles put together keep the name and the nodata of the result of the operation
+     */
+    public void testTilesKeepTheSampleDimensions() throws Exception
+    {
+        GridCoverage2D tiled = TiledProcessor.process(dem(), SUM, 4);
+
+        assertEquals("sum", tiled.getName().toString());
+        assertEquals(1, tiled.getNumSampleDimensions());
+        GridSampleDimension band = tiled.getSampleDimension(0);
+        assertEquals("sum", band.getDescription().toString());
+        assertNotNull(band.getNoDataValues());
+        assertEquals(1, band.getNoDataValues().length);
+        assertEquals(NO_DATA, band.getNoDataValues()[0], 0.0);
+    }
+
+    /**
+     * A processing after the shutdown of the pool by the closing of the
+     * application context starts a new one
+     */
+    public void testShutdown() throws Exception
+    {
+        TiledProcessor.process(dem(), SUM, 4);
+        new ProcessLifecycle().destroy();
+        GridCoverage2D tiled = TiledProcessor.process(dem(), SUM, 4);
+        assertEquals(WIDTH, tiled.getRenderedImage().getWidth());
+    }
+
+    private static GridCoverage2D dem()
+    {
+        WritableRaster dem = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, WIDTH, HEIGHT, 1, null);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                dem.setSample(x, y, 0, (x * 7 + y * 13) % 31);
+            }
+        }
+        return new GridCoverageFactory().create("dem", dem,
+                new ReferencedEnvelope(0, WIDTH, 0, HEIGHT, DefaultGeographicCRS.WGS84));
+    }
+
+    /**
+     * Sum of the 3x3 window of every cell of the tile, cells out of the tile count as zero
+     */
+    private static final TiledProcessor.TileOperation SUM = new TiledProcessor.TileOperation() {
+        @Override
+        public IRasterLayer process(IRasterLayer tile, GridCoverage2D coverage) {
+            int w = tile.getNX();
+            int h = tile.getNY();
+            WritableRaster sum = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, w, h, 1, null);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    double s = 0;
+                    for (int dy = -1; dy <= 1; dy++) {
+                        for (int dx = -1; dx <= 1; dx++) {
+                            if (x + dx >= 0 && x + dx < w && y + dy >= 0 && y + dy < h) {
+                                s += tile.getCellValueAsDouble(x + dx, y + dy);
+                            }
+                        }
+                    }
+                    sum.setSample(x, y, 0, s);
+                }
+            }
+            Category noData = new Category("No data", new Color(0, 0, 0, 0), NO_DATA);
+            GridSampleDimension band = new GridSampleDimension("sum", new Category[] { noData }, null);
+            GTRasterLayer layer = new GTRasterLayer();
+            layer.create(new GridCoverageFactory().create("sum", sum, coverage.getEnvelope(),
+                    new GridSampleDimension[] { band }, null, null));
+            return layer;
+        }
+    };
+}
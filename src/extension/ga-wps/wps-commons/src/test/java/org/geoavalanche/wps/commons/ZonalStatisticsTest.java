@@ -0,0 +1,82 @@
+package org.geoavalanche.wps.commons;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for ZonalStatistics.
+ */
+public class ZonalStatisticsTest
+    extends TestCase
+{
+    private static final float NO_DATA = -99999f;
+
+    public ZonalStatisticsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ZonalStatisticsTest.class );
+    }
+
+    public void testCellsWithTheirCentreInside() throws Exception
+    {
+        ZonalStatistics zonal = new ZonalStatistics(coverage(), NO_DATA);
+        // columns 2 and 3 of rows 0 and 1 (north is up): 2, 3, 12, 13
+        Geometry square = new WKTReader().read("POLYGON((2 8, 4 8, 4 10, 2 10, 2 8))");
+        assertEquals(7.5, zonal.mean(square), 1e-9);
+        // a polygon missing the centres of the cells has none
+        Geometry thin = new WKTReader().read("POLYGON((2.6 8, 2.9 8, 2.9 10, 2.6 10, 2.6 8))");
+        assertTrue(Double.isNaN(zonal.mean(thin)));
+    }
+
+    public void testHolesAndNoDataAreLeftOut() throws Exception
+    {
+        ZonalStatistics zonal = new ZonalStatistics(coverage(), NO_DATA);
+        // rows 7 to 9, the cell 87 in the hole and 77 nodata
+        Geometry ring = new WKTReader().read(
+                "POLYGON((6 0, 9 0, 9 3, 6 3, 6 0), (7 1, 8 1, 8 2, 7 2, 7 1))");
+        double expected = (76 + 78 + 86 + 88 + 96 + 97 + 98) / 7.0;
+        assertEquals(expected, zonal.mean(ring), 1e-9);
+
+        // the nodata cell alone
+        Geometry hole = new WKTReader().read("POLYGON((7 2, 8 2, 8 3, 7 3, 7 2))");
+        assertTrue(Double.isNaN(zonal.mean(hole)));
+    }
+
+    public void testMultiPolygon() throws Exception
+    {
+        ZonalStatistics zonal = new ZonalStatistics(coverage(), NO_DATA);
+        Geometry two = new WKTReader().read(
+                "MULTIPOLYGON(((0 9, 1 9, 1 10, 0 10, 0 9)), ((9 9, 10 9, 10 10, 9 10, 9 9)))");
+        assertEquals(4.5, zonal.mean(two), 1e-9);
+    }
+
+    /**
+     * 10x10 cells of one degree, holding column + 10 * row, 77 being nodata
+     */
+    private static GridCoverage2D coverage()
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, 10, 10, 1, null);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                raster.setSample(x, y, 0, x + 10 * y);
+            }
+        }
+        raster.setSample(7, 7, 0, NO_DATA);
+        return new GridCoverageFactory().create("atei", raster,
+                new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84));
+    }
+}
@@ -28,19 +28,17 @@ import org.geotools.data.simple.SimpleFeatureIterator;
 
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geoavalanche.wps.referencing.CRSRegistry;
 import org.geotools.geojson.geom.GeometryJSON;
-import org.geotools.geometry.jts.JTS;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.factory.StaticMethodsProcessFactory;
-import org.geotools.referencing.CRS;
 import org.geotools.text.Text;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.MathTransform;
 
 public class Crowd extends StaticMethodsProcessFactory<Crowd> {
 
@@ -78,7 +76,7 @@ public class Crowd extends StaticMethodsProcessFactory<Crowd> {
             }
 
             if (sourceCRS == null) {
-                sourceCRS=CRS.decode("EPSG:3857");
+                sourceCRS=CRSRegistry.decode("EPSG:3857");
             }
             if (isAvailableMongodb==null) {
                 isAvailableMongodb = isAvailableMongodb();
@@ -124,12 +122,7 @@ public class Crowd extends StaticMethodsProcessFactory<Crowd> {
     }
 
     static String getNumIncidentsOfGeometry(List<Incidents> incidents, Geometry theGeometry, CoordinateReferenceSystem sourceCRS) throws Exception {
-        boolean lenient = true;
-        Geometry theGeometry4326 = theGeometry;
-        if (sourceCRS!=CRS.decode("EPSG:4326")) {
-            MathTransform transform = CRS.findMathTransform(sourceCRS, CRS.decode("EPSG:4326"), lenient);
-            theGeometry4326 = JTS.transform(theGeometry, transform);
-        } 
+        Geometry theGeometry4326 = CRSRegistry.transform(theGeometry, sourceCRS, CRSRegistry.decode("EPSG:4326"));
         
         GeometryFactory theGeometryFactory = new GeometryFactory(theGeometry4326.getPrecisionModel(), theGeometry4326.getSRID());            
         long _incidents = 0;
@@ -164,12 +157,7 @@ public class Crowd extends StaticMethodsProcessFactory<Crowd> {
         long _incidentsInLastYear = 0;
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
         
-        Geometry theGeometry4326 = theGeometry;
-        if (sourceCRS!=CRS.decode("EPSG:4326")) {
-            boolean lenient = true;
-            MathTransform transform = CRS.findMathTransform(sourceCRS, CRS.decode("EPSG:4326"), lenient);
-            theGeometry4326 = JTS.transform(theGeometry, transform);
-        }
+        Geometry theGeometry4326 = CRSRegistry.transform(theGeometry, sourceCRS, CRSRegistry.decode("EPSG:4326"));
 
         GeometryJSON gjson = new GeometryJSON();
         StringWriter writer = new StringWriter();
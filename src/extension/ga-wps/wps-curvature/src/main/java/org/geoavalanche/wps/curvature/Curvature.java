@@ -5,19 +5,21 @@ import com.vividsolutions.jts.geom.GeometryCollection;
 import es.unex.sextante.core.OutputFactory;
 import es.unex.sextante.core.OutputObjectsSet;
 import es.unex.sextante.core.ParametersSet;
-import es.unex.sextante.core.Sextante;
 import es.unex.sextante.dataObjects.IRasterLayer;
 import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
-import org.geoserver.wps.sextante.GTOutputFactory;
+import org.geoavalanche.wps.commons.AlgorithmPool;
+import org.geoavalanche.wps.commons.Coverages;
+import org.geoavalanche.wps.commons.DerivedLayerCache;
+import org.geoavalanche.wps.commons.FloatOutputFactory;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geoavalanche.wps.commons.ScratchWorkspace;
+import org.geoavalanche.wps.commons.Settings;
+import org.geoavalanche.wps.commons.TiledProcessor;
 import org.geoserver.wps.sextante.GTRasterLayer;
 import es.unex.sextante.morphometry.curvatures.CurvaturesAlgorithm;
 import es.unex.sextante.outputs.FileOutputChannel;
 import es.unex.sextante.outputs.Output;
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.logging.Logger;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
@@ -56,14 +58,27 @@ public class Curvature extends StaticMethodsProcessFactory<Curvature> {
      * This tells the algorithm how to create new data objects (layers
      * and tables)
      * The GTOutputFactory creates objects based on geotools
-     * data objects (DataStore and GridCoverage)
+     * data objects (DataStore and GridCoverage), the FloatOutputFactory
+     * keeps the cells of the rasters in a float array
      */
-    private static OutputFactory outputFactory = new GTOutputFactory();
+    private static OutputFactory outputFactory = new FloatOutputFactory();
+    
+    /*
+     * Instances of the geoalgorithms are reused from one execution to the next
+     */
+    private static final AlgorithmPool<CurvaturesAlgorithm> CURVATURES = new AlgorithmPool<CurvaturesAlgorithm>(CurvaturesAlgorithm::new);
+    
+    /*
+     * When enabled the cropped DEM is wrapped as it is, without being
+     * written to and read back from a GeoTIFF in the temp directory
+     */
+    private static boolean inMemoryCrop = Settings.getBoolean("geoavalanche.inMemoryCrop", true);
     //private static String method = CurvaturesAlgorithm.METHOD;
     private static String method = "Fit_2_Degree_Polynom__Zevenbergen_&_Thorne_1987";
     
     public Curvature() {
         super(Text.text("GeoAvalanche"), GEOAVALANCHE_NAMESPACE, Curvature.class);
+        SextanteBootstrap.initialize();
     }
     
     @DescribeProcess(title = "Curvature", description = "Calculate curvatures in a shape")
@@ -92,6 +107,15 @@ public class Curvature extends StaticMethodsProcessFactory<Curvature> {
             roi = (GeometryCollection) geomShape;
         }
         
+        if (DerivedLayerCache.isEnabled()) {
+            //reuse the curvatures of the tiles computed for previous requests
+            SextanteBootstrap.initialize();
+            GridCoverage2D ret = DerivedLayerCache.getDefault().derive(dem, bounds, roi, DerivedLayerCache.product("curvature", method, CurvaturesAlgorithm.GLOBAL),
+                    (tile, coverage) -> getCurvature(tile,method));
+            LOG.info("ret="+ret);
+            return ret;
+        }
+        
         // perform the crops
         final ParameterValueGroup param = PROCESSOR.getOperation("CoverageCrop").getParameters();
         param.parameter("Source").setValue(dem);
@@ -103,84 +127,40 @@ public class Curvature extends StaticMethodsProcessFactory<Curvature> {
         GridCoverage2D cropped = (GridCoverage2D) PROCESSOR.doOperation(param);
         LOG.info("cropped Coverage="+cropped);
         
-        //Write coverage to file /tmp/Curvature/xxx.tiff
-        //final File writedir = new File(new StringBuilder("/tmp").append(File.separatorChar).append(Curvature.class.getSimpleName()).toString());
-        Path writedir = Paths.get(new StringBuilder("/tmp").append(File.separatorChar).append(Curvature.class.getSimpleName()).toString());
-        LOG.info("write directory="+writedir.toString());
-        //Care to create directory
-        //LOG.info("writedir is a Directory? "+writedir.isDirectory());
-        //LOG.info("writedir exists? "+writedir.isDirectory());
-        //if (!writedir.exists()) {
-        if (!Files.exists(writedir)) {
-        
-            //writedir.mkdirs();
-            try {
-                Files.createDirectories(writedir);
-            } catch (IOException e) {
-                //fail to create directory
-                e.printStackTrace();
+        //the files written for this execution are deleted when it is over
+        try (ScratchWorkspace scratch = ScratchWorkspace.open(Curvature.class.getSimpleName())) {
+            GridCoverage2D lCov;
+            if (inMemoryCrop) {
+                //hand the cropped pixels straight to the algorithm
+                lCov = Coverages.inMemory(cropped);
+            } else {
+                //round-trip through a GeoTIFF of the scratch workspace of this execution
+                lCov = getDiskCoverage(cropped, scratch);
             }
-            
-        }
-        //final GeoTiffFormat format = new GeoTiffFormat();
-        
-        //final GeoTiffWriteParams wp = new GeoTiffWriteParams();
-        //wp.setCompressionMode(GeoTiffWriteParams.MODE_EXPLICIT);
-        //wp.setCompressionType("LZW");
-        //wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
-        //wp.setTiling(512, 512);
+            LOG.info("lcov="+lCov);
         
-        //final ParameterValueGroup writerParams = format.getWriteParameters();
-        //writerParams.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
-        //            .setValue(wp);
+            /*
+             * Initialize the library, only the first call
+             * loads the algorithms and resource strings
+             */
+            SextanteBootstrap.initialize();
 
-        //String cropFileName = new StringBuilder(writedir.getAbsolutePath()).append(File.separatorChar).append(cropped.getName().toString()).append(".tiff").toString();
-        String cropFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(cropped.getName().toString()).append(".tiff").toString();
-        LOG.info("crop filename="+cropFileName);
-        final File writeFile = new File(cropFileName);
-        LOG.info("write file="+writeFile.toString());
-        //final GridCoverageWriter writer = format.getWriter(writeFile, new Hints(Hints.CRS, cropped.getCoordinateReferenceSystem()));
-        
-        //GeoTiffWriter writer = new GeoTiffWriter(cropped, new Hints(Hints.CRS, cropped.getCoordinateReferenceSystem()));
-//        try {
-//            writer.write(cropped, (GeneralParameterValue[]) writerParams.values().toArray(new GeneralParameterValue[1]));
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        } finally {
-//            try {
-//                writer.dispose();
-//            } catch (Throwable e) {
-//               e.printStackTrace(); 
-//            }
-//        }
-        
-        writeToGeotiff(cropped, cropFileName);        
-        /** Add a static coverage */
-        
-        //static file
-        //GridCoverage2D lCov = getLocalCoverage("result.tiff");
-        
-        //
-        GridCoverage2D lCov = getLocalCoverage(writeFile.getName());
-        LOG.info("lcov="+lCov);
-        
-        /*
-         * Initialize the library.
-         * This will load all the algorithms and resource strings.
-         * Since no language code is passed, default language(en)
-         * will be used
-         */
-        Sextante.initialize();
-
-        GTRasterLayer raster = new GTRasterLayer();
-        //raster.create(cropCov);
-        raster.create(lCov);
-        LOG.info("raster = "+raster);        
-        IRasterLayer curvature = getCurvature(raster,method);   
-        GridCoverage2D ret = (GridCoverage2D)curvature.getBaseDataObject();
-        LOG.info("ret="+ret);            
+            GridCoverage2D ret;
+            if (TiledProcessor.isEnabled()) {
+                //split the DEM in tiles with a one cell halo and process them in parallel
+                ret = TiledProcessor.process(lCov, (tile, coverage) -> getCurvature(tile,method));
+            } else {
+                GTRasterLayer raster = new GTRasterLayer();
+                //raster.create(cropCov);
+                raster.create(lCov);
+                LOG.info("raster = "+raster);        
+                IRasterLayer curvature = getCurvature(raster,method);   
+                ret = (GridCoverage2D)curvature.getBaseDataObject();
+            }
+            LOG.info("ret="+ret);            
 
-        return ret;
+            return ret;
+        }
     }
 
     
@@ -195,9 +175,9 @@ public class Curvature extends StaticMethodsProcessFactory<Curvature> {
             throws GeoAlgorithmExecutionException {
 
         /*
-         * Instantiate the CurvatureAlgorithm class
+         * Take an instance of the CurvatureAlgorithm class from the pool
          */
-        CurvaturesAlgorithm alg = new CurvaturesAlgorithm();
+        CurvaturesAlgorithm alg = CURVATURES.borrow();
 
         /*
          * The first thing we have to do is to set up the input parameters
@@ -242,14 +222,23 @@ public class Curvature extends StaticMethodsProcessFactory<Curvature> {
          * Now the result can be taken from the output container
          */
         IRasterLayer curvature = (IRasterLayer) out.getOutputObject();
+        CURVATURES.release(alg);
 
         return curvature;
 
     }  
     
-    static GridCoverage2D getLocalCoverage(String filename) throws Exception {
+    static GridCoverage2D getDiskCoverage(GridCoverage2D cropped, ScratchWorkspace scratch) throws Exception {
+        
+        final File writeFile = scratch.newFile(cropped.getName().toString(), ".tiff");
+        LOG.info("write file="+writeFile.toString());
+        
+        writeToGeotiff(cropped, writeFile.getAbsolutePath());
+        return getLocalCoverage(writeFile);
+    }
+    
+    static GridCoverage2D getLocalCoverage(File file) throws Exception {
 
-        File file = new File("/tmp"+File.separatorChar+Curvature.class.getSimpleName()+File.separatorChar+filename);
         LOG.info("geotiff file to read "+file.toString());
         AbstractGridFormat format = GridFormatFinder.findFormat(file);
         GridCoverage2DReader reader = format.getReader(file);
@@ -21,12 +21,12 @@ import org.geotools.data.simple.SimpleFeatureIterator;
 
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geoavalanche.wps.referencing.CRSRegistry;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.factory.StaticMethodsProcessFactory;
-import org.geotools.referencing.CRS;
 import org.geotools.text.Text;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
@@ -86,10 +86,9 @@ public class Buffer extends StaticMethodsProcessFactory<Buffer> {
     }
 
     static List<SimpleFeature> transform(List<SimpleFeature> featuresList, CoordinateReferenceSystem sourceCRS, CoordinateReferenceSystem targetCRS) throws Exception {
-        if (sourceCRS == null | targetCRS == null | sourceCRS==targetCRS) return featuresList;
+        if (sourceCRS == null || targetCRS == null || CRSRegistry.isSame(sourceCRS, targetCRS)) return featuresList;
         List<SimpleFeature> ret = new ArrayList();
-        boolean lenient = true;
-        MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS, lenient);
+        MathTransform transform = CRSRegistry.findMathTransform(sourceCRS, targetCRS);
         for (SimpleFeature feature : featuresList) {
             if (feature.getDefaultGeometry()!=null) {
                 feature.setDefaultGeometry(JTS.transform((Geometry)feature.getDefaultGeometry(), transform));
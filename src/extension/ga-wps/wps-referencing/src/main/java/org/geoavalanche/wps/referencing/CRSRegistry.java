@@ -0,0 +1,109 @@
+package org.geoavalanche.wps.referencing;
+
+import com.vividsolutions.jts.geom.Geometry;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.transform.IdentityTransform;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Coordinate reference systems and transforms shared by the processes
+ *
+ * The CRSs are decoded once per code and the transforms searched once per
+ * pair of CRSs, instead of querying the EPSG database for every feature. Two
+ * CRSs are the same when they are equal ignoring their metadata, so a
+ * geometry already in the target CRS is not transformed.
+ *
+ */
+public final class CRSRegistry {
+
+    private static final Logger LOG = Logger.getLogger(CRSRegistry.class.getName());
+
+    //pairs of CRSs parsed from the requests, bounded in case they never repeat
+    private static final int MAX_TRANSFORMS = 256;
+
+    private static final Map<String, CoordinateReferenceSystem> CRSS = new ConcurrentHashMap<String, CoordinateReferenceSystem>();
+    private static final Map<List<CoordinateReferenceSystem>, MathTransform> TRANSFORMS = new ConcurrentHashMap<List<CoordinateReferenceSystem>, MathTransform>();
+
+    private CRSRegistry() {
+    }
+
+    /**
+     * @param code the code of the CRS, as EPSG:4326
+     * @return the CRS, decoded on the first call only
+     * @throws FactoryException if the code is unknown
+     */
+    public static CoordinateReferenceSystem decode(String code) throws FactoryException {
+        CoordinateReferenceSystem crs = CRSS.get(code);
+        if (crs == null) {
+            crs = CRS.decode(code);
+            CoordinateReferenceSystem previous = CRSS.putIfAbsent(code, crs);
+            if (previous != null) {
+                crs = previous;
+            }
+        }
+        return crs;
+    }
+
+    /**
+     * @return true if both CRSs are equal ignoring their metadata
+     */
+    public static boolean isSame(CoordinateReferenceSystem source, CoordinateReferenceSystem target) {
+        return source == target || CRS.equalsIgnoreMetadata(source, target);
+    }
+
+    /**
+     * Returns the transform between two CRSs, lenient about datum shifts
+     *
+     * @param source the source CRS
+     * @param target the target CRS
+     * @return the transform, the identity if the CRSs are the same
+     * @throws FactoryException if no transform is found
+     */
+    public static MathTransform findMathTransform(CoordinateReferenceSystem source, CoordinateReferenceSystem target)
+            throws FactoryException {
+
+        if (isSame(source, target)) {
+            return IdentityTransform.create(source.getCoordinateSystem().getDimension());
+        }
+        List<CoordinateReferenceSystem> key = Arrays.asList(source, target);
+        MathTransform transform = TRANSFORMS.get(key);
+        if (transform == null) {
+            transform = CRS.findMathTransform(source, target, true);
+            if (TRANSFORMS.size() >= MAX_TRANSFORMS) {
+                LOG.info("clearing "+TRANSFORMS.size()+" cached transforms");
+                TRANSFORMS.clear();
+            }
+            TRANSFORMS.put(key, transform);
+        }
+        return transform;
+    }
+
+    /**
+     * Returns the geometry in the target CRS
+     *
+     * @param geometry the geometry, in the source CRS
+     * @param source the source CRS
+     * @param target the target CRS
+     * @return the geometry itself if the CRSs are the same, a transformed copy otherwise
+     * @throws FactoryException if no transform is found
+     * @throws TransformException if the geometry can not be transformed
+     */
+    public static Geometry transform(Geometry geometry, CoordinateReferenceSystem source, CoordinateReferenceSystem target)
+            throws FactoryException, TransformException {
+
+        MathTransform transform = findMathTransform(source, target);
+        if (transform.isIdentity()) {
+            return geometry;
+        }
+        return JTS.transform(geometry, transform);
+    }
+}
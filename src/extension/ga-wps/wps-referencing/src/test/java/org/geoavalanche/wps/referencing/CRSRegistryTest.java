@@ -0,0 +1,59 @@
+package org.geoavalanche.wps.referencing;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * Unit test for CRSRegistry.
+ */
+public class CRSRegistryTest
+    extends TestCase
+{
+    private static final String UTM_32N = "PROJCS[\"WGS 84 / UTM zone 32N\","
+            + "GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563]],"
+            + "PRIMEM[\"Greenwich\",0],UNIT[\"degree\",0.0174532925199433]],"
+            + "PROJECTION[\"Transverse_Mercator\"],PARAMETER[\"latitude_of_origin\",0],"
+            + "PARAMETER[\"central_meridian\",9],PARAMETER[\"scale_factor\",0.9996],"
+            + "PARAMETER[\"false_easting\",500000],PARAMETER[\"false_northing\",0],UNIT[\"metre\",1]]";
+
+    public CRSRegistryTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CRSRegistryTest.class );
+    }
+
+    public void testSameCRSIsNotTransformed() throws Exception
+    {
+        // an equal CRS, parsed again with other metadata
+        CoordinateReferenceSystem parsed = CRS.parseWKT(DefaultGeographicCRS.WGS84.toWKT());
+        assertNotSame(DefaultGeographicCRS.WGS84, parsed);
+        assertTrue(CRSRegistry.isSame(DefaultGeographicCRS.WGS84, parsed));
+
+        Geometry point = new WKTReader().read("POINT(9 45)");
+        assertSame(point, CRSRegistry.transform(point, DefaultGeographicCRS.WGS84, parsed));
+    }
+
+    public void testTransformsAreCached() throws Exception
+    {
+        CoordinateReferenceSystem utm = CRS.parseWKT(UTM_32N);
+        assertFalse(CRSRegistry.isSame(DefaultGeographicCRS.WGS84, utm));
+
+        MathTransform transform = CRSRegistry.findMathTransform(DefaultGeographicCRS.WGS84, utm);
+        assertFalse(transform.isIdentity());
+        assertSame(transform, CRSRegistry.findMathTransform(DefaultGeographicCRS.WGS84, CRS.parseWKT(UTM_32N)));
+
+        Geometry point = CRSRegistry.transform(new WKTReader().read("POINT(9 45)"), DefaultGeographicCRS.WGS84, utm);
+        assertEquals(500000, point.getCoordinate().x, 1e-3);
+    }
+}
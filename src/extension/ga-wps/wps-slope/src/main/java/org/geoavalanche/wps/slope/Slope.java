@@ -6,21 +6,27 @@ import es.unex.sextante.core.AnalysisExtent;
 import es.unex.sextante.core.OutputFactory;
 import es.unex.sextante.core.OutputObjectsSet;
 import es.unex.sextante.core.ParametersSet;
-import es.unex.sextante.core.Sextante;
 import es.unex.sextante.dataObjects.IRasterLayer;
 import es.unex.sextante.exceptions.GeoAlgorithmExecutionException;
-import org.geoserver.wps.sextante.GTOutputFactory;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
+import org.geoavalanche.wps.commons.AlgorithmPool;
+import org.geoavalanche.wps.commons.Coverages;
+import org.geoavalanche.wps.commons.DerivedLayerCache;
+import org.geoavalanche.wps.commons.FloatOutputFactory;
+import org.geoavalanche.wps.commons.SextanteBootstrap;
+import org.geoavalanche.wps.commons.ScratchWorkspace;
+import org.geoavalanche.wps.commons.Settings;
+import org.geoavalanche.wps.commons.TiledProcessor;
 import org.geoserver.wps.sextante.GTRasterLayer;
 import es.unex.sextante.morphometry.slope.SlopeAlgorithm;
 import es.unex.sextante.outputs.FileOutputChannel;
 import es.unex.sextante.outputs.Output;
+import java.awt.image.RenderedImage;
 import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.logging.Logger;
+import org.geotools.coverage.GridSampleDimension;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
 import org.geotools.coverage.grid.io.GridFormatFinder;
@@ -57,14 +63,34 @@ public class Slope extends StaticMethodsProcessFactory<Slope> {
      * This tells the algorithm how to create new data objects (layers
      * and tables)
      * The GTOutputFactory creates objects based on geotools
-     * data objects (DataStore and GridCoverage)
+     * data objects (DataStore and GridCoverage), the FloatOutputFactory
+     * keeps the cells of the rasters in a float array
      */
-    private static OutputFactory outputFactory = new GTOutputFactory();
+    private static OutputFactory outputFactory = new FloatOutputFactory();
+    
+    /*
+     * Instances of the geoalgorithms are reused from one execution to the next
+     */
+    private static final AlgorithmPool<SlopeAlgorithm> SLOPES = new AlgorithmPool<SlopeAlgorithm>(SlopeAlgorithm::new);
+    
+    /*
+     * When enabled the cropped DEM is wrapped as it is, without being
+     * written to and read back from a GeoTIFF in the temp directory
+     */
+    private static boolean inMemoryCrop = Settings.getBoolean("geoavalanche.inMemoryCrop", true);
+    /*
+     * In streaming mode the slopes of large crops are computed in strips of
+     * rows, when the result is encoded, instead of all at once in memory
+     */
+    private static boolean streaming = Settings.getBoolean("geoavalanche.slope.streaming", false);
+    private static long streamingMinCells = Settings.getLong("geoavalanche.slope.streaming.minCells", 16L * 1024 * 1024);
+    private static int stripHeight = Settings.getInt("geoavalanche.slope.stripHeight", 256);
     private static int method = SlopeAlgorithm.METHOD_ZEVENBERGEN;
     private static int unit = SlopeAlgorithm.UNITS_DEGREES;
     
     public Slope() {
         super(Text.text("GeoAvalanche"), GEOAVALANCHE_NAMESPACE, Slope.class);
+        SextanteBootstrap.initialize();
     }
     
     @DescribeProcess(title = "Slope", description = "Calculate slopes in a shape")
@@ -104,84 +130,56 @@ public class Slope extends StaticMethodsProcessFactory<Slope> {
         GridCoverage2D cropped = (GridCoverage2D) PROCESSOR.doOperation(param);
         LOG.info("cropped Coverage="+cropped);
         
-        //Write coverage to file /tmp/Slope/xxx.tiff
-        //final File writedir = new File(new StringBuilder("/tmp").append(File.separatorChar).append(Slope.class.getSimpleName()).toString());
-        Path writedir = Paths.get(new StringBuilder("/tmp").append(File.separatorChar).append(Slope.class.getSimpleName()).toString());
-        LOG.info("write directory="+writedir.toString());
-        //Care to create directory
-        //LOG.info("writedir is a Directory? "+writedir.isDirectory());
-        //LOG.info("writedir exists? "+writedir.isDirectory());
-        //if (!writedir.exists()) {
-        if (!Files.exists(writedir)) {
-        
-            //writedir.mkdirs();
-            try {
-                Files.createDirectories(writedir);
-            } catch (IOException e) {
-                //fail to create directory
-                e.printStackTrace();
-            }
-            
+        if (isStreaming(cropped)) {
+            //compute the slopes strip by strip while the result is written
+            GridCoverage2D ret = getStreamingSlope(cropped);
+            LOG.info("ret="+ret);
+            return ret;
         }
-        //final GeoTiffFormat format = new GeoTiffFormat();
         
-        //final GeoTiffWriteParams wp = new GeoTiffWriteParams();
-        //wp.setCompressionMode(GeoTiffWriteParams.MODE_EXPLICIT);
-        //wp.setCompressionType("LZW");
-        //wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
-        //wp.setTiling(512, 512);
-        
-        //final ParameterValueGroup writerParams = format.getWriteParameters();
-        //writerParams.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
-        //            .setValue(wp);
-        
-        //String cropFileName = new StringBuilder(writedir.getAbsolutePath()).append(File.separatorChar).append(cropped.getName().toString()).append(".tiff").toString();
-        String cropFileName = new StringBuilder(writedir.toAbsolutePath().toString()).append(File.separatorChar).append(cropped.getName().toString()).append(".tiff").toString();
-        LOG.info("crop filename="+cropFileName);
-        final File writeFile = new File(cropFileName);
-        LOG.info("write file="+writeFile.toString());
-        //final GridCoverageWriter writer = format.getWriter(writeFile, new Hints(Hints.CRS, cropped.getCoordinateReferenceSystem()));
-        
-        //GeoTiffWriter writer = new GeoTiffWriter(cropped, new Hints(Hints.CRS, cropped.getCoordinateReferenceSystem()));
-//        try {
-//            writer.write(cropped, (GeneralParameterValue[]) writerParams.values().toArray(new GeneralParameterValue[1]));
-//        } catch (IOException e) {
-//            e.printStackTrace();
-//        } finally {
-//            try {
-//                writer.dispose();
-//            } catch (Throwable e) {
-//               e.printStackTrace(); 
-//            }
-//        }
-        
-        writeToGeotiff(cropped, cropFileName);
-        /** Add a static coverage */
-        
-        //static file
-        //GridCoverage2D lCov = getLocalCoverage("result.tiff");
+        if (DerivedLayerCache.isEnabled()) {
+            //reuse the slopes of the tiles computed for previous requests
+            SextanteBootstrap.initialize();
+            GridCoverage2D ret = DerivedLayerCache.getDefault().derive(dem, bounds, roi, DerivedLayerCache.product("slope", method, unit),
+                    (tile, coverage) -> getSlope(tile,method,unit,tile.getLayerGridExtent()));
+            LOG.info("ret="+ret);
+            return ret;
+        }
         
-        //
-        GridCoverage2D lCov = getLocalCoverage(writeFile.getName());
-        LOG.info("lcov="+lCov);
+        //the files written for this execution are deleted when it is over
+        try (ScratchWorkspace scratch = ScratchWorkspace.open(Slope.class.getSimpleName())) {
+            GridCoverage2D lCov;
+            if (inMemoryCrop) {
+                //hand the cropped pixels straight to the algorithm
+                lCov = Coverages.inMemory(cropped);
+            } else {
+                //round-trip through a GeoTIFF of the scratch workspace of this execution
+                lCov = getDiskCoverage(cropped, scratch);
+            }
+            LOG.info("lcov="+lCov);
         
-        /*
-         * Initialize the library.
-         * This will load all the algorithms and resource strings.
-         * Since no language code is passed, default language(en)
-         * will be used
-         */
-        Sextante.initialize();
+            /*
+             * Initialize the library, only the first call
+             * loads the algorithms and resource strings
+             */
+            SextanteBootstrap.initialize();
 
-        GTRasterLayer raster = new GTRasterLayer();
-        //raster.create(cropCov);
-        raster.create(lCov);
-        LOG.info("raster = "+raster);        
-        IRasterLayer slope = getSlope(raster,method,unit,raster.getLayerGridExtent());   
-        GridCoverage2D ret = (GridCoverage2D)slope.getBaseDataObject();
-        LOG.info("ret="+ret);            
+            GridCoverage2D ret;
+            if (TiledProcessor.isEnabled()) {
+                //split the DEM in tiles with a one cell halo and process them in parallel
+                ret = TiledProcessor.process(lCov, (tile, coverage) -> getSlope(tile,method,unit,tile.getLayerGridExtent()));
+            } else {
+                GTRasterLayer raster = new GTRasterLayer();
+                //raster.create(cropCov);
+                raster.create(lCov);
+                LOG.info("raster = "+raster);        
+                IRasterLayer slope = getSlope(raster,method,unit,raster.getLayerGridExtent());   
+                ret = (GridCoverage2D)slope.getBaseDataObject();
+            }
+            LOG.info("ret="+ret);            
 
-        return ret;
+            return ret;
+        }
     }
 
     
@@ -196,9 +194,9 @@ public class Slope extends StaticMethodsProcessFactory<Slope> {
             throws GeoAlgorithmExecutionException {
 
         /*
-         * Instantiate the SlopeAlgorithm class
+         * Take an instance of the SlopeAlgorithm class from the pool
          */
-        SlopeAlgorithm alg = new SlopeAlgorithm();
+        SlopeAlgorithm alg = SLOPES.borrow();
         alg.setAnalysisExtent(ext);
 
         /*
@@ -247,14 +245,55 @@ public class Slope extends StaticMethodsProcessFactory<Slope> {
          * Now the result can be taken from the output container
          */
         IRasterLayer slope = (IRasterLayer) out.getOutputObject();
+        SLOPES.release(alg);
 
         return slope;
 
     }
     
-    static GridCoverage2D getLocalCoverage(String filename) throws Exception {
+    /**
+     * Tells whether the slopes of a crop are to be computed in strips
+     *
+     * @param cropped the cropped DEM
+     * @return true in streaming mode, if the crop has enough cells
+     */
+    static boolean isStreaming(GridCoverage2D cropped) {
+        RenderedImage image = cropped.getRenderedImage();
+        return streaming && (long) image.getWidth() * image.getHeight() >= streamingMinCells;
+    }
+    
+    /**
+     * Returns the slopes of a DEM as a coverage computed strip by strip
+     *
+     * No strip is computed before the coverage is read, the DEM is read one
+     * strip at a time, with one row more above and below, so that the memory
+     * needed scales with the strip height instead of the area of the crop.
+     *
+     * @param dem the cropped DEM
+     * @return a coverage of slopes in degrees
+     */
+    static GridCoverage2D getStreamingSlope(GridCoverage2D dem) {
+
+        RenderedImage image = dem.getRenderedImage();
+        double cellSize = dem.getEnvelope2D().getWidth() / image.getWidth();
+        double[] noData = dem.getSampleDimension(0).getNoDataValues();
+        SlopeOpImage slope = new SlopeOpImage(image, cellSize,
+                noData != null && noData.length > 0 ? noData[0] : SlopeOpImage.NO_DATA, stripHeight);
+        return new GridCoverageFactory().create("slope", slope, dem.getEnvelope(),
+                new GridSampleDimension[] { FloatRasterLayer.noDataBand("slope", SlopeOpImage.NO_DATA) }, null, null);
+    }
+    
+    static GridCoverage2D getDiskCoverage(GridCoverage2D cropped, ScratchWorkspace scratch) throws Exception {
+        
+        final File writeFile = scratch.newFile(cropped.getName().toString(), ".tiff");
+        LOG.info("write file="+writeFile.toString());
+        
+        writeToGeotiff(cropped, writeFile.getAbsolutePath());
+        return getLocalCoverage(writeFile);
+    }
+    
+    static GridCoverage2D getLocalCoverage(File file) throws Exception {
 
-        File file = new File("/tmp"+File.separatorChar+Slope.class.getSimpleName()+File.separatorChar+filename);
         LOG.info("geotiff file to read "+file.toString());
         AbstractGridFormat format = GridFormatFinder.findFormat(file);
         GridCoverage2DReader reader = format.getReader(file);
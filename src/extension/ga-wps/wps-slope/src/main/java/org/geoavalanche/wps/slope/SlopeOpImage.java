@@ -0,0 +1,95 @@
+package org.geoavalanche.wps.slope;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.function.DoublePredicate;
+import javax.media.jai.AreaOpImage;
+import javax.media.jai.BorderExtender;
+import javax.media.jai.BorderExtenderConstant;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.RasterFactory;
+import org.geoavalanche.alg.avalanche.TerrainDerivatives;
+
+/**
+ * Slope of a DEM computed strip by strip, in degrees, with the method of
+ * Zevenbergen &amp; Thorne (1987)
+ *
+ * The image is made of tiles as wide as the DEM and a few rows high. A strip
+ * is computed when it is asked for, reading the rows of the DEM it covers
+ * plus one row above and one below, so that writing the image to a GeoTIFF
+ * or encoding it in a response only holds a few strips in memory at a time.
+ * The values are those of the Sextante slope algorithm: nodata cells are
+ * nodata, and a nodata neighbour, or one outside of the DEM, is replaced by
+ * the mirror of the opposite one, as TerrainDerivatives does.
+ *
+ */
+public class SlopeOpImage extends AreaOpImage {
+
+    public static final float NO_DATA = -99999f;
+
+    private final double cellSize;
+    private final double noData;
+
+    /**
+     * @param dem the DEM, only its first band is read
+     * @param cellSize the size of a cell of the DEM
+     * @param noData the nodata value of the DEM
+     * @param stripHeight the number of rows of a strip
+     */
+    public SlopeOpImage(RenderedImage dem, double cellSize, double noData, int stripHeight) {
+        super(dem, layout(dem, stripHeight), null, false, extender(noData), 1, 1, 1, 1);
+        this.cellSize = cellSize;
+        this.noData = noData;
+    }
+
+    private static ImageLayout layout(RenderedImage dem, int stripHeight) {
+
+        SampleModel sampleModel = RasterFactory.createBandedSampleModel(DataBuffer.TYPE_FLOAT,
+                dem.getWidth(), Math.min(stripHeight, dem.getHeight()), 1);
+        ImageLayout layout = new ImageLayout(dem);
+        layout.setTileGridXOffset(dem.getMinX());
+        layout.setTileGridYOffset(dem.getMinY());
+        layout.setTileWidth(dem.getWidth());
+        layout.setTileHeight(Math.min(stripHeight, dem.getHeight()));
+        layout.setSampleModel(sampleModel);
+        layout.setColorModel(RasterFactory.createComponentColorModel(DataBuffer.TYPE_FLOAT,
+                ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE));
+        return layout;
+
+    }
+
+    private static BorderExtender extender(double noData) {
+        // the cells around the DEM are nodata, as for the Sextante layers
+        return new BorderExtenderConstant(new double[] { noData });
+    }
+
+    @Override
+    protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
+
+        final int width = destRect.width;
+        final int srcWidth = width + 2;
+        final double[] z = sources[0].getSamples(destRect.x - 1, destRect.y - 1, srcWidth, destRect.height + 2, 0,
+                (double[]) null);
+        final double[][] rows = new double[3][srcWidth];
+        final float[] row = new float[width];
+        final TerrainDerivatives derivatives = new TerrainDerivatives(cellSize);
+        final DoublePredicate isNoData = value -> value == noData || Double.isNaN(value);
+
+        for (int y = 0; y < destRect.height; y++) {
+            for (int r = 0; r < 3; r++) {
+                System.arraycopy(z, (y + r) * srcWidth, rows[r], 0, srcWidth);
+            }
+            for (int x = 0; x < width; x++) {
+                row[x] = derivatives.compute(rows, x, isNoData) ? (float) derivatives.getSlope() : NO_DATA;
+            }
+            dest.setSamples(destRect.x, destRect.y + y, width, 1, 0, row);
+        }
+
+    }
+}
@@ -0,0 +1,102 @@
+package org.geoavalanche.wps.slope;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import junit.framework.TestCase;
+import org.geoavalanche.alg.avalanche.FloatRasterLayer;
+import org.geoavalanche.alg.avalanche.TerrainDerivatives;
+import org.geoserver.wps.sextante.GTRasterLayer;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for SlopeOpImage.
+ */
+public class SlopeOpImageTest extends TestCase
+{
+    public SlopeOpImageTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * A plane rising one unit per column, the rows being one unit apart
+     */
+    private static BufferedImage plane(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, 100 + x);
+            }
+        }
+        return image;
+    }
+
+    public void testStrips() {
+        SlopeOpImage slope = new SlopeOpImage(plane(6, 10), 1.0, SlopeOpImage.NO_DATA, 4);
+        assertEquals(6, slope.getTileWidth());
+        assertEquals(4, slope.getTileHeight());
+        assertEquals(3, slope.getNumYTiles());
+    }
+
+    public void testSlopeAcrossStrips() {
+        Raster slope = new SlopeOpImage(plane(6, 10), 1.0, SlopeOpImage.NO_DATA, 4).getData();
+        // the rows on both sides of the first strip boundary
+        assertEquals(45f, slope.getSampleFloat(2, 3, 0), 1e-4f);
+        assertEquals(45f, slope.getSampleFloat(2, 4, 0), 1e-4f);
+        assertEquals(45f, slope.getSampleFloat(4, 8, 0), 1e-4f);
+    }
+
+    public void testBorderIsMirrored() {
+        Raster slope = new SlopeOpImage(plane(6, 10), 1.0, SlopeOpImage.NO_DATA, 4).getData();
+        // the cells out of the DEM mirror the opposite ones, as in Sextante
+        assertEquals(45f, slope.getSampleFloat(0, 5, 0), 1e-4f);
+        assertEquals(45f, slope.getSampleFloat(3, 9, 0), 1e-4f);
+        assertEquals(45f, slope.getSampleFloat(5, 0, 0), 1e-4f);
+    }
+
+    public void testNoDataCell() {
+        BufferedImage dem = plane(6, 10);
+        dem.getRaster().setSample(3, 5, 0, 0);
+        Raster slope = new SlopeOpImage(dem, 1.0, 0, 4).getData();
+        assertEquals(SlopeOpImage.NO_DATA, slope.getSampleFloat(3, 5, 0), 0f);
+        assertEquals(45f, slope.getSampleFloat(2, 4, 0), 1e-4f);
+        assertEquals(45f, slope.getSampleFloat(1, 2, 0), 1e-4f);
+    }
+
+    /**
+     * The slopes are those of TerrainDerivatives reading the DEM cell by cell
+     */
+    public void testSameAsTerrainDerivatives() {
+        final int width = 12;
+        final int height = 9;
+        final float noData = -9999f;
+        WritableRaster dem = Raster.createBandedRaster(DataBuffer.TYPE_FLOAT, width, height, 1, null);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                dem.setSample(x, y, 0, 100 + 7 * Math.sin(x / 2.0) * Math.cos(y / 3.0) + x);
+            }
+        }
+        dem.setSample(4, 4, 0, noData);
+        dem.setSample(5, 4, 0, noData);
+        GridCoverage2D coverage = new GridCoverageFactory().create("dem", dem,
+                new ReferencedEnvelope(0, 2 * width, 0, 2 * height, DefaultGeographicCRS.WGS84),
+                new GridSampleDimension[] { FloatRasterLayer.noDataBand("dem", noData) }, null, null);
+        GTRasterLayer layer = new GTRasterLayer();
+        layer.create(coverage);
+
+        Raster slope = new SlopeOpImage(coverage.getRenderedImage(), 2.0, noData, 4).getData();
+        TerrainDerivatives derivatives = new TerrainDerivatives(2.0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float expected = derivatives.compute(layer, x, y) ? (float) derivatives.getSlope() : SlopeOpImage.NO_DATA;
+                assertEquals("cell " + x + "," + y, expected, slope.getSampleFloat(x, y, 0), 1e-4f);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.geoavalanche.wps.commons.Settings;
+
+/**
+ * Cache of the catalog of the snow product collections
+ *
+ * The catalog changes once a day, so the coverages of a collection are kept
+ * for geoavalanche.snowpack.catalogTtlMinutes (60). Past that, and up to
+ * geoavalanche.snowpack.catalogMaxStaleMinutes more (1440), the coverages
+ * kept are still returned while a single background lookup refreshes them;
+ * past both the caller waits for a lookup, and gets the coverages kept if it
+ * fails. The concurrent callers of a collection share the same lookup.
+ *
+ */
+final class CatalogCache {
+
+    private static final Logger LOG = Logger.getLogger(CatalogCache.class.getName());
+
+    /**
+     * The lookup of the coverages of a collection
+     */
+    interface Lookup {
+        List<String> getTimeData(String collection, Integer ndays) throws IOException;
+    }
+
+    private static volatile CatalogCache instance;
+
+    private final Lookup lookup;
+    private final long ttlMillis;
+    private final long maxStaleMillis;
+    private final Executor refresher;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * @param lookup the lookup of the catalog
+     * @param ttlMillis age past which the coverages are refreshed
+     * @param maxStaleMillis time past the TTL the coverages are still returned while refreshed
+     * @param refresher the executor of the background refreshes
+     */
+    CatalogCache(Lookup lookup, long ttlMillis, long maxStaleMillis, Executor refresher) {
+        this.lookup = lookup;
+        this.ttlMillis = ttlMillis;
+        this.maxStaleMillis = maxStaleMillis;
+        this.refresher = refresher;
+    }
+
+    static CatalogCache getDefault() {
+        if (instance == null) {
+            synchronized (CatalogCache.class) {
+                if (instance == null) {
+                    instance = new CatalogCache(SnowProductClient.getDefault()::getTimeData,
+                            TimeUnit.MINUTES.toMillis(Settings.getLong("geoavalanche.snowpack.catalogTtlMinutes", 60)),
+                            TimeUnit.MINUTES.toMillis(Settings.getLong("geoavalanche.snowpack.catalogMaxStaleMinutes", 1440)),
+                            Executors.newSingleThreadExecutor(r -> {
+                                Thread thread = new Thread(r, "snowpack-catalog");
+                                thread.setDaemon(true);
+                                return thread;
+                            }));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the coverages of a collection
+     *
+     * @param collection the collection
+     * @param ndays the number of days before today, null for all
+     * @return the names of the coverages, the most recent last
+     * @throws IOException if the catalog can not be read and nothing is kept
+     */
+    List<String> get(String collection, Integer ndays) throws IOException {
+        Entry entry = entries.computeIfAbsent(collection + "|" + ndays, k -> new Entry(collection, ndays));
+        Value value = entry.value;
+        long now = System.currentTimeMillis();
+        if (value != null && now - value.time <= ttlMillis) {
+            hits.incrementAndGet();
+            return value.coverages;
+        }
+        if (value != null && now - value.time <= ttlMillis + maxStaleMillis) {
+            staleHits.incrementAndGet();
+            entry.refresh(true);
+            return value.coverages;
+        }
+        misses.incrementAndGet();
+        try {
+            return entry.refresh(false).get().coverages;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted lookup of "+collection);
+        } catch (ExecutionException e) {
+            if (value != null) {
+                LOG.warning("catalog of "+collection+" is stale: "+e.getCause());
+                return value.coverages;
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getLookups() {
+        return lookups.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits="+hits+" staleHits="+staleHits+" misses="+misses+" lookups="+lookups;
+    }
+
+    private static final class Value {
+
+        final List<String> coverages;
+        final long time;
+
+        Value(List<String> coverages, long time) {
+            this.coverages = coverages;
+            this.time = time;
+        }
+    }
+
+    private final class Entry {
+
+        private final String collection;
+        private final Integer ndays;
+        private volatile Value value;
+        // the lookup in flight, null if none
+        private CompletableFuture<Value> inFlight;
+
+        Entry(String collection, Integer ndays) {
+            this.collection = collection;
+            this.ndays = ndays;
+        }
+
+        /**
+         * Starts a lookup, unless one is in flight
+         *
+         * @param background true to run it on the refresher, false on the calling thread
+         * @return the lookup
+         */
+        CompletableFuture<Value> refresh(boolean background) {
+            CompletableFuture<Value> future;
+            synchronized (this) {
+                if (inFlight != null) {
+                    return inFlight;
+                }
+                future = new CompletableFuture<Value>();
+                inFlight = future;
+            }
+            if (background) {
+                try {
+                    refresher.execute(() -> fetch(future));
+                } catch (RuntimeException e) {
+                    complete(future, null, e);
+                }
+            } else {
+                fetch(future);
+            }
+            return future;
+        }
+
+        private void fetch(CompletableFuture<Value> future) {
+            lookups.incrementAndGet();
+            try {
+                long time = System.currentTimeMillis();
+                List<String> coverages = lookup.getTimeData(collection, ndays);
+                complete(future, new Value(Collections.unmodifiableList(coverages), time), null);
+            } catch (IOException | RuntimeException e) {
+                LOG.severe("can not read the catalog of "+collection+": "+e);
+                complete(future, null, e);
+            }
+        }
+
+        private void complete(CompletableFuture<Value> future, Value result, Throwable failure) {
+            synchronized (this) {
+                if (result != null) {
+                    value = result;
+                }
+                inFlight = null;
+            }
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+}
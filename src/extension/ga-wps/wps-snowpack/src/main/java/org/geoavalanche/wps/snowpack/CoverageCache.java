@@ -0,0 +1,224 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.geoavalanche.wps.commons.Settings;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+
+/**
+ * Cache of the open readers and decoded coverages of the local repository
+ *
+ * A file is opened once and its coverage decoded once, for all the features
+ * of a request and the following requests, as long as the file is not
+ * modified: the key is the path with the modification time and length. The
+ * least recently used files are closed past geoavalanche.snowpack.coverages
+ * entries (32); an entry still used by a request is disposed when released.
+ *
+ */
+final class CoverageCache {
+
+    private static final Logger LOG = Logger.getLogger(CoverageCache.class.getName());
+
+    private static final CoverageCache DEFAULT = new CoverageCache(
+            Settings.getInt("geoavalanche.snowpack.coverages", 32));
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries the number of files kept open
+     */
+    CoverageCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    static CoverageCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a handle on a file of the repository, to close when done
+     *
+     * @param file the file
+     * @return the handle
+     * @throws IOException if the file can not be read
+     */
+    Handle open(File file) throws IOException {
+
+        if (!file.isFile()) {
+            throw new IOException(file+" does not exist");
+        }
+        String key = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                entry = new Entry(file);
+                entries.put(key, entry);
+                Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                while (entries.size() > maxEntries && it.hasNext()) {
+                    Entry eldest = it.next().getValue();
+                    it.remove();
+                    evictions.incrementAndGet();
+                    eldest.evict();
+                }
+            }
+            entry.refs++;
+        }
+        try {
+            entry.load();
+        } catch (IOException | RuntimeException e) {
+            // not kept, the next request opens the file again
+            synchronized (entries) {
+                entries.remove(key, entry);
+            }
+            release(entry);
+            throw e;
+        }
+        return new Handle(entry);
+    }
+
+    private void release(Entry entry) {
+        boolean dispose;
+        synchronized (entries) {
+            entry.refs--;
+            dispose = entry.evicted && entry.refs == 0;
+        }
+        if (dispose) {
+            entry.dispose();
+        }
+    }
+
+    /**
+     * Closes all the files not in use, the others when released
+     */
+    void dispose() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.evict();
+            }
+            entries.clear();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (entries) {
+            return "hits="+hits+" misses="+misses+" evictions="+evictions+" files="+entries.size();
+        }
+    }
+
+    /**
+     * The use of a file by a request
+     */
+    final class Handle implements AutoCloseable {
+
+        private final Entry entry;
+        private boolean closed;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        GridCoverage2DReader getReader() {
+            return entry.reader;
+        }
+
+        /**
+         * @return the whole coverage of the file, decoded on the first call
+         * @throws IOException
+         */
+        GridCoverage2D getCoverage() throws IOException {
+            return entry.coverage();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(entry);
+            }
+        }
+    }
+
+    private final class Entry {
+
+        private final File file;
+        private GridCoverage2DReader reader;
+        private GridCoverage2D coverage;
+        // guarded by the lock of the entries
+        private int refs;
+        private boolean evicted;
+
+        Entry(File file) {
+            this.file = file;
+        }
+
+        synchronized void load() throws IOException {
+            if (reader == null) {
+                AbstractGridFormat format = GridFormatFinder.findFormat(file);
+                reader = format.getReader(file);
+                if (reader == null) {
+                    throw new IOException("no reader for "+file);
+                }
+                LOG.info("opened "+file);
+            }
+        }
+
+        synchronized GridCoverage2D coverage() throws IOException {
+            if (coverage == null) {
+                coverage = reader.read(null);
+            }
+            return coverage;
+        }
+
+        /**
+         * Called under the lock of the entries
+         */
+        void evict() {
+            evicted = true;
+            if (refs == 0) {
+                dispose();
+            }
+        }
+
+        synchronized void dispose() {
+            if (coverage != null) {
+                coverage.dispose(true);
+                coverage = null;
+            }
+            if (reader != null) {
+                reader.dispose();
+                reader = null;
+            }
+            LOG.info("closed "+file);
+        }
+    }
+}
@@ -5,36 +5,21 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.MultiPolygon;
 import com.vividsolutions.jts.geom.Polygon;
-import java.io.BufferedReader;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.StringReader;
-import java.net.URL;
-import java.net.URLConnection;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
+import org.geoavalanche.wps.commons.Settings;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
-import org.geotools.coverage.grid.io.GridFormatFinder;
 import org.geotools.coverage.processing.CoverageProcessor;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -43,6 +28,7 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.JTSFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
@@ -57,17 +43,23 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.geometry.Envelope;
 import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.datum.PixelInCell;
 
 public class SnowPack extends StaticMethodsProcessFactory<SnowPack> {
 
     private static final Logger LOG = Logger.getLogger(SnowPack.class.getName());
     private static final CoverageProcessor PROCESSOR = CoverageProcessor.getInstance();
-    private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-    private static final String LOCAL_REPOSITORY = System.getProperty("java.io.tmpdir")+File.separator+"snowpack"+File.separator;
+    static final String LOCAL_REPOSITORY = System.getProperty("java.io.tmpdir")+File.separator+"snowpack"+File.separator;
+    //pixels read around the envelope of a feature
+    private static final int READ_MARGIN = Settings.getInt("geoavalanche.snowpack.readMargin", 2);
 
     public SnowPack() {
         super(Text.text("GeoAvalanche"), "geoavalanche", SnowPack.class);
+        if (SnowProductPrefetcher.isEnabled()) {
+            SnowProductPrefetcher.start();
+        }
     }
 
     @DescribeProcess(title = "SnowPack", description = "Calculate snowmelt and snowcover for all geometries in the collection")
@@ -120,7 +112,7 @@ public class SnowPack extends StaticMethodsProcessFactory<SnowPack> {
             }
             LOG.setLevel(_level);
             SimpleFeatureCollection ret = new ListFeatureCollection(fb.getFeatureType(), featuresList);
-            LOG.info("step 2 ... done ");
+            LOG.info("step 2 ... done, coverage cache: " + CoverageCache.getDefault());
             LOG.info("nrec = " + ret.size());
             return ret;
         } catch (Exception e) {
@@ -131,9 +123,12 @@ public class SnowPack extends StaticMethodsProcessFactory<SnowPack> {
 
     static Geometry getPixel(Geometry theGeometry, String filename) throws Exception {
         File file = new File(LOCAL_REPOSITORY + filename);
-        AbstractGridFormat format = GridFormatFinder.findFormat(file);
-        GridCoverage2DReader reader = format.getReader(file);
-        GridCoverage2D coverage = reader.read(null);
+        try (CoverageCache.Handle handle = CoverageCache.getDefault().open(file)) {
+            return getPixel(theGeometry, handle.getCoverage());
+        }
+    }
+
+    private static Geometry getPixel(Geometry theGeometry, GridCoverage2D coverage) throws Exception {
         LOG.info("coverage=" + coverage);
 
         LOG.info("geometry=" + theGeometry);
@@ -190,7 +185,8 @@ public class SnowPack extends StaticMethodsProcessFactory<SnowPack> {
 
     static String swe(Geometry theGeometry, ArrayList<String> filenames) throws Exception {
         String ret = null;
-        for (String _filename : filenames) {
+        //null when the coverages could not be found
+        for (String _filename : filenames != null ? filenames : new ArrayList<String>()) {
             if (ret == null) {
                 ret = swe(theGeometry, _filename);
             } else {
@@ -254,9 +250,49 @@ public class SnowPack extends StaticMethodsProcessFactory<SnowPack> {
             throw new Exception("filename can not be null");            
         }
         File file = new File(LOCAL_REPOSITORY + filename);
-        AbstractGridFormat format = GridFormatFinder.findFormat(file);
-        GridCoverage2DReader reader = format.getReader(file);
-        GridCoverage2D coverage = reader.read(null);
+        //the file is opened once for all the features, and only the window of each one is decoded
+        try (CoverageCache.Handle handle = CoverageCache.getDefault().open(file)) {
+            GridCoverage2D window = read(handle.getReader(), theGeometry.getEnvelopeInternal(), READ_MARGIN);
+            try {
+                return maximum(theGeometry, window, withRoi);
+            } finally {
+                window.dispose(true);
+            }
+        }
+    }
+
+    /**
+     * Reads the window of a coverage covering an envelope
+     *
+     * @param reader the reader of the coverage
+     * @param envelope the envelope, in the CRS of the coverage
+     * @param margin the pixels read around the envelope
+     * @return the window, at the native resolution
+     * @throws Exception if the envelope is out of the coverage
+     */
+    static GridCoverage2D read(GridCoverage2DReader reader, com.vividsolutions.jts.geom.Envelope envelope, int margin) throws Exception {
+        GridGeometry2D gg = new GridGeometry2D(reader.getOriginalGridRange(),
+                reader.getOriginalGridToWorld(PixelInCell.CELL_CORNER), reader.getCoordinateReferenceSystem());
+        Rectangle range = gg.getGridRange2D();
+        Rectangle window = gg.worldToGrid(new Envelope2D(new ReferencedEnvelope(envelope, reader.getCoordinateReferenceSystem())));
+        window.grow(margin, margin);
+        window = window.intersection(range);
+        if (window.isEmpty()) {
+            throw new Exception("envelope "+envelope+" is out of "+reader.getOriginalEnvelope());
+        }
+        Envelope2D bounds = gg.gridToWorld(new GridEnvelope2D(window));
+
+        ParameterValue<GridGeometry2D> readGG = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+        readGG.setValue(new GridGeometry2D(new GridEnvelope2D(0, 0, window.width, window.height), bounds));
+        GridCoverage2D coverage = reader.read(new GeneralParameterValue[]{readGG});
+        if (coverage == null) {
+            throw new Exception("envelope "+envelope+" is out of "+reader.getOriginalEnvelope());
+        }
+        LOG.fine("window="+window+" of "+range);
+        return coverage;
+    }
+
+    private static double maximum(Geometry theGeometry, GridCoverage2D coverage, boolean withRoi) throws Exception {
         LOG.info("coverage=" + coverage);
 
         LOG.info("geometry=" + theGeometry);
@@ -331,143 +367,71 @@ public class SnowPack extends StaticMethodsProcessFactory<SnowPack> {
         output.close();
     }            
         
-    private static void download(String filename) {
-        String remotefile = "http://neso1.cryoland.enveo.at/cryoland/ows?service=wcs&request=GetCoverage&coverageid=" + filename;
-        String localfile = LOCAL_REPOSITORY+filename;
-        
-        File dir = new File(LOCAL_REPOSITORY);
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        
-        File f = new File(localfile);
-        if(f.exists() && !f.isDirectory()) { 
-            LOG.info(localfile+" was already downloaded");
-            return;
-        }
-        LOG.info("remotefile="+remotefile);
-        LOG.info("localfile="+localfile);
-        try {
-            URLConnection http = new URL(remotefile).openConnection();
-            InputStream in = http.getInputStream();
-            try {
-                OutputStream out = new FileOutputStream(localfile);
-                try {
-                    byte[] buf = new byte[512];
-                    int read;
-                    while ((read = in.read(buf)) > 0) {
-                        out.write(buf, 0, read);
-                    }
-                } finally {
-                    out.close();
-                }
-            } finally {
-                in.close();
+    private static String getLastTimeData(String collection, Integer ndays) throws Exception {
+        return getLastTimeData(getPrefetcher(), CatalogCache.getDefault(), SnowProductClient.getDefault(), collection, ndays);
+    }
+    
+    private static ArrayList<String> getTimeData(String collection) throws Exception {
+        return getTimeData(getPrefetcher(), CatalogCache.getDefault(), SnowProductClient.getDefault(), collection, 15);
+    }
+    
+    private static SnowProductPrefetcher getPrefetcher() {
+        return SnowProductPrefetcher.isEnabled() ? SnowProductPrefetcher.start() : null;
+    }
+    
+    /**
+     * Returns the last coverage of a collection, from the last poll of the
+     * prefetcher, or from the catalog when the collection was not polled yet
+     * or its polls failed
+     *
+     * @param prefetcher the prefetcher, null to always read the catalog
+     * @return the name of the downloaded coverage, null if it can not be found
+     */
+    static String getLastTimeData(SnowProductPrefetcher prefetcher, CatalogCache catalog, SnowProductClient client,
+            String collection, Integer ndays) {
+        if (prefetcher != null) {
+            //downloaded in background, only local files are read
+            String filename = prefetcher.getLastCoverage(collection);
+            if (filename != null) {
+                return filename;
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            LOG.warning(collection+" is not polled yet, reading the catalog");
         }
-    }
-
-    private static String getLastTimeData(String collection, Integer ndays) throws Exception {
         try {
-            ArrayList<String> thelist = SnowPack.getTimeData(collection, ndays);
+            List<String> thelist = catalog.get(collection, ndays);
             String filename = thelist.get(thelist.size() - 1);
-            download(filename);
+            client.download(filename);
             return filename;
         } catch (Exception e) {
             return null;
         }
     }
     
-    private static ArrayList<String> getTimeData(String collection) throws Exception {
-        try {
-            ArrayList<String> ret = SnowPack.getTimeData(collection, 15);
-            for (String _filename : ret) {
-                download(_filename);
+    /**
+     * Returns the coverages of a collection, from the last poll of the
+     * prefetcher, or from the catalog when the collection was not polled yet
+     * or its polls failed
+     *
+     * @param prefetcher the prefetcher, null to always read the catalog
+     * @return the names of the downloaded coverages, the most recent last,
+     * null if they can not be found
+     */
+    static ArrayList<String> getTimeData(SnowProductPrefetcher prefetcher, CatalogCache catalog, SnowProductClient client,
+            String collection, Integer ndays) {
+        if (prefetcher != null) {
+            List<String> coverages = prefetcher.getCoverages(collection);
+            if (coverages != null) {
+                return new ArrayList<String>(coverages);
             }
+            LOG.warning(collection+" is not polled yet, reading the catalog");
+        }
+        try {
+            ArrayList<String> ret = new ArrayList<String>(catalog.get(collection, ndays));
+            //the days are downloaded in parallel
+            client.download(ret);
             return ret;
         } catch (Exception e) {
             return null;
         }
     }
-
-    private static ArrayList<String> getTimeData(String collection, Integer ndays) throws Exception {
-        ArrayList<String> ret = new ArrayList();
-        
-        DefaultHttpClient httpclient = new DefaultHttpClient();
-        try {
-            Calendar _calendar = Calendar.getInstance();
-            String wpsinput = "";
-            if (ndays != null) {
-                _calendar.add(Calendar.DAY_OF_MONTH, -ndays);
-                wpsinput =
-                    "        <wps:Input>\n"+
-                    "            <ows:Identifier>begin_time</ows:Identifier>\n"+
-                    "            <wps:Data>\n"+
-                    "                <wps:LiteralData>"+sdf.format(_calendar.getTime())+"T00:00:00Z</wps:LiteralData>\n"+
-                    "            </wps:Data>\n"+
-                    "        </wps:Input>\n";                
-            }
-        
-            String body =
-                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
-                "<wps:Execute service=\"WPS\" version=\"1.0.0\" xmlns=\"http://www.opengis.net/wps/1.0.0\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:ows=\"http://www.opengis.net/ows/1.1\" xmlns:wcs=\"http://www.opengis.net/wcs/1.1.1\" xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:wps=\"http://www.opengis.net/wps/1.0.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://www.opengis.net/wps/1.0.0 http://schemas.opengis.net/wps/1.0.0/wpsAll.xsd\">\n"+
-                "    <ows:Identifier>getTimeData</ows:Identifier>\n"+
-                "    <wps:DataInputs>\n"+
-                wpsinput +
-                "        <wps:Input>\n"+
-                "            <ows:Identifier>collection</ows:Identifier>\n"+
-                "            <wps:Data>\n"+
-                "                <wps:LiteralData>"+collection+"</wps:LiteralData>\n"+
-                "            </wps:Data>\n"+
-                "        </wps:Input>\n"+
-                "    </wps:DataInputs>\n"+
-                "    <wps:ResponseForm>\n"+
-                "        <wps:RawDataOutput mimeType=\"text/csv\">\n"+
-                "            <ows:Identifier>times</ows:Identifier>\n"+
-                "        </wps:RawDataOutput>\n"+
-                "    </wps:ResponseForm>\n"+
-                "</wps:Execute>\n";
-            
-            StringEntity entity = new StringEntity(body,ContentType.TEXT_PLAIN);
-            HttpPost httppost = new HttpPost("http://neso1.cryoland.enveo.at/cryoland/ows");
-            httppost.setEntity(entity);
-            
-            LOG.info(httppost.getRequestLine().toString());
-            LOG.info(body);
-
-            // Create a custom response handler
-            ResponseHandler<String> responseHandler = new ResponseHandler<String>() {
-
-                @Override
-                public String handleResponse(final HttpResponse response) throws ClientProtocolException, IOException {
-                    int status = response.getStatusLine().getStatusCode();
-                    if (status >= 200 && status < 300) {
-                        HttpEntity entity = response.getEntity();
-                        return entity != null ? EntityUtils.toString(entity) : null;
-                    } else {
-                        throw new ClientProtocolException("Unexpected response status: " + status + " " + response.getStatusLine().getReasonPhrase());
-                    }
-                }
-
-            };
-            String responseBody = httpclient.execute(httppost, responseHandler);
-            LOG.info(responseBody);
-
-            BufferedReader br = new BufferedReader(new StringReader(responseBody));
-            String line = br.readLine();
-            while ((line = br.readLine()) != null) {
-                String[] columns = line.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
-                String filename = columns[3].replaceAll("\"", "");
-                LOG.info(filename);
-                ret.add(filename);
-            }
-            
-        } finally {
-            //httpclient.close();
-        }
-        return ret;
-    }
 }
@@ -0,0 +1,24 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.util.logging.Logger;
+import org.springframework.beans.factory.DisposableBean;
+
+/**
+ * Stops the prefetch of the snow products and closes the connections of the
+ * client when the application context of GeoServer is closed, on shutdown or
+ * reload of the extensions
+ *
+ * It is declared in the applicationContext.xml of the module.
+ *
+ */
+public class SnowPackLifecycle implements DisposableBean {
+
+    private static final Logger LOG = Logger.getLogger(SnowPackLifecycle.class.getName());
+
+    @Override
+    public void destroy() {
+        LOG.info("stopping the snow product prefetch and client");
+        SnowProductPrefetcher.shutdown();
+        SnowProductClient.shutdown();
+    }
+}
@@ -0,0 +1,306 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+import org.geoavalanche.wps.commons.Settings;
+
+/**
+ * Client of the snow product server, for its catalog and its coverages
+ *
+ * A single HTTP client with a pool of connections is shared by all the
+ * requests, and the coverages of a list are downloaded in parallel, at most
+ * geoavalanche.snowpack.connections at a time (4). A coverage is written to a
+ * temporary file of the local repository and renamed when complete, so that
+ * a reader never sees half a file and an interrupted download is not taken
+ * for a downloaded one.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.snowpack.endpoint, the OWS endpoint of the server
+ * (http://neso1.cryoland.enveo.at/cryoland/ows)</li>
+ * <li>geoavalanche.snowpack.connections (4)</li>
+ * <li>geoavalanche.snowpack.timeout in milliseconds (60000)</li>
+ * </ul>
+ *
+ */
+final class SnowProductClient {
+
+    private static final Logger LOG = Logger.getLogger(SnowProductClient.class.getName());
+
+    static final String ENDPOINT = "http://neso1.cryoland.enveo.at/cryoland/ows";
+
+    private static volatile SnowProductClient instance;
+
+    private final String endpoint;
+    private final File directory;
+    private final DefaultHttpClient httpclient;
+    private final ExecutorService pool;
+
+    /**
+     * @param endpoint the OWS endpoint of the server
+     * @param directory the local repository
+     * @param connections the number of parallel connections
+     * @param timeout the connection and read timeout in milliseconds
+     */
+    SnowProductClient(String endpoint, File directory, int connections, int timeout) {
+        this.endpoint = endpoint;
+        this.directory = directory;
+
+        PoolingClientConnectionManager manager = new PoolingClientConnectionManager();
+        manager.setMaxTotal(connections);
+        manager.setDefaultMaxPerRoute(connections);
+        this.httpclient = new DefaultHttpClient(manager);
+        HttpConnectionParams.setConnectionTimeout(httpclient.getParams(), timeout);
+        HttpConnectionParams.setSoTimeout(httpclient.getParams(), timeout);
+
+        this.pool = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "snowpack-download-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        LOG.info("snow product client: endpoint="+endpoint+" directory="+directory+" connections="+connections);
+    }
+
+    static SnowProductClient getDefault() {
+        if (instance == null) {
+            synchronized (SnowProductClient.class) {
+                if (instance == null) {
+                    instance = new SnowProductClient(
+                            Settings.get("geoavalanche.snowpack.endpoint", ENDPOINT),
+                            new File(SnowPack.LOCAL_REPOSITORY),
+                            Settings.getInt("geoavalanche.snowpack.connections", 4),
+                            Settings.getInt("geoavalanche.snowpack.timeout", 60000));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the shared client if it was created, a later getDefault creates
+     * a new one
+     */
+    static void shutdown() {
+        synchronized (SnowProductClient.class) {
+            if (instance != null) {
+                instance.close();
+                instance = null;
+            }
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the coverages of a collection
+     *
+     * @param collection the collection
+     * @param ndays the number of days before today, null for all
+     * @return the names of the coverages, the most recent last
+     * @throws IOException
+     */
+    List<String> getTimeData(String collection, Integer ndays) throws IOException {
+        String wpsinput = "";
+        if (ndays != null) {
+            Calendar _calendar = Calendar.getInstance();
+            _calendar.add(Calendar.DAY_OF_MONTH, -ndays);
+            wpsinput =
+                "        <wps:Input>\n"+
+                "            <ows:Identifier>begin_time</ows:Identifier>\n"+
+                "            <wps:Data>\n"+
+                "                <wps:LiteralData>"+new SimpleDateFormat("yyyy-MM-dd").format(_calendar.getTime())+"T00:00:00Z</wps:LiteralData>\n"+
+                "            </wps:Data>\n"+
+                "        </wps:Input>\n";
+        }
+
+        String body =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+            "<wps:Execute service=\"WPS\" version=\"1.0.0\" xmlns=\"http://www.opengis.net/wps/1.0.0\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:ows=\"http://www.opengis.net/ows/1.1\" xmlns:wcs=\"http://www.opengis.net/wcs/1.1.1\" xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:wps=\"http://www.opengis.net/wps/1.0.0\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://www.opengis.net/wps/1.0.0 http://schemas.opengis.net/wps/1.0.0/wpsAll.xsd\">\n"+
+            "    <ows:Identifier>getTimeData</ows:Identifier>\n"+
+            "    <wps:DataInputs>\n"+
+            wpsinput +
+            "        <wps:Input>\n"+
+            "            <ows:Identifier>collection</ows:Identifier>\n"+
+            "            <wps:Data>\n"+
+            "                <wps:LiteralData>"+collection+"</wps:LiteralData>\n"+
+            "            </wps:Data>\n"+
+            "        </wps:Input>\n"+
+            "    </wps:DataInputs>\n"+
+            "    <wps:ResponseForm>\n"+
+            "        <wps:RawDataOutput mimeType=\"text/csv\">\n"+
+            "            <ows:Identifier>times</ows:Identifier>\n"+
+            "        </wps:RawDataOutput>\n"+
+            "    </wps:ResponseForm>\n"+
+            "</wps:Execute>\n";
+
+        HttpPost httppost = new HttpPost(endpoint);
+        httppost.setEntity(new StringEntity(body, ContentType.TEXT_PLAIN));
+        LOG.info(httppost.getRequestLine().toString());
+        LOG.fine(body);
+
+        String responseBody = httpclient.execute(httppost, new ResponseHandler<String>() {
+
+            @Override
+            public String handleResponse(final HttpResponse response) throws ClientProtocolException, IOException {
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 200 && status < 300) {
+                    HttpEntity entity = response.getEntity();
+                    return entity != null ? EntityUtils.toString(entity) : null;
+                } else {
+                    throw new ClientProtocolException("Unexpected response status: " + status + " " + response.getStatusLine().getReasonPhrase());
+                }
+            }
+
+        });
+        LOG.fine(responseBody);
+
+        List<String> ret = new ArrayList<String>();
+        if (responseBody == null) {
+            return ret;
+        }
+        BufferedReader br = new BufferedReader(new StringReader(responseBody));
+        //the first line is the header
+        String line = br.readLine();
+        while ((line = br.readLine()) != null) {
+            String[] columns = line.split(",(?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+            if (columns.length < 4) {
+                continue;
+            }
+            String filename = columns[3].replaceAll("\"", "");
+            LOG.fine(filename);
+            ret.add(filename);
+        }
+        return ret;
+    }
+
+    /**
+     * Downloads a coverage to the local repository, unless it is already there
+     *
+     * @param filename the name of the coverage
+     * @return the local file
+     * @throws IOException
+     */
+    File download(String filename) throws IOException {
+        File file = new File(directory, filename);
+        if (file.isFile()) {
+            LOG.fine(file+" was already downloaded");
+            return file;
+        }
+        Files.createDirectories(directory.toPath());
+
+        HttpGet httpget = new HttpGet(endpoint + "?service=wcs&request=GetCoverage&coverageid=" + filename);
+        LOG.info(httpget.getRequestLine().toString());
+        long start = System.currentTimeMillis();
+        HttpResponse response = httpclient.execute(httpget);
+        HttpEntity entity = response.getEntity();
+        Path tmp = null;
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300 || entity == null) {
+                throw new IOException("can not download " + filename + ": " + status + " " + response.getStatusLine().getReasonPhrase());
+            }
+            tmp = Files.createTempFile(directory.toPath(), filename, ".part");
+            long size = 0;
+            try (InputStream in = entity.getContent();
+                    ReadableByteChannel source = Channels.newChannel(in);
+                    FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long n;
+                while ((n = out.transferFrom(source, size, 1 << 20)) > 0) {
+                    size += n;
+                }
+            }
+            //renamed when complete, a reader never sees half a file
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            LOG.info(filename+" downloaded, "+size+" bytes in "+(System.currentTimeMillis() - start)+" ms");
+            return file;
+        } finally {
+            //releases the connection to the pool
+            EntityUtils.consume(entity);
+            if (tmp != null) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Downloads coverages in parallel
+     *
+     * @param filenames the names of the coverages
+     * @return the number of coverages in the local repository, those not
+     * downloaded are logged
+     */
+    int download(List<String> filenames) {
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+        for (final String filename : filenames) {
+            futures.add(pool.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return download(filename);
+                }
+            }));
+        }
+        int ret = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+                ret++;
+            } catch (ExecutionException e) {
+                LOG.severe("can not download "+filenames.get(i)+": "+e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Stops the downloads and closes the connections
+     */
+    void close() {
+        pool.shutdownNow();
+        httpclient.getConnectionManager().shutdown();
+    }
+}
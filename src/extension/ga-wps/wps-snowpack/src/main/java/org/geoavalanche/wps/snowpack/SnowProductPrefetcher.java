@@ -0,0 +1,248 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.geoavalanche.wps.commons.Settings;
+
+/**
+ * Background download of the snow products
+ *
+ * The catalog of every collection read by SnowPack is polled at a fixed delay
+ * and the new coverages are downloaded to the local repository, so that a
+ * request only reads local files and knows them by the last poll. Given a
+ * retention window, the files of the repository not modified for longer are
+ * deleted, unless the last poll still lists them; by default no file is ever
+ * deleted, the repository may be shared with other tools.
+ *
+ * The shared prefetcher is stopped by SnowPackLifecycle when GeoServer closes
+ * its application context.
+ *
+ * Settings:
+ * <ul>
+ * <li>geoavalanche.snowpack.prefetch (true), false to query the catalog and
+ * download during the requests</li>
+ * <li>geoavalanche.snowpack.prefetchMinutes (60)</li>
+ * <li>geoavalanche.snowpack.retentionDays (0), 0 to keep the files</li>
+ * </ul>
+ *
+ */
+final class SnowProductPrefetcher {
+
+    private static final Logger LOG = Logger.getLogger(SnowProductPrefetcher.class.getName());
+
+    private static final boolean ENABLED = Settings.getBoolean("geoavalanche.snowpack.prefetch", true);
+    private static final long PERIOD_MINUTES = Settings.getLong("geoavalanche.snowpack.prefetchMinutes", 60);
+    private static final long RETENTION_DAYS = Settings.getLong("geoavalanche.snowpack.retentionDays", 0);
+
+    /**
+     * A collection of the catalog
+     */
+    static final class Collection {
+
+        final String name;
+        // days of the catalog query, null for all
+        final Integer ndays;
+        // all the coverages of the days, or the last one only
+        final boolean series;
+
+        Collection(String name, Integer ndays, boolean series) {
+            this.name = name;
+            this.ndays = ndays;
+            this.series = series;
+        }
+    }
+
+    /**
+     * The collections read by SnowPack
+     */
+    static final List<Collection> COLLECTIONS = Collections.unmodifiableList(Arrays.asList(
+            new Collection("daily_SWE_PanEuropean_Microwave", 15, true),
+            new Collection("daily_FSC_PanEuropean_Optical", 10, false),
+            new Collection("daily_FSC_Alps_Optical", 10, false),
+            new Collection("daily_FSC_Baltic_Optical", 10, false),
+            new Collection("multitemp_SCAW_Alps_Radar", null, false),
+            new Collection("daily_SCAW_Scandinavia_Radar", null, false)));
+
+    private static volatile SnowProductPrefetcher instance;
+
+    private final SnowProductClient client;
+    private final List<Collection> collections;
+    private final long retentionMillis;
+    /* coverages of each collection at the last poll */
+    private final Map<String, List<String>> coverages = new ConcurrentHashMap<String, List<String>>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param client the client of the server
+     * @param collections the collections polled
+     * @param retentionMillis age past which an unlisted file is deleted, 0 to keep the files
+     */
+    SnowProductPrefetcher(SnowProductClient client, List<Collection> collections, long retentionMillis) {
+        this.client = client;
+        this.collections = collections;
+        this.retentionMillis = retentionMillis;
+    }
+
+    static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Starts the shared prefetcher, once
+     *
+     * @return the shared prefetcher
+     */
+    static SnowProductPrefetcher start() {
+        if (instance == null) {
+            synchronized (SnowProductPrefetcher.class) {
+                if (instance == null) {
+                    SnowProductPrefetcher prefetcher = new SnowProductPrefetcher(SnowProductClient.getDefault(),
+                            COLLECTIONS, TimeUnit.DAYS.toMillis(RETENTION_DAYS));
+                    prefetcher.schedule(PERIOD_MINUTES, TimeUnit.MINUTES);
+                    instance = prefetcher;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared prefetcher if it was started, a later start creates
+     * a new one
+     */
+    static void shutdown() {
+        synchronized (SnowProductPrefetcher.class) {
+            if (instance != null) {
+                instance.stop();
+                instance = null;
+            }
+        }
+    }
+
+    synchronized void schedule(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowpack-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::run, 0, period, unit);
+        LOG.info("snow product prefetch every "+period+" "+unit+", retention "+retentionMillis+" ms");
+    }
+
+    synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void run() {
+        // an exception would cancel the next runs
+        try {
+            poll();
+            expire();
+        } catch (RuntimeException e) {
+            LOG.severe("snow product prefetch failed: "+e);
+        }
+    }
+
+    /**
+     * Queries the catalog of the collections and downloads their new coverages
+     */
+    void poll() {
+        long start = System.currentTimeMillis();
+        for (Collection collection : collections) {
+            try {
+                List<String> names = client.getTimeData(collection.name, collection.ndays);
+                if (names.isEmpty()) {
+                    LOG.warning("no coverage of "+collection.name);
+                    continue;
+                }
+                if (!collection.series) {
+                    names = Collections.singletonList(names.get(names.size() - 1));
+                }
+                client.download(names);
+                coverages.put(collection.name, Collections.unmodifiableList(new ArrayList<String>(names)));
+            } catch (IOException e) {
+                // the coverages of the previous poll are kept
+                LOG.severe("can not poll "+collection.name+": "+e);
+            }
+        }
+        LOG.info("snow products polled in "+(System.currentTimeMillis() - start)+" ms");
+    }
+
+    /**
+     * Deletes the files of the repository older than the retention window and
+     * not listed by the last poll, and the downloads left incomplete
+     *
+     * @return the number of files deleted, 0 without retention window
+     */
+    int expire() {
+        Path directory = client.getDirectory().toPath();
+        if (retentionMillis <= 0 || !Files.isDirectory(directory)) {
+            return 0;
+        }
+        Set<String> listed = new HashSet<String>();
+        for (List<String> names : coverages.values()) {
+            listed.addAll(names);
+        }
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file) || listed.contains(file.getFileName().toString())) {
+                    continue;
+                }
+                try {
+                    if (now - Files.getLastModifiedTime(file).toMillis() > retentionMillis) {
+                        Files.deleteIfExists(file);
+                        deleted++;
+                    }
+                } catch (IOException e) {
+                    LOG.severe("can not expire "+file+": "+e);
+                }
+            }
+        } catch (IOException e) {
+            LOG.severe("can not expire the files of "+directory+": "+e);
+        }
+        if (deleted > 0) {
+            LOG.info(deleted+" expired snow products deleted from "+directory);
+        }
+        return deleted;
+    }
+
+    /**
+     * @param collection the name of the collection
+     * @return the coverages of the collection at the last poll, the most
+     * recent last, null if it was never polled
+     */
+    List<String> getCoverages(String collection) {
+        return coverages.get(collection);
+    }
+
+    /**
+     * @param collection the name of the collection
+     * @return the last coverage of the collection, null if none
+     */
+    String getLastCoverage(String collection) {
+        List<String> names = coverages.get(collection);
+        return names == null || names.isEmpty() ? null : names.get(names.size() - 1);
+    }
+}
@@ -0,0 +1,118 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for CatalogCache.
+ */
+public class CatalogCacheTest
+    extends TestCase
+{
+    private final AtomicInteger lookups = new AtomicInteger();
+    private volatile boolean failing;
+
+    public CatalogCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CatalogCacheTest.class );
+    }
+
+    private List<String> catalog(String collection, Integer ndays) throws IOException
+    {
+        if (failing) {
+            throw new IOException("catalog down");
+        }
+        return Collections.singletonList(collection + "_" + lookups.incrementAndGet());
+    }
+
+    public void testFreshCoveragesAreKept() throws Exception
+    {
+        CatalogCache cache = new CatalogCache(this::catalog, 60000, 60000, Runnable::run);
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        assertEquals(Arrays.asList("fsc_2"), cache.get("fsc", 10));
+        assertEquals(2, lookups.get());
+        assertEquals(1, cache.getHits());
+    }
+
+    public void testStaleCoveragesAreReturnedWhileRefreshed() throws Exception
+    {
+        List<Runnable> refreshes = new ArrayList<Runnable>();
+        CatalogCache cache = new CatalogCache(this::catalog, 0, 60000, refreshes::add);
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        Thread.sleep(5);
+
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        // a single refresh in flight
+        assertEquals(1, refreshes.size());
+        refreshes.get(0).run();
+        Thread.sleep(5);
+        assertEquals(Arrays.asList("swe_2"), cache.get("swe", 15));
+        assertEquals(3, cache.getStaleHits());
+    }
+
+    public void testTooStaleCoveragesAreReturnedWhenTheCatalogIsDown() throws Exception
+    {
+        CatalogCache cache = new CatalogCache(this::catalog, 0, 0, Runnable::run);
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        Thread.sleep(5);
+        failing = true;
+        assertEquals(Arrays.asList("swe_1"), cache.get("swe", 15));
+        try {
+            cache.get("fsc", 10);
+            fail("nothing kept for fsc");
+        } catch (IOException e) {
+        }
+    }
+
+    public void testConcurrentCallersShareOneLookup() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CatalogCache cache = new CatalogCache((collection, ndays) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return catalog(collection, ndays);
+        }, 60000, 60000, Runnable::run);
+
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            results.add(callers.submit(() -> cache.get("swe", 15)));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 3; i++) {
+                results.add(callers.submit(() -> cache.get("swe", 15)));
+            }
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<List<String>> result : results) {
+                assertEquals(Arrays.asList("swe_1"), result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, cache.getLookups());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.geoavalanche.wps.snowpack;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for CoverageCache.
+ */
+public class CoverageCacheTest
+    extends TestCase
+{
+    private File first;
+    private File second;
+
+    public CoverageCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CoverageCacheTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        first = write(1);
+        second = write(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        first.delete();
+        second.delete();
+    }
+
+    public void testFileIsDecodedOnce() throws Exception
+    {
+        CoverageCache cache = new CoverageCache(4);
+        GridCoverage2D coverage;
+        try (CoverageCache.Handle handle = cache.open(first)) {
+            coverage = handle.getCoverage();
+            assertEquals(1, coverage.getRenderedImage().getData().getSample(0, 0, 0));
+        }
+        try (CoverageCache.Handle handle = cache.open(first)) {
+            assertSame(coverage, handle.getCoverage());
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        cache.dispose();
+    }
+
+    public void testLeastRecentlyUsedIsClosed() throws Exception
+    {
+        CoverageCache cache = new CoverageCache(1);
+        try (CoverageCache.Handle handle = cache.open(first)) {
+            handle.getCoverage();
+            // evicted while in use, still readable until released
+            try (CoverageCache.Handle other = cache.open(second)) {
+                assertEquals(2, other.getCoverage().getRenderedImage().getData().getSample(0, 0, 0));
+            }
+            assertEquals(1, cache.getEvictions());
+            assertEquals(1, handle.getCoverage().getRenderedImage().getData().getSample(0, 0, 0));
+        }
+        try (CoverageCache.Handle handle = cache.open(first)) {
+            handle.getCoverage();
+        }
+        assertEquals(3, cache.getMisses());
+        cache.dispose();
+    }
+
+    public void testModifiedFileIsOpenedAgain() throws Exception
+    {
+        CoverageCache cache = new CoverageCache(4);
+        try (CoverageCache.Handle handle = cache.open(first)) {
+            handle.getCoverage();
+        }
+        first.setLastModified(first.lastModified() - 60000);
+        try (CoverageCache.Handle handle = cache.open(first)) {
+            handle.getCoverage();
+        }
+        assertEquals(2, cache.getMisses());
+        cache.dispose();
+    }
+
+    private static File write(int value) throws Exception
+    {
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 8, 8, 1, null);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                raster.setSample(x, y, 0, value);
+            }
+        }
+        GridCoverage2D coverage = new GridCoverageFactory().create("snow", raster,
+                new ReferencedEnvelope(0, 8, 40, 48, DefaultGeographicCRS.WGS84));
+        File file = File.createTempFile("snow", ".tif");
+        GeoTiffWriter writer = new GeoTiffWriter(file);
+        try {
+            writer.write(coverage, null);
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+}
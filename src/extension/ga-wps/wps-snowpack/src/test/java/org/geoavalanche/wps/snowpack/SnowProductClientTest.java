@@ -0,0 +1,132 @@
+package org.geoavalanche.wps.snowpack;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for SnowProductClient, against a local stub of the server.
+ */
+public class SnowProductClientTest
+    extends TestCase
+{
+    private static final String CATALOG =
+            "starttime,endtime,bbox,identifier\n"
+            + "\"2015-01-01T00:00:00Z\",\"2015-01-01T23:59:59Z\",\"(-11,35,32,72)\",\"swe_20150101\"\n"
+            + "\"2015-01-02T00:00:00Z\",\"2015-01-02T23:59:59Z\",\"(-11,35,32,72)\",\"swe_20150102\"\n";
+
+    private HttpServer server;
+    private File directory;
+    private SnowProductClient client;
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    public SnowProductClientTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SnowProductClientTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ows", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 200, CATALOG.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                String query = exchange.getRequestURI().getQuery();
+                String id = query.substring(query.indexOf("coverageid=") + "coverageid=".length());
+                if (id.startsWith("missing")) {
+                    respond(exchange, 404, new byte[0]);
+                    return;
+                }
+                downloads.incrementAndGet();
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(50);
+                    byte[] body = new byte[3 << 20];
+                    Arrays.fill(body, (byte) id.length());
+                    respond(exchange, 200, body);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        directory = Files.createTempDirectory("snowpack").toFile();
+        client = new SnowProductClient("http://127.0.0.1:" + server.getAddress().getPort() + "/ows", directory, 2, 10000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        client.close();
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testCatalog() throws Exception
+    {
+        assertEquals(Arrays.asList("swe_20150101", "swe_20150102"), client.getTimeData("daily_SWE_PanEuropean_Microwave", 15));
+    }
+
+    public void testDownloadsAreParallelAndBoundedPerHost() throws Exception
+    {
+        List<String> filenames = Arrays.asList("a1", "a2", "a3", "a4", "a5", "a6");
+        assertEquals(6, client.download(filenames));
+        assertEquals(6, downloads.get());
+        assertTrue("max " + maxRunning.get(), maxRunning.get() <= 2);
+        for (String filename : filenames) {
+            assertEquals(3 << 20, new File(directory, filename).length());
+        }
+
+        // already in the local repository
+        assertEquals(6, client.download(filenames));
+        assertEquals(6, downloads.get());
+    }
+
+    public void testFailedDownloadLeavesNoFile() throws Exception
+    {
+        assertEquals(1, client.download(Arrays.asList("missing", "b1")));
+        assertFalse(new File(directory, "missing").exists());
+        String[] files = directory.list();
+        assertEquals(Arrays.toString(files), 1, files.length);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException
+    {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.geoavalanche.wps.snowpack;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for SnowProductPrefetcher, against a local stub of the server.
+ */
+public class SnowProductPrefetcherTest
+    extends TestCase
+{
+    private HttpServer server;
+    private File directory;
+    private SnowProductClient client;
+    private SnowProductPrefetcher prefetcher;
+
+    public SnowProductPrefetcherTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SnowProductPrefetcherTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/ows", exchange -> {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                String body;
+                try (InputStream in = exchange.getRequestBody(); Scanner scanner = new Scanner(in, "UTF-8")) {
+                    body = scanner.useDelimiter("\\A").next();
+                }
+                String prefix = body.contains("daily_SWE") ? "swe" : "fsc";
+                respond(exchange, ("starttime,endtime,bbox,identifier\n"
+                        + "\"a\",\"b\",\"c\",\"" + prefix + "_1\"\n"
+                        + "\"a\",\"b\",\"c\",\"" + prefix + "_2\"\n").getBytes(StandardCharsets.UTF_8));
+            } else {
+                respond(exchange, new byte[]{1, 2, 3});
+            }
+        });
+        server.start();
+        directory = Files.createTempDirectory("snowpack").toFile();
+        client = new SnowProductClient("http://127.0.0.1:" + server.getAddress().getPort() + "/ows", directory, 2, 10000);
+        prefetcher = new SnowProductPrefetcher(client, Arrays.asList(
+                new SnowProductPrefetcher.Collection("daily_SWE_PanEuropean_Microwave", 15, true),
+                new SnowProductPrefetcher.Collection("daily_FSC_Alps_Optical", 10, false)),
+                TimeUnit.DAYS.toMillis(1));
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        prefetcher.stop();
+        client.close();
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testPollDownloadsTheNewCoverages() throws Exception
+    {
+        assertNull(prefetcher.getCoverages("daily_SWE_PanEuropean_Microwave"));
+        prefetcher.poll();
+        assertEquals(Arrays.asList("swe_1", "swe_2"), prefetcher.getCoverages("daily_SWE_PanEuropean_Microwave"));
+        assertEquals("fsc_2", prefetcher.getLastCoverage("daily_FSC_Alps_Optical"));
+        assertTrue(new File(directory, "swe_1").isFile());
+        assertTrue(new File(directory, "swe_2").isFile());
+        assertTrue(new File(directory, "fsc_2").isFile());
+        assertFalse(new File(directory, "fsc_1").exists());
+    }
+
+    public void testFilesOutOfTheWindowExpire() throws Exception
+    {
+        prefetcher.poll();
+        File old = new File(directory, "swe_0");
+        assertTrue(old.createNewFile());
+        long twoDaysAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+        old.setLastModified(twoDaysAgo);
+        // still listed by the catalog
+        new File(directory, "swe_1").setLastModified(twoDaysAgo);
+
+        assertEquals(1, prefetcher.expire());
+        assertFalse(old.exists());
+        assertTrue(new File(directory, "swe_1").isFile());
+    }
+
+    public void testWithoutRetentionNoFileExpires() throws Exception
+    {
+        SnowProductPrefetcher keeping = new SnowProductPrefetcher(client,
+                Arrays.asList(new SnowProductPrefetcher.Collection("daily_SWE_PanEuropean_Microwave", 15, true)), 0);
+        keeping.poll();
+        File old = new File(directory, "swe_0");
+        assertTrue(old.createNewFile());
+        old.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(365));
+
+        assertEquals(0, keeping.expire());
+        assertTrue(old.isFile());
+    }
+
+    public void testLifecycleClosesTheSharedClient() throws Exception
+    {
+        SnowProductClient shared = SnowProductClient.getDefault();
+        assertSame(shared, SnowProductClient.getDefault());
+        new SnowPackLifecycle().destroy();
+        SnowProductClient next = SnowProductClient.getDefault();
+        assertNotSame(shared, next);
+        SnowProductClient.shutdown();
+    }
+
+    public void testRequestBeforeTheFirstPollReadsTheCatalog() throws Exception
+    {
+        CatalogCache catalog = new CatalogCache(client::getTimeData, 60000, 60000, Runnable::run);
+        assertEquals(Arrays.asList("swe_1", "swe_2"),
+                SnowPack.getTimeData(prefetcher, catalog, client, "daily_SWE_PanEuropean_Microwave", 15));
+        assertEquals("fsc_2", SnowPack.getLastTimeData(prefetcher, catalog, client, "daily_FSC_Alps_Optical", 10));
+        assertTrue(new File(directory, "swe_1").isFile());
+        assertTrue(new File(directory, "swe_2").isFile());
+        assertTrue(new File(directory, "fsc_2").isFile());
+        assertEquals(2, catalog.getLookups());
+
+        // once polled, the catalog is no longer read
+        prefetcher.poll();
+        assertEquals("fsc_2", SnowPack.getLastTimeData(prefetcher, catalog, client, "daily_FSC_Alps_Optical", 10));
+        assertEquals(2, catalog.getLookups());
+    }
+
+    private static void respond(HttpExchange exchange, byte[] body) throws IOException
+    {
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
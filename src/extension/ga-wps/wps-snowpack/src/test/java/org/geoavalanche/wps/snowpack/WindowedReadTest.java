@@ -0,0 +1,94 @@
+package org.geoavalanche.wps.snowpack;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+
+/**
+ * Unit test for the windowed read of SnowPack.
+ */
+public class WindowedReadTest
+    extends TestCase
+{
+    private File file;
+
+    public WindowedReadTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( WindowedReadTest.class );
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        // 200x100 pixels of 0.1 degree, the value of a pixel is its column
+        WritableRaster raster = Raster.createBandedRaster(DataBuffer.TYPE_INT, 200, 100, 1, null);
+        for (int y = 0; y < 100; y++) {
+            for (int x = 0; x < 200; x++) {
+                raster.setSample(x, y, 0, x);
+            }
+        }
+        GridCoverage2D coverage = new GridCoverageFactory().create("swe", raster,
+                new ReferencedEnvelope(0, 20, 40, 50, DefaultGeographicCRS.WGS84));
+        file = File.createTempFile("swe", ".tif");
+        GeoTiffWriter writer = new GeoTiffWriter(file);
+        try {
+            writer.write(coverage, null);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        file.delete();
+    }
+
+    public void testOnlyTheWindowIsRead() throws Exception
+    {
+        GeoTiffReader reader = new GeoTiffReader(file);
+        try {
+            GridCoverage2D window = SnowPack.read(reader, new Envelope(5.05, 5.35, 45.05, 45.25), 2);
+            assertTrue(window.getRenderedImage().getWidth() <= 3 + 4 + 2);
+            assertTrue(window.getRenderedImage().getHeight() <= 2 + 4 + 2);
+            assertTrue(window.getEnvelope2D().contains(5.05, 45.05));
+            assertTrue(window.getEnvelope2D().contains(5.34, 45.24));
+            window.dispose(true);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    public void testWindowIsClippedToTheCoverage() throws Exception
+    {
+        GeoTiffReader reader = new GeoTiffReader(file);
+        try {
+            GridCoverage2D window = SnowPack.read(reader, new Envelope(19.95, 21, 49.95, 51), 2);
+            assertTrue(window.getRenderedImage().getWidth() <= 3);
+            window.dispose(true);
+            try {
+                SnowPack.read(reader, new Envelope(30, 31, 45, 46), 2);
+                fail("out of the coverage");
+            } catch (Exception e) {
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+}